@@ -22,62 +22,220 @@ import java.net.*;
 import java.util.*;
 import java.text.*;
 import java.security.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
 
 import jjsp.http.*;
 import jjsp.util.*;
 
+/**
+   An index of the files under a root directory, keyed by relative path (with optional __version and __date name suffixes).
+   The tree is watched (see FileWatcher) and only changed paths are rehashed and reindexed. If the tree cannot be watched,
+   or change events are lost, the whole tree is rescanned instead.
+ */
 public class FileSystemInfoIndex implements DataInfoIndex
 {
+    public static final long RESCAN_INTERVAL = 300000;
+    public static final long CHANGE_SETTLE_TIME = 1000;
+    public static final long RECENT_MODIFICATION_TIME = 2000;
+    public static final int HASH_BUFFER_SIZE = 256*1024;
+    public static final String HASH_CACHE_FILE = ".jjsp/md5.cache";
+
+    private static final ForkJoinPool scanPool = new ForkJoinPool();
+
     private final File rootDir;
+    private final Set changedFiles;
+    private final ChangeListener changeListener;
+    private final HashCache hashCache;
+
     private OrderedValueMap index;
+    private TreeMap filesByPath;
+    private boolean watching, rescanRequired;
 
     public FileSystemInfoIndex(File rootDir) throws Exception
     {
         this.rootDir = rootDir;
+        changedFiles = new LinkedHashSet();
+        changeListener = new ChangeListener();
+        rescanRequired = false;
+
+        try
+        {
+            FileWatcher.getShared().watch(rootDir, changeListener);
+            watching = true;
+        }
+        catch (Exception e) 
+        {
+            watching = false;
+            System.out.println("WARNING: Unable to watch "+rootDir+" for changes - the index will be rescanned every "+(RESCAN_INTERVAL/1000)+" seconds  "+e);
+        }
+
+        hashCache = new HashCache();
         index = new OrderedValueMap();
-        scan(index, rootDir, new HashSet());
+        filesByPath = new TreeMap();
+        scan(rootDir, index, filesByPath, new HashSet());
+        hashCache.retainOnly(filesByPath.values());
+        hashCache.save();
 
         Thread t = new Thread(new Reindexer());
         t.setDaemon(true);
         t.start();
     }
 
+    class ChangeListener implements FileWatcher.Listener
+    {
+        public void fileChanged(File root, File changed)
+        {
+            synchronized (changedFiles)
+            {
+                changedFiles.add(changed);
+                changedFiles.notifyAll();
+            }
+        }
+
+        public void changesLost(File root)
+        {
+            synchronized (changedFiles)
+            {
+                rescanRequired = true;
+                changedFiles.notifyAll();
+            }
+        }
+    }
+
     class Reindexer implements Runnable
     {
+        /** Returns the changed files once events have settled, or null when the whole tree should be rescanned. */
+        private Set waitForChanges() throws InterruptedException
+        {
+            synchronized (changedFiles)
+            {
+                long rescanDue = System.currentTimeMillis() + RESCAN_INTERVAL;
+                while (changedFiles.isEmpty() && !rescanRequired)
+                {
+                    long wait = rescanDue - System.currentTimeMillis();
+                    if (watching)
+                        changedFiles.wait();
+                    else if (wait > 0)
+                        changedFiles.wait(wait);
+                    else
+                        return null;
+                }
+            }
+
+            Thread.sleep(CHANGE_SETTLE_TIME);
+
+            synchronized (changedFiles)
+            {
+                Set result = new LinkedHashSet(changedFiles);
+                changedFiles.clear();
+                if (rescanRequired)
+                {
+                    rescanRequired = false;
+                    return null;
+                }
+                return result;
+            }
+        }
+
         public void run()
         {
             while (true)
             {
                 try
                 {
-                    Thread.sleep(300000);
+                    Set changed = waitForChanges();
+                    if (changed == null)
+                        rescan();
+                    else
+                        reindex(changed);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                catch (Exception e) {System.out.println("WARNING: Failed to Reindex File System Index rooted at "+rootDir+"  "+e);}
+            }
+        }
+    }
 
-                    Set existing = new HashSet();
-                    synchronized (Reindexer.this)
-                    {
-                        String[] allKeys = index.getOrderedKeys();
-                        for (int i=0; i<allKeys.length; i++)
-                        {
-                            Comparable[] versions = index.getAllValuesFor(allKeys[i]);
-                            for (int j=0; j<versions.length; j++)
-                                existing.add(((FileInfo) versions[j]).src.getAbsolutePath());
-                        }
-                    }
+    private void rescan() throws Exception
+    {
+        Set existing;
+        synchronized (this)
+        {
+            existing = new HashSet(filesByPath.keySet());
+        }
 
-                    OrderedValueMap newIndex = new OrderedValueMap();
+        OrderedValueMap newIndex = new OrderedValueMap();
+        TreeMap newFiles = new TreeMap();
                     
-                    System.out.println(new Date()+" Scanning source Directory: "+rootDir);
-                    scan(newIndex, rootDir, existing);
-                    System.out.println(new Date()+" Scan complete");
+        System.out.println(new Date()+" Scanning source Directory: "+rootDir);
+        scan(rootDir, newIndex, newFiles, existing);
+        hashCache.retainOnly(newFiles.values());
+        hashCache.save();
+        System.out.println(new Date()+" Scan complete");
                     
-                    synchronized (Reindexer.this)
+        synchronized (this)
+        {
+            index = newIndex;
+            filesByPath = newFiles;
+        }
+    }
+
+    private boolean isExcluded(File f)
+    {
+        File root = new File(pathKey(rootDir));
+        for (File dir = f.isDirectory() ? f : f.getParentFile(); (dir != null) && !dir.equals(root); dir = dir.getParentFile())
+            if (dir.getName().startsWith(".")) // Skip any .name directories
+                return true;
+        return false;
+    }
+
+    /** Rehashes and reindexes just the given files and directories, removing entries for any which no longer exist. */
+    private void reindex(Set changed) throws Exception
+    {
+        Iterator itt = changed.iterator();
+        while (itt.hasNext())
+        {
+            File f = new File(pathKey((File) itt.next()));
+            if (isExcluded(f))
+                continue;
+
+            OrderedValueMap scanned = new OrderedValueMap();
+            TreeMap scannedFiles = new TreeMap();
+            if (f.exists())
+                scan(f, scanned, scannedFiles, Collections.EMPTY_SET);
+
+            synchronized (this)
+            {
+                String path = pathKey(f);
+                ArrayList stale = new ArrayList();
+                if (filesByPath.containsKey(path))
+                    stale.add(path);
+                stale.addAll(filesByPath.subMap(path + File.separator, path + File.separator + Character.MAX_VALUE).keySet());
+
+                for (int i=0; i<stale.size(); i++)
+                {
+                    FileInfo info = (FileInfo) filesByPath.remove(stale.get(i));
+                    index.removeValueFor(info.keyName, info);
+                    if (!scannedFiles.containsKey(stale.get(i)))
                     {
-                        index = newIndex;
+                        hashCache.remove(info.src);
+                        System.out.println("Info: Removing "+info.keyName+"  [Date "+info.created+"  Version: "+info.contentHash+"]");
                     }
                 }
-                catch (Exception e) {System.out.println("WARNING: Failed to Reindex File System Index rooted at "+rootDir+"  "+e);}
+
+                Iterator fresh = scannedFiles.values().iterator();
+                while (fresh.hasNext())
+                {
+                    FileInfo info = (FileInfo) fresh.next();
+                    index.putValueFor(info.keyName, info);
+                    filesByPath.put(pathKey(info.src), info);
+                }
             }
         }
+        hashCache.save();
     }
 
     class FileInfo extends DataInfo
@@ -91,98 +249,263 @@ public class FileSystemInfoIndex implements DataInfoIndex
         }
     }
 
-    private void scan(OrderedValueMap index, File f, Set existing) throws Exception
+    private static String pathKey(File f)
     {
-        if (f.isFile())
+        return f.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    /** 
+        Hashes are cached by (relative path, size, modification time) and persisted under the hidden HASH_CACHE_FILE in the root,
+        so that only new or changed files are hashed at startup and on reindexing.
+    */
+    class HashCache
+    {
+        final File cacheFile;
+        final Path rootPath;
+        final ConcurrentHashMap hashes;
+        volatile boolean modified;
+
+        HashCache()
         {
-            try
-            {
-                if (f.length() > 10*1024*1024)
-                    System.out.println("Scanning large file "+f+" to generate MD5....");
-                
-                MessageDigest md5Alg = MessageDigest.getInstance("md5");
-                byte[] buffer = new byte[1024*1024];
+            cacheFile = new File(rootDir, HASH_CACHE_FILE);
+            rootPath = new File(pathKey(rootDir)).toPath();
+            hashes = new ConcurrentHashMap();
+            modified = false;
 
-                InputStream fin = new BufferedInputStream(new FileInputStream(f));
+            if (!cacheFile.exists())
+                return;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8")))
+            {
                 while (true)
                 {
-                    int r = fin.read(buffer, 0, buffer.length);
-                    if (r < 0)
+                    String line = in.readLine();
+                    if (line == null)
                         break;
-                    md5Alg.update(buffer, 0, r);
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length == 4)
+                        hashes.put(parts[3], new String[]{parts[0], parts[1], parts[2]});
                 }
-                byte[] rawDigest = md5Alg.digest();
-                
-                String md5 = Utils.toHexString(rawDigest);
+            }
+            catch (Exception e)
+            {
+                System.out.println("WARNING: Ignoring unreadable hash cache "+cacheFile+"  "+e);
+                hashes.clear();
+            }
+        }
 
-                URI rootURI = rootDir.toURI();
-                URI uri = rootURI.relativize(f.toURI());
+        String relativePath(File f)
+        {
+            return rootPath.relativize(new File(pathKey(f)).toPath()).toString();
+        }
 
-                String keyName = uri.toASCIIString();
-                if (keyName.startsWith("/") || keyName.startsWith("\\"))
-                    keyName = keyName.substring(1);
+        String getHash(File f, long length, long lastModified)
+        {
+            String[] entry = (String[]) hashes.get(relativePath(f));
+            if ((entry == null) || !entry[1].equals(String.valueOf(length)) || !entry[2].equals(String.valueOf(lastModified)))
+                return null;
+            return entry[0];
+        }
 
-                int dot = keyName.lastIndexOf(".");
-                int dateIndex = keyName.lastIndexOf("__");
-                String versionKey = "";
+        void putHash(File f, long length, long lastModified, String md5)
+        {
+            // A file modified again within the timestamp granularity would keep the same size and time, so very recent files are rehashed next time
+            if (System.currentTimeMillis() - lastModified < RECENT_MODIFICATION_TIME)
+                return;
+            hashes.put(relativePath(f), new String[]{md5, String.valueOf(length), String.valueOf(lastModified)});
+            modified = true;
+        }
 
-                java.util.Date d = new java.util.Date();
-                if (dateIndex < 0)
-                    d = new java.util.Date(f.lastModified());
-                else
-                {
-                    String dateSpec = "";
+        void remove(File f)
+        {
+            if (hashes.remove(relativePath(f)) != null)
+                modified = true;
+        }
 
-                    if (dot > 0)
-                    {
-                        dateSpec = keyName.substring(dateIndex+2, dot);
-                        keyName = keyName.substring(0, dateIndex)+keyName.substring(dot);
-                    }
-                    else
-                    {
-                        dateSpec = keyName.substring(dateIndex+2);
-                        keyName = keyName.substring(0, dateIndex);
-                    }
+        void retainOnly(Collection files)
+        {
+            HashSet keep = new HashSet();
+            Iterator itt = files.iterator();
+            while (itt.hasNext())
+                keep.add(relativePath(((FileInfo) itt.next()).src));
+            if (hashes.keySet().retainAll(keep))
+                modified = true;
+        }
 
-                    int ddash = keyName.lastIndexOf("__");
-                    if (ddash > 0)
-                    {
-                        versionKey = keyName.substring(ddash+2);
-                        keyName = keyName.substring(0, ddash);
-                    }
-                    
-                    String[] fmts = new String[]{"yyyy-MM-dd'T'HH-mm", "yyyy-MM-dd_HH-mm", "yyyy_MM_dd_HH_mm", "yyyy-MM-dd-HH-mm", "yyyy-MM-dd", "yyyy_MM_dd"};
-                    for (int i=0; i<fmts.length; i++)
+        synchronized void save()
+        {
+            if (!modified)
+                return;
+            modified = false;
+
+            try
+            {
+                cacheFile.getParentFile().mkdirs();
+                File tmp = new File(cacheFile.getPath()+".tmp");
+                try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")))
+                {
+                    Iterator itt = hashes.entrySet().iterator();
+                    while (itt.hasNext())
                     {
-                        try
-                        {
-                            SimpleDateFormat fmt = new SimpleDateFormat(fmts[i]);
-                            d = fmt.parse(dateSpec);
-                            break;
-                        }
-                        catch (Exception e){}
+                        Map.Entry entry = (Map.Entry) itt.next();
+                        String[] value = (String[]) entry.getValue();
+                        out.print(value[0]+" "+value[1]+" "+value[2]+" "+entry.getKey()+"\n");
                     }
                 }
-
-                FileInfo info = new FileInfo(keyName, versionKey, f, md5, d);
-                index.putValueFor(keyName, info);
-
-                if (!existing.contains(f.getAbsolutePath()))
-                    System.out.println("Info: Adding "+info.keyName+"  [Date "+info.created+"  Version: "+info.contentHash+"  Total: "+index.getNumberOfValuesFor(keyName)+"]");
+                Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
             catch (Exception e)
             {
-                System.out.println("WARNING: failed to load information about file "+f+" ("+e+")");
+                System.out.println("WARNING: Failed to save hash cache "+cacheFile+"  "+e);
             }
         }
+    }
+
+    private static final ThreadLocal hashBuffers = ThreadLocal.withInitial(() -> new byte[HASH_BUFFER_SIZE]);
+
+    private static String md5(File f) throws Exception
+    {
+        MessageDigest md5Alg = MessageDigest.getInstance("md5");
+        byte[] buffer = (byte[]) hashBuffers.get();
+
+        InputStream fin = new FileInputStream(f);
+        try
+        {
+            while (true)
+            {
+                int r = fin.read(buffer, 0, buffer.length);
+                if (r < 0)
+                    break;
+                md5Alg.update(buffer, 0, r);
+            }
+        }
+        finally
+        {
+            fin.close();
+        }
+        return Utils.toHexString(md5Alg.digest());
+    }
+
+    private FileInfo createFileInfo(File f) throws Exception
+    {
+        long length = f.length();
+        long lastModified = f.lastModified();
+
+        String md5 = hashCache.getHash(f, length, lastModified);
+        if (md5 == null)
+        {
+            if (length > 10*1024*1024)
+                System.out.println("Scanning large file "+f+" to generate MD5....");
+            md5 = md5(f);
+            hashCache.putHash(f, length, lastModified, md5);
+        }
+
+        URI rootURI = rootDir.toURI();
+        URI uri = rootURI.relativize(f.toURI());
+
+        String keyName = uri.toASCIIString();
+        if (keyName.startsWith("/") || keyName.startsWith("\\"))
+            keyName = keyName.substring(1);
+
+        int dot = keyName.lastIndexOf(".");
+        int dateIndex = keyName.lastIndexOf("__");
+        String versionKey = "";
+
+        java.util.Date d = new java.util.Date();
+        if (dateIndex < 0)
+            d = new java.util.Date(f.lastModified());
         else
         {
+            String dateSpec = "";
+
+            if (dot > 0)
+            {
+                dateSpec = keyName.substring(dateIndex+2, dot);
+                keyName = keyName.substring(0, dateIndex)+keyName.substring(dot);
+            }
+            else
+            {
+                dateSpec = keyName.substring(dateIndex+2);
+                keyName = keyName.substring(0, dateIndex);
+            }
+
+            int ddash = keyName.lastIndexOf("__");
+            if (ddash > 0)
+            {
+                versionKey = keyName.substring(ddash+2);
+                keyName = keyName.substring(0, ddash);
+            }
+
+            String[] fmts = new String[]{"yyyy-MM-dd'T'HH-mm", "yyyy-MM-dd_HH-mm", "yyyy_MM_dd_HH_mm", "yyyy-MM-dd-HH-mm", "yyyy-MM-dd", "yyyy_MM_dd"};
+            for (int i=0; i<fmts.length; i++)
+            {
+                try
+                {
+                    SimpleDateFormat fmt = new SimpleDateFormat(fmts[i]);
+                    d = fmt.parse(dateSpec);
+                    break;
+                }
+                catch (Exception e){}
+            }
+        }
+
+        return new FileInfo(keyName, versionKey, f, md5, d);
+    }
+
+    /** Collects the FileInfo for every file under a directory, hashing files in parallel on the shared fork-join pool. */
+    class ScanTask extends RecursiveAction
+    {
+        final File f;
+        final Queue results;
+
+        ScanTask(File f, Queue results)
+        {
+            this.f = f;
+            this.results = results;
+        }
+
+        protected void compute()
+        {
+            if (f.isFile())
+            {
+                try
+                {
+                    results.add(createFileInfo(f));
+                }
+                catch (Exception e)
+                {
+                    System.out.println("WARNING: failed to load information about file "+f+" ("+e+")");
+                }
+                return;
+            }
+
             if (f.getName().startsWith(".")) // Skip any .name files
                 return;
 
             File[] ff = f.listFiles();
+            if (ff == null)
+                return;
+
+            ScanTask[] tasks = new ScanTask[ff.length];
             for (int i=0; i<ff.length; i++)
-                scan(index, ff[i], existing);
+                tasks[i] = new ScanTask(ff[i], results);
+            invokeAll(tasks);
+        }
+    }
+
+    private void scan(File f, OrderedValueMap index, Map files, Set existing) throws Exception
+    {
+        ConcurrentLinkedQueue results = new ConcurrentLinkedQueue();
+        scanPool.invoke(new ScanTask(f, results));
+
+        Iterator itt = results.iterator();
+        while (itt.hasNext())
+        {
+            FileInfo info = (FileInfo) itt.next();
+            index.putValueFor(info.keyName, info);
+            files.put(pathKey(info.src), info);
+
+            if (!existing.contains(pathKey(info.src)))
+                System.out.println("Info: Adding "+info.keyName+"  [Date "+info.created+"  Version: "+info.contentHash+"  Total: "+index.getNumberOfValuesFor(info.keyName)+"]");
         }
     }
 
@@ -204,7 +527,11 @@ public class FileSystemInfoIndex implements DataInfoIndex
 
     public InputStream getDataStream(DataInfo info) throws IOException
     {
-        FileInfo fi = (FileInfo) index.getMatchingValue(info.keyName, info);
+        FileInfo fi;
+        synchronized (this)
+        {
+            fi = (FileInfo) index.getMatchingValue(info.keyName, info);
+        }
         if (fi == null)
             return null;
         return new FileInputStream(fi.src);
@@ -148,6 +148,26 @@ public class OrderedValueMap
         values.add(aValue);
     }
 
+    /** Removes the given value instance, and the key itself once it has no values left. Returns true if the value was present. */
+    public synchronized boolean removeValueFor(String key, Comparable aValue)
+    {
+        ArrayList values = (ArrayList) index.get(key);
+        if (values == null)
+            return false;
+
+        for (int j=0; j<values.size(); j++)
+        {
+            if (values.get(j) == aValue)
+            {
+                values.remove(j);
+                if (values.size() == 0)
+                    index.remove(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static void main(String[] args) 
     {
         OrderedValueMap om = new OrderedValueMap();
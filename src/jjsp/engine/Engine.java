@@ -29,6 +29,7 @@ import jjsp.util.*;
 public class Engine
 {
     public static final String LOG_DIR = "logs/";
+    public static final long DEFAULT_RESTART_GRACE_PERIOD = 10000;
 
     private final Map args;
     private final String jsSrc;
@@ -37,7 +38,9 @@ public class Engine
 
     private HTTPServer server;
     private JJSPRuntime jjspRuntime;
+    private ServerSocketInfo[] openSockets;
     private boolean started, stop, running, restarting;
+    private volatile long restartGracePeriod;
 
     public Engine(String jsSrc, URI sourceURI, URI rootURI, File localCacheDir, Map args)
     {
@@ -48,6 +51,8 @@ public class Engine
         this.args = args;
 
         started = stop = running = restarting = false;
+        openSockets = new ServerSocketInfo[0];
+        restartGracePeriod = DEFAULT_RESTART_GRACE_PERIOD;
     }
 
     public synchronized void start()
@@ -78,6 +83,17 @@ public class Engine
         new Thread(new Restarter()).start();
     }
 
+    /** Sets how long (in milliseconds) a restart waits for requests still being handled by the previous runtime before stopping it. */
+    public void setRestartGracePeriod(long ms)
+    {
+        restartGracePeriod = ms;
+    }
+
+    public long getRestartGracePeriod()
+    {
+        return restartGracePeriod;
+    }
+
     public synchronized boolean started()
     {
         return started;
@@ -211,12 +227,7 @@ public class Engine
 
     protected void compile(JJSPRuntime runtime, String jsSrc) throws Exception
     {
-        getRuntime().init(jsSrc);
-    }
-
-    protected void recompile(JJSPRuntime runtime, String jsSrc) throws Exception
-    {
-        getRuntime().reparseJJSP(jsSrc);
+        runtime.init(jsSrc);
     }
 
     protected Logger getLogger()
@@ -239,6 +250,8 @@ public class Engine
             return null;
 
         server = new HTTPServer(mainFilter, getHTTPLog(jjspRuntime));
+        server.setVirtualThreads(jjspRuntime.usesVirtualThreads());
+        server.setAdmissionController(jjspRuntime.getAdmissionController());
         return server;
     }
 
@@ -291,86 +304,161 @@ public class Engine
         return ssInfo;
     }
 
+    private Exception listen(ServerSocketInfo info)
+    {
+        Exception listenError = null;
+        for (int i=0; i<5; i++)
+        {
+            listenError = null;
+            try
+            {
+                server.listenOn(info.port, info.isSecure, info.ipAddress, info.tlsConfig);
+                return null;
+            }
+            catch (Exception e)
+            {
+                listenError = e;
+            }
+            catch (Throwable t)
+            {
+                listenError = new IOException("Error Listening on "+info, t);
+            }
+
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (Exception e) {}
+        }
+        return listenError;
+    }
+
     private boolean openServerPorts(JJSPRuntime jr) throws Exception
     {
         ServerSocketInfo[] ssInfo = getDeclaredServerSocketInfo();
 
-        boolean isListening = false;
+        ArrayList opened = new ArrayList();
         for (int p=0; p<ssInfo.length; p++)
         {
-            Exception listenError = null;
-            ServerSocketInfo info = ssInfo[p];
+            Exception listenError = listen(ssInfo[p]);
+            if (listenError == null)
+                opened.add(ssInfo[p]);
+            serverListening(server, ssInfo[p], listenError);
+        }
 
-            for (int i=0; i<5; i++)
-            {
-                listenError = null;
-                try
-                {
-                    server.listenOn(info.port, info.isSecure, info.ipAddress);
-                    isListening = true;
-                    break;
-                }
-                catch (Exception e)
-                {
-                    listenError = e;
-                }
-                catch (Throwable t)
-                {
-                    listenError = new IOException("Error Listening on "+info, t);
-                }
+        setOpenSockets(opened);
+        return opened.size() > 0;
+    }
 
-                try
-                {
-                    Thread.sleep(100);
-                }
-                catch (Exception e) {}
+    private synchronized void setOpenSockets(ArrayList opened)
+    {
+        openSockets = new ServerSocketInfo[opened.size()];
+        opened.toArray(openSockets);
+    }
+
+    private static boolean sameSocket(ServerSocketInfo s1, ServerSocketInfo s2)
+    {
+        if ((s1.port != s2.port) || (s1.isSecure != s2.isSecure) || !Objects.equals(s1.ipAddress, s2.ipAddress))
+            return false;
+        if ((s1.tlsConfig == null) || (s2.tlsConfig == null))
+            return s1.tlsConfig == s2.tlsConfig;
+        return s1.tlsConfig.hasSameSettings(s2.tlsConfig);
+    }
+
+    /** Brings the open ports into line with those declared by the current runtime, leaving those declared by both open (and their connections untouched). */
+    private boolean updateServerPorts() throws Exception
+    {
+        ServerSocketInfo[] previous = null;
+        synchronized (this)
+        {
+            previous = openSockets;
+        }
+        ServerSocketInfo[] ssInfo = getDeclaredServerSocketInfo();
+
+        ArrayList opened = new ArrayList();
+        for (int i=0; i<previous.length; i++)
+        {
+            ServerSocketInfo kept = null;
+            for (int p=0; (p<ssInfo.length) && (kept == null); p++)
+                if (sameSocket(previous[i], ssInfo[p]))
+                    kept = ssInfo[p];
+
+            if (kept == null)
+                server.stopListeningOn(previous[i].port, false);
+            else
+            {
+                //The socket stays bound with the previous runtime's TLS context, but its handshakes are now counted by this runtime's configuration
+                if (kept.tlsConfig != null)
+                    server.setTLSConfiguration(kept.port, kept.tlsConfig);
+                opened.add(kept);
             }
+        }
+
+        for (int p=0; p<ssInfo.length; p++)
+        {
+            boolean alreadyOpen = false;
+            for (int i=0; (i<opened.size()) && !alreadyOpen; i++)
+                alreadyOpen = sameSocket((ServerSocketInfo) opened.get(i), ssInfo[p]);
 
-            serverListening(server, info, listenError);
+            Exception listenError = null;
+            if (!alreadyOpen)
+            {
+                listenError = listen(ssInfo[p]);
+                if (listenError == null)
+                    opened.add(ssInfo[p]);
+            }
+            serverListening(server, ssInfo[p], listenError);
         }
 
-        return isListening;
+        setOpenSockets(opened);
+        return opened.size() > 0;
     }
 
+    /**
+       Compiles a new runtime while the current one carries on serving. If that fails, the current runtime is left running. Otherwise the new
+       main filter replaces the old one in the running server, whose listening sockets and open connections carry over, and the old runtime is
+       stopped once its requests in progress have finished (or the grace period has passed). A full stop and start is only needed when the new
+       runtime has no main filter or needs a different thread mode.
+     */
     class Restarter implements Runnable
     {
         public void run()
         {
-            boolean launchOK = false;
+            JJSPRuntime jr = null;
             try
             {
                 synchronized (Engine.this)
                 {
                     if (stop)
                         throw new IllegalStateException("Engine stopped before restart");
-
-                    stopInternal();
-                    started = true;
-                    restarting = true;
                 }
 
-                JJSPRuntime jr = getRuntime();
-                jr.reset(sourceURI);
+                jr = new JJSPRuntime(rootURI, localCacheDir, args);
+                jr.addResourcePathRoot(sourceURI);
                 jr.setLogger(getLogger());
-
-                recompile(jr, jsSrc);
-                if (createServer(jr) == null)
+                compile(jr, jsSrc);
+            }
+            catch (Throwable t)
+            {
+                runtimeError(t);
+                try
                 {
-                    launchComplete(null, jjspRuntime, false);
-                    return;
+                    if (jr != null)
+                        jr.engineStopped();
                 }
+                catch (Throwable tt) {}
 
-                boolean isListening = openServerPorts(jr);
-                launchComplete(server, jjspRuntime, isListening);
-
-                if (!isListening)
+                synchronized (Engine.this)
                 {
-                    if (getDeclaredServerSocketInfo().length > 0)
-                        runtimeError(new IllegalStateException("Failed to open required ports"));
-                    stop();
+                    restarting = false;
                 }
-                else
-                    launchOK = true;
+                return;
+            }
+
+            boolean launchOK = false;
+            try
+            {
+                launchOK = switchTo(jr);
             }
             catch (Throwable t)
             {
@@ -394,6 +482,67 @@ public class Engine
                 }
             }
         }
+
+        private boolean switchTo(JJSPRuntime jr) throws Exception
+        {
+            JJSPRuntime previous = null;
+            HTTPServer current = null;
+            synchronized (Engine.this)
+            {
+                if (stop)
+                    throw new IllegalStateException("Engine stopped before restart");
+                previous = jjspRuntime;
+                current = server;
+            }
+
+            HTTPRequestFilter mainFilter = jr.getMainRequestFilter();
+            if ((mainFilter == null) || (current == null) || (current.usesVirtualThreads() != jr.usesVirtualThreads()))
+            {
+                stopInternal();
+                synchronized (Engine.this)
+                {
+                    jjspRuntime = jr;
+                    started = true;
+                    restarting = true;
+                }
+
+                if (createServer(jr) == null)
+                {
+                    launchComplete(null, jr, false);
+                    return false;
+                }
+                return launched(openServerPorts(jr));
+            }
+
+            synchronized (Engine.this)
+            {
+                jjspRuntime = jr;
+            }
+            current.setAdmissionController(jr.getAdmissionController());
+            HTTPServer.Generation draining = current.replaceMainFilter(mainFilter, getHTTPLog(jr));
+
+            boolean isListening = updateServerPorts();
+            if (!draining.awaitIdle(restartGracePeriod))
+                log(Level.WARNING, "Requests still in progress on the previous runtime after "+restartGracePeriod+" ms");
+            try
+            {
+                previous.engineStopped();
+            }
+            catch (Throwable t)
+            {
+                runtimeError(t);
+            }
+
+            return launched(isListening);
+        }
+
+        private boolean launched(boolean isListening) throws Exception
+        {
+            launchComplete(server, jjspRuntime, isListening);
+            if (!isListening && (getDeclaredServerSocketInfo().length > 0))
+                runtimeError(new IllegalStateException("Failed to open required ports"));
+            return isListening;
+        }
     }
 
     class Initialiser implements Runnable
@@ -565,7 +714,7 @@ public class Engine
 
         String jsSrc = Utils.loadText(srcFile);
         if (srcFile.getName().endsWith(".jet") || srcFile.getName().endsWith(".jjsp"))
-            jsSrc = new ScriptParser(jsSrc).translateToJavascript();
+            jsSrc = ScriptCache.translateToJavascript(jsSrc, cacheDir);
 
         Engine engine = new DefaultEngine(jsSrc, srcFile, rootDir, cacheDir, args);
         engine.start();
@@ -23,6 +23,7 @@ import java.net.*;
 import java.util.*;
 import java.util.zip.*;
 import java.lang.reflect.*;
+import java.nio.*;
 
 import java.awt.image.*;
 import javax.imageio.*;
@@ -43,7 +44,8 @@ public class Environment extends ImageGenerator
 
     private final URI rootURI;
 
-    private Map localContent, args;
+    private Map args;
+    private LocalStore localStore;
     private ArrayList resourcePathRoots;
     private File localCacheDir, servicesCacheDir;
 
@@ -51,6 +53,7 @@ public class Environment extends ImageGenerator
     private HashMap serviceLoaders;
     private URLClassLoader libraryLoader;
     private TreeMap registeredDataInfoIndices;
+    private ResourceResolver resolver;
 
     public Environment() throws IOException
     {
@@ -94,6 +97,8 @@ public class Environment extends ImageGenerator
         localCacheDir.mkdirs();
         servicesCacheDir = new File(localCacheDir, SERVICES);
         servicesCacheDir.mkdir();
+        resolver = new ResourceResolver(new File(localCacheDir, ResourceResolver.HTTP_CACHE));
+        localStore = new LocalStore();
 
         this.args = new LinkedHashMap();
         if (args != null)
@@ -111,7 +116,7 @@ public class Environment extends ImageGenerator
 
     synchronized void reset(URI initialResourceURI)
     {
-        localContent = new TreeMap();
+        localStore.clear();
 
         resourcePathRoots = new ArrayList();
         resourcePathRoots.add(rootURI);
@@ -489,39 +494,100 @@ public class Environment extends ImageGenerator
         }
     }
 
-    public URIContent loadFromResourcePath(String path) throws IOException
+    public ResourceResolver getResourceResolver()
+    {
+        return resolver;
+    }
+
+    private URI[] getCandidateURIs(String path, URI[] roots)
     {
-        StringBuffer buf = new StringBuffer();
         try
         {
             URI absoluteURI = new URI(path);
             if (absoluteURI.isAbsolute())
+                return new URI[]{absoluteURI};
+        }
+        catch (Exception e) {}
+
+        String escapedPath = escapeResourcePath(path);
+        ArrayList result = new ArrayList();
+        for (int i=0; i<roots.length; i++)
+        {
+            try
             {
-                byte[] data = Utils.load(absoluteURI);
-                return new URIContent(absoluteURI, data);
+                result.add(roots[i].resolve(escapedPath));
             }
+            catch (Exception e) {}
         }
-        catch (Exception e) {buf.append(path+"; ");}
 
-        Iterator itt = null;
-        synchronized (this)
+        URI[] uris = new URI[result.size()];
+        result.toArray(uris);
+        return uris;
+    }
+
+    private static boolean isScriptPath(String path)
+    {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".js") || lower.endsWith(".jf") || lower.endsWith(".jjsp") || lower.endsWith(".jet");
+    }
+
+    /** 
+        Starts fetching the resources from every resource root in the background, so that later loads of them do not wait. 
+        Scripts are scanned for their own includes as they arrive, and those are prefetched in turn, relative to the script as include would.
+    */
+    public void prefetch(String[] paths)
+    {
+        prefetch(paths, getResourcePathRoots());
+    }
+
+    private void prefetch(String[] paths, URI[] roots)
+    {
+        for (int i=0; i<paths.length; i++)
         {
-            itt = resourcePathRoots.iterator();
+            URI[] candidates = getCandidateURIs(paths[i], roots);
+            for (int j=0; j<candidates.length; j++)
+            {
+                URI uri = candidates[j];
+                if (!isScriptPath(paths[i]))
+                {
+                    resolver.prefetch(uri);
+                    continue;
+                }
+
+                resolver.prefetch(uri, (data) ->
+                {
+                    URI[] nestedRoots = Arrays.copyOf(roots, roots.length+1);
+                    nestedRoots[roots.length] = uri;
+                    prefetch(ResourceResolver.findIncludes(toAsciiString((byte[]) data)), nestedRoots);
+                });
+            }
         }
+    }
 
-        String escapedPath = escapeResourcePath(path);
-        while (itt.hasNext())
+    /** Prefetches the resources named by literal paths in calls to include, parse and the local store loading functions in the script source. */
+    public void prefetchIncludes(String scriptSource)
+    {
+        prefetch(ResourceResolver.findIncludes(scriptSource));
+    }
+
+    public URIContent loadFromResourcePath(String path) throws IOException
+    {
+        StringBuffer buf = new StringBuffer();
+        URI[] candidates = getCandidateURIs(path, getResourcePathRoots());
+        for (int i=0; i<candidates.length; i++)
+            resolver.prefetch(candidates[i]);
+
+        for (int i=0; i<candidates.length; i++)
         {
-            URI uri = (URI) itt.next();
-            try
+            byte[] data = resolver.load(candidates[i]);
+            if (data != null)
             {
-                URI resolvedURI = uri.resolve(escapedPath);
-                byte[] data = Utils.load(resolvedURI);
-                return new URIContent(resolvedURI, data);
+                for (int j=i+1; j<candidates.length; j++)
+                    resolver.discard(candidates[j]);
+                return new URIContent(candidates[i], data);
             }
-            catch (Exception e) {}
 
-            buf.append(uri.toString()+"; ");
+            buf.append(candidates[i].toString()+"; ");
         }
 
         throw new IOException("Failed to find resource '"+path+"' in path '"+buf+"'");
@@ -601,33 +667,42 @@ public class Environment extends ImageGenerator
                 throw new IOException("Unknown URI scheme: '"+uri+"'");
         }
 
-        synchronized (this)
-        {
-            localContent.put(path, contents);
-        }
+        if (contents instanceof URI)
+            localStore.put(path, (URI) contents);
+        else if (contents instanceof URIContent)
+            localStore.put(path, ((URIContent) contents).data);
+        else
+            localStore.put(path, (byte[]) contents);
         return message;
     }
 
+    public LocalStore getLocalStore()
+    {
+        return localStore;
+    }
+
+    /** 
+        Limits the bytes of local store content kept on the heap. Content at least spillThreshold bytes long, or which would exceed the limit,
+        is memory mapped from files under the local cache directory instead if spillToDisk is true (otherwise storing it beyond the limit fails).
+    */
+    public void setLocalStoreLimits(long maxHeapBytes, int spillThreshold, boolean spillToDisk)
+    {
+        localStore.setLimits(maxHeapBytes, spillThreshold);
+        localStore.setSpillDirectory(spillToDisk ? new File(localCacheDir, LocalStore.SPILL_DIR) : null);
+    }
+
     public String[] listLocal()
     {
-        synchronized (this)
-        {
-            String[] result = new String[localContent.size()];
-            localContent.keySet().toArray(result);
-            return result;
-        }
+        return localStore.list();
     }
 
     public boolean deleteLocal(String name)
     {
-        synchronized (this)
-        {
-            if (localContent.remove(name) != null)
-                return true;
+        if (localStore.remove(name))
+            return true;
 
-            name = checkLocalResourcePath(name);
-            return localContent.remove(name) != null;
-        }
+        name = checkLocalResourcePath(name);
+        return localStore.remove(name);
     }
 
     public byte[] getLocal(String name)
@@ -635,37 +710,31 @@ public class Environment extends ImageGenerator
         if ((name == null) || (name.length() == 0))
             return null;
 
-        Object obj = null;
-        synchronized (this)
-        {
-            obj = localContent.get(name);
-            if (obj == null)
-                name = checkLocalResourcePath(name);
+        if (!localStore.contains(name))
+            name = checkLocalResourcePath(name);
+        return localStore.get(name);
+    }
 
-            obj = localContent.get(name);
-            if (obj == null)
-                return null;
-        }
+    /** Returns a read only view of the local content, which is memory mapped rather than copied if the content was spilled to disk. */
+    public ByteBuffer getLocalBuffer(String name)
+    {
+        if ((name == null) || (name.length() == 0))
+            return null;
 
-        if (obj instanceof byte[])
-            return (byte[]) obj;
-        else if (obj instanceof URI)
-        {
-            URI uri = (URI) obj;
-            try
-            {
-                byte[] result = Utils.load(uri);
-                URIContent content = new URIContent(uri, result);
-                putLocal(name, content);
-                return content.data;
-            }
-            catch (Exception e) {}
+        if (!localStore.contains(name))
+            name = checkLocalResourcePath(name);
+        return localStore.getBuffer(name);
+    }
+
+    /** Returns a read only view of the local content gzip or deflate encoded, or null if it has no such encoding worth using. Encodings are made once per entry. */
+    public ByteBuffer getLocalEncodedBuffer(String name, String encoding)
+    {
+        if ((name == null) || (name.length() == 0))
             return null;
-        }
-        else if (obj instanceof URIContent)
-            return ((URIContent) obj).data;
 
-        throw new IllegalStateException("Unknown object type in local store "+obj);
+        if (!localStore.contains(name))
+            name = checkLocalResourcePath(name);
+        return localStore.getEncodedBuffer(name, encoding);
     }
 
     public String getLocalString(String name)
@@ -20,7 +20,10 @@ package jjsp.engine;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.lang.reflect.*;
 import java.util.logging.*;
 import java.util.function.*;
@@ -41,7 +44,7 @@ public class JJSPRuntime extends Environment
 
     public static final int DEFAULT_PORT_BASE = 2016;
 
-    private boolean initComplete, restarting;
+    private boolean initComplete, restarting, virtualThreads;
     private volatile boolean stopRequested;
 
     private HashSet includedFiles;
@@ -50,26 +53,65 @@ public class JJSPRuntime extends Environment
     private ArrayList closeOnExit;
     private HTTPServerLogger httpLogger;
     private HTTPRequestFilter mainFilter;
-
-    private Logger logger;
-    private StringWriter outputWriter;
+    private AdmissionController admissionController;
+
+    private volatile Logger logger;
+    private OutputRing output, logRecords;
+    private Writer outputWriter;
+    private StringBuilder pendingOutput;
+    private long reportedOutputDrops, reportedLogDrops;
+    private final Object outputLock;
+    private final AtomicBoolean logDispatchScheduled;
     private ScriptEngine scriptEngine;
 
     private static ScriptEngineManager engineManager = new ScriptEngineManager();
 
+    private static final ExecutorService logDispatcher = Executors.newSingleThreadExecutor((r) ->
+    {
+        Thread t = new Thread(r, "JJSP Log Dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+
     public JJSPRuntime(URI rootURI, File localCacheDir, Map args) throws IOException
     {
         super(rootURI, localCacheDir, args);
 
         initComplete = false;
         restarting = false;
+        virtualThreads = false;
         stopRequested = false;
         shutdownHook = null;
         closeOnExit = new ArrayList();
         includedFiles = new HashSet();
 
         serverSockets = new ArrayList();
-        outputWriter = new StringWriter();
+
+        // Console output and log records are queued without locking by the (request) threads producing them, and handed on by their consumers
+        output = new OutputRing();
+        logRecords = new OutputRing();
+        pendingOutput = new StringBuilder();
+        reportedOutputDrops = reportedLogDrops = 0;
+        outputLock = new Object();
+        logDispatchScheduled = new AtomicBoolean(false);
+        outputWriter = new Writer()
+        {
+            public void write(char[] buf, int off, int len)
+            {
+                if (len > 0)
+                    output.offer(new String(buf, off, len));
+            }
+
+            public void write(String str)
+            {
+                if (str.length() > 0)
+                    output.offer(str);
+            }
+
+            public void flush() {}
+
+            public void close() {}
+        };
     }
 
     public synchronized void registerNamedLogger(String name) throws IOException
@@ -94,7 +136,7 @@ public class JJSPRuntime extends Environment
         LogManager.getLogManager().addLogger(new LL(name));
     }
 
-    public synchronized void setLogger(Logger log)
+    public void setLogger(Logger log)
     {
         logger = log;
     }
@@ -159,9 +201,11 @@ public class JJSPRuntime extends Environment
 
             synchronized (this)
             {
+                scriptEngine = ScriptCache.createScriptEngine(getLocalCacheDir(), getLibraryLoader());
                 try
                 {
-                    scriptEngine = engineManager.getEngineByName("nashorn");
+                    if (scriptEngine == null)
+                        scriptEngine = engineManager.getEngineByName("nashorn");
                 }
                 catch (Exception e) {}
 
@@ -170,6 +214,7 @@ public class JJSPRuntime extends Environment
             }
 
             setupScriptVariables();
+            prefetchIncludes(jsSource);
             scriptEngine.eval(jsSource);
 
             synchronized (this)
@@ -179,6 +224,7 @@ public class JJSPRuntime extends Environment
         }
         finally
         {
+            getResourceResolver().discardPrefetched();
             Thread.currentThread().setContextClassLoader(currentLoader);
         }
     }
@@ -202,6 +248,7 @@ public class JJSPRuntime extends Environment
             }
 
             setupScriptVariables();
+            prefetchIncludes(jsSource);
             scriptEngine.eval(jsSource);
         }
         finally
@@ -210,6 +257,7 @@ public class JJSPRuntime extends Environment
             {
                 restarting = false;
             }
+            getResourceResolver().discardPrefetched();
             Thread.currentThread().setContextClassLoader(currentLoader);
         }
     }
@@ -222,11 +270,22 @@ public class JJSPRuntime extends Environment
     }
 
     public synchronized boolean addServerSocket(int port, boolean isSecure, InetAddress addr)
+    {
+        return addServerSocket(port, isSecure, addr, null);
+    }
+
+    /** Adds a secure server socket using the given TLS configuration (key store, protocols, cipher suites and session cache), rather than the JVM default. */
+    public synchronized boolean addServerSocket(int port, InetAddress addr, TLSConfiguration tlsConfig)
+    {
+        return addServerSocket(port, true, addr, tlsConfig);
+    }
+
+    public synchronized boolean addServerSocket(int port, boolean isSecure, InetAddress addr, TLSConfiguration tlsConfig)
     {
         if (initialised())
             throw new IllegalStateException("Cannot add server socket after initialisation");
 
-        ServerSocketInfo newSS = new ServerSocketInfo(port, isSecure, addr);
+        ServerSocketInfo newSS = new ServerSocketInfo(port, isSecure, addr, tlsConfig);
         for (int i=0; i<serverSockets.size(); i++)
         {
             ServerSocketInfo ss = (ServerSocketInfo) serverSockets.get(i);
@@ -252,6 +311,50 @@ public class JJSPRuntime extends Environment
         return addServerSocket(port, isSecure, null);
     }
 
+    public synchronized boolean addServerSocket(Object portObj, TLSConfiguration tlsConfig)
+    {
+        if (initialised())
+            throw new IllegalStateException("Cannot add server socket after initialisation");
+
+        int port = Integer.parseInt(portObj.toString().trim());
+        return addServerSocket(port, true, null, tlsConfig);
+    }
+
+    /** Creates a TLS configuration for addServerSocket from a key store file (JKS or PKCS12), to which protocols, cipher suites and session cache settings can then be applied. */
+    public TLSConfiguration createTLSConfiguration(String keyStorePath, String keyStorePassword)
+    {
+        return new TLSConfiguration(keyStorePath, keyStorePassword);
+    }
+
+    /** Requests that the HTTP server handles each connection on a virtual thread rather than a platform thread pool. Must be set before initialisation completes. */
+    public synchronized void setVirtualThreads(boolean value)
+    {
+        if (initialised())
+            throw new IllegalStateException("Cannot change server thread mode after initialisation");
+        if (value && !Server.virtualThreadsSupported())
+            throw new IllegalStateException("Virtual threads not supported by this JVM ("+System.getProperty("java.version")+")");
+        virtualThreads = value;
+    }
+
+    public synchronized boolean usesVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /** Limits the open connections and concurrently executing requests of the HTTP server; excess requests wait up to queueTimeoutMillis in a queue of at most maxQueuedRequests and are otherwise refused with a 503. */
+    public synchronized AdmissionController setAdmissionLimits(int maxConnections, int maxRequests, int maxQueuedRequests, long queueTimeoutMillis)
+    {
+        if (initialised())
+            throw new IllegalStateException("Cannot change server admission limits after initialisation");
+        admissionController = new AdmissionController(maxConnections, maxRequests, maxQueuedRequests, queueTimeoutMillis);
+        return admissionController;
+    }
+
+    public synchronized AdmissionController getAdmissionController()
+    {
+        return admissionController;
+    }
+
     public synchronized boolean closeOnExit(Object obj)
     {
         if (obj == null)
@@ -329,19 +432,20 @@ public class JJSPRuntime extends Environment
                 log("warn", "Exception in registered shutdown hook "+e);
             }
         }
+        flushLogs(2000);
         closeEnvironment();
     }
 
-    public synchronized String printStackTrace(Throwable t)
+    public String printStackTrace(Throwable t)
     {
         if (t == null)
             return "";
         String s = toString(t);
-        outputWriter.write(s);
+        output.offer(s);
         return s;
     }
 
-    public synchronized String print(Object obj)
+    private static String toOutputString(Object obj)
     {
         if (obj == null)
             return "";
@@ -352,42 +456,43 @@ public class JJSPRuntime extends Environment
             long longVal = Math.round(nn.doubleValue());
 
             if (Math.abs(longVal - nn.doubleValue()) < 1e-8)
-            {
-                String roundedNumericString = String.valueOf(longVal);
-                outputWriter.write(roundedNumericString);
-                return roundedNumericString;
-            }
+                return String.valueOf(longVal);
         }
 
-        String s = obj.toString();
-        outputWriter.write(s);
+        return obj.toString();
+    }
+
+    public String print(Object obj)
+    {
+        String s = toOutputString(obj);
+        if (s.length() > 0)
+            output.offer(s);
         return s;
     }
 
-    public synchronized String println()
+    public String println()
     {
         return println(null);
     }
 
-    public synchronized String println(Object obj)
+    public String println(Object obj)
     {
-        if (obj == null)
-            return print("\n");
-        else
-            return print(obj) + print("\n");
+        String s = toOutputString(obj)+"\n";
+        output.offer(s);
+        return s;
     }
 
-    public synchronized void log(Object obj)
+    public void log(Object obj)
     {
         log(null, obj);
     }
 
-    public synchronized void log(Object level, Object obj)
+    public void log(Object level, Object obj)
     {
         log(level, obj, null);
     }
 
-    public synchronized void log(Object level, Object obj, Throwable t)
+    public void log(Object level, Object obj, Throwable t)
     {
         Level l = Level.INFO;
         if (level != null)
@@ -414,12 +519,9 @@ public class JJSPRuntime extends Environment
             }
 
             if (logger == null)
-            {
-                print(new Date()+"  "+sourceFile+" "+methodName+" ["+lineNumber+"]  "+obj+"\n");
-                print(toString(t)+"\n");
-            }
+                print(new Date()+"  "+sourceFile+" "+methodName+" ["+lineNumber+"]  "+obj+"\n"+toString(t)+"\n");
             else
-                logger.logp(l, sourceFile, methodName+" ("+lineNumber+")", String.valueOf(obj), t);
+                queueLog(l, sourceFile, methodName+" ("+lineNumber+")", String.valueOf(obj), t);
         }
         else
         {
@@ -438,33 +540,105 @@ public class JJSPRuntime extends Environment
             if (logger == null)
                 print(new Date()+"  "+sourceFile+" "+methodName+" ["+lineNumber+"]  "+obj+"\n");
             else
-                logger.logp(l, sourceFile, methodName+" ("+lineNumber+")", String.valueOf(obj));
+                queueLog(l, sourceFile, methodName+" ("+lineNumber+")", String.valueOf(obj), null);
         }
     }
 
-    public synchronized String getAndClearJJSPOutput()
+    private void queueLog(Level level, String sourceClass, String sourceMethod, String message, Throwable t)
+    {
+        Logger target = logger;
+        if ((target == null) || !target.isLoggable(level))
+            return;
+
+        LogRecord lr = new LogRecord(level, message);
+        lr.setLoggerName(target.getName());
+        lr.setSourceClassName(sourceClass);
+        lr.setSourceMethodName(sourceMethod);
+        lr.setThrown(t);
+
+        logRecords.offer(new Object[]{target, lr});
+        if (logDispatchScheduled.compareAndSet(false, true))
+            logDispatcher.execute(() -> dispatchLogs());
+    }
+
+    private void dispatchLogs()
+    {
+        logDispatchScheduled.set(false);
+        logRecords.drain((item) ->
+        {
+            Object[] entry = (Object[]) item;
+            try
+            {
+                ((Logger) entry[0]).log((LogRecord) entry[1]);
+            }
+            catch (Exception e) {}
+        });
+
+        long dropped = logRecords.getDropped();
+        Logger target = logger;
+        if ((dropped > reportedLogDrops) && (target != null))
+        {
+            target.log(Level.WARNING, (dropped - reportedLogDrops)+" log records dropped as the log queue was full");
+            reportedLogDrops = dropped;
+        }
+    }
+
+    /** Waits (for up to the given time) for the log records queued so far to be passed to the logger. */
+    public void flushLogs(long msToWait)
+    {
+        try
+        {
+            logDispatcher.submit(() -> dispatchLogs()).get(msToWait, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e) {}
+    }
+
+    /** Returns the number of console output items and log records dropped because their queues were full. */
+    public long getDroppedOutputCount()
+    {
+        return output.getDropped() + logRecords.getDropped();
+    }
+
+    private void drainOutput()
+    {
+        output.drain((s) -> pendingOutput.append((String) s));
+        long dropped = output.getDropped();
+        if (dropped > reportedOutputDrops)
+        {
+            pendingOutput.append("\n["+(dropped - reportedOutputDrops)+" console output items dropped]\n");
+            reportedOutputDrops = dropped;
+        }
+    }
+
+    public String getAndClearJJSPOutput()
     {
         return getAndClearJJSPOutput(true);
     }
 
-    public synchronized String getAndClearJJSPOutput(boolean stripMultipleBlankLines)
+    public String getAndClearJJSPOutput(boolean stripMultipleBlankLines)
     {
-        if (outputWriter.getBuffer().length() == 0)
-            return "";
+        synchronized (outputLock)
+        {
+            drainOutput();
+            if (pendingOutput.length() == 0)
+                return "";
 
-        outputWriter.flush();
-        String result = outputWriter.toString();
-        if (stripMultipleBlankLines)
-            result = stripMultipleBlankLines(result);
+            String result = pendingOutput.toString();
+            if (stripMultipleBlankLines)
+                result = stripMultipleBlankLines(result);
 
-        outputWriter.getBuffer().setLength(0);
-        return result;
+            pendingOutput.setLength(0);
+            return result;
+        }
     }
 
-    public synchronized String getJJSPOutput()
+    public String getJJSPOutput()
     {
-        outputWriter.flush();
-        return outputWriter.toString();
+        synchronized (outputLock)
+        {
+            drainOutput();
+            return pendingOutput.toString();
+        }
     }
 
     public synchronized boolean isTopLevelSource()
@@ -524,13 +698,13 @@ public class JJSPRuntime extends Environment
             String lower = sourcePath.toLowerCase();
             if (lower.endsWith(".jjsp") || lower.endsWith(".jet"))
             {
-                ScriptParser jjspParser = new ScriptParser(jsSource);
-                jsSource = jjspParser.translateToJavascript();
+                jsSource = ScriptCache.translateToJavascript(jsSource, getLocalCacheDir());
                 description = "JJSP Script";
             }
             else if (lower.endsWith(".jf"))
                 description = "JJSP Javascript";
 
+            prefetchIncludes(jsSource);
             synchronized (this)
             {
                 originalSourcePath = (String) scriptEngine.get(ScriptEngine.FILENAME);
@@ -573,12 +747,12 @@ public class JJSPRuntime extends Environment
             String lower = sourcePath.toLowerCase();
             if (lower.endsWith(".jjsp") || lower.endsWith(".jet"))
             {
-                ScriptParser jjspParser = new ScriptParser(jsSource);
-                jsSource = jjspParser.translateToJavascript();
+                jsSource = ScriptCache.translateToJavascript(jsSource, getLocalCacheDir());
             }
             else if (!lower.endsWith(".js"))
                 throw new IllegalStateException("Can only use the 'parse' command with JJSP and JS source files");
 
+            prefetchIncludes(jsSource);
             originalSourcePath = (String) scriptEngine.get(ScriptEngine.FILENAME);
             scriptEngine.put(ScriptEngine.FILENAME, srcURI.toString());
 
@@ -844,13 +1018,12 @@ public class JJSPRuntime extends Environment
         return new StaticDataFilter(name, fixedURI, getLocal(localResourceName), cacheTimeSecs, contentType, chain);
     }
 
+    /** Returns a copy of the filter which serves gzip or deflate encoded content (compressed once, up front) to clients which accept it, and the identity content otherwise. */
     public StaticDataFilter createCompressedStaticDataFilter(StaticDataFilter src)
     {
-        byte[] raw = src.getRawBytes();
-        byte[] compressed = Utils.gzip(raw);
-
-        StaticDataFilter result = new StaticDataFilter(src.getName(), src.getFixedURLPath(), compressed, src.getCacheTimeSeconds(), src.getContentType(), src.getFilterChain());
-        result.setContentEncoding("gzip");
+        StaticDataFilter result = new StaticDataFilter(src.getName(), src.getFixedURLPath(), src.getRawBytes(), src.getCacheTimeSeconds(), src.getContentType(), src.getFilterChain());
+        result.setUseCompression(true);
+        result.precompress();
         return result;
     }
 
@@ -882,11 +1055,24 @@ public class JJSPRuntime extends Environment
         return new ProxyFilter(name, hostFunc, htmlEditor, chain);
     }
 
+    public UpstreamGroup createUpstreamGroup(String[] hosts, String balancing) throws Exception {
+        return new UpstreamGroup(hosts, balancing);
+    }
+
+    public ProxyFilter createProxyFilter(String name, UpstreamGroup group, HTTPRequestFilter chain) {
+        return new ProxyFilter(name, group, chain);
+    }
+
+    public ProxyFilter createProxyFilter(String name, String[] hosts, String balancing, HTTPRequestFilter chain) throws Exception {
+        return new ProxyFilter(name, new UpstreamGroup(hosts, balancing), chain);
+    }
+
     public class LocalFilter extends AbstractRequestFilter
     {
         private int cacheTime;
         private HashSet validPaths;
         private String pathPrefix, defaultContentType, contentEncoding;
+        private boolean useCompression;
 
         public LocalFilter(String name, String[] paths, int cacheTime, HTTPRequestFilter chain)
         {
@@ -896,6 +1082,7 @@ public class JJSPRuntime extends Environment
             pathPrefix = "";
             defaultContentType = null;
             contentEncoding = null;
+            useCompression = false;
 
             validPaths = new HashSet();
             for (int i=0; i<paths.length; i++)
@@ -912,6 +1099,12 @@ public class JJSPRuntime extends Environment
             contentEncoding = encoding;
         }
 
+        /** When set, compressible content is sent gzip or deflate encoded to clients which accept it. Encodings are kept with the local store entry until it is replaced or deleted. */
+        public void setUseCompression(boolean value)
+        {
+            useCompression = value;
+        }
+
         public String getPathPrefix()
         {
             return pathPrefix;
@@ -936,9 +1129,14 @@ public class JJSPRuntime extends Environment
             cacheTime = seconds;
         }
 
-        protected byte[] getContentFor(String path)
+        protected ByteBuffer getContentFor(String path)
+        {
+            return getLocalBuffer(path);
+        }
+
+        protected ByteBuffer getEncodedContentFor(String path, String encoding)
         {
-            return getLocal(path);
+            return getLocalEncodedBuffer(path, encoding);
         }
 
         @Override
@@ -958,11 +1156,31 @@ public class JJSPRuntime extends Environment
             if (!validPaths.contains(path) && !validPaths.contains(checkLocalResourcePath(path)))
                 return false;
 
-            byte[] content = getContentFor(path);
+            ByteBuffer content = getContentFor(path);
             if (content == null)
                 return false;
 
-            long start = 0, end = content.length-1;
+            HTTPResponseHeaders respHeaders = response.getHeaders();
+            respHeaders.guessAndSetContentType(path, defaultContentType);
+            if (contentEncoding != null)
+                respHeaders.setContentEncoding(contentEncoding);
+            else if (useCompression && ContentVariants.isCompressible(respHeaders.getHeader("Content-Type", null)))
+            {
+                respHeaders.addVary(HTTPHeaders.ACCEPT_ENCODING);
+                String encoding = request.getHeaders().requestsPartialContent() ? null : request.getHeaders().selectContentEncoding();
+                if (encoding != null)
+                {
+                    ByteBuffer encoded = getEncodedContentFor(path, encoding);
+                    if (encoded != null)
+                    {
+                        content = encoded;
+                        respHeaders.setContentEncoding(encoding);
+                    }
+                }
+            }
+
+            int length = content.remaining();
+            long start = 0, end = length-1;
             long[] limits = request.getHeaders().extractByteRanges();
 
             if (limits != null)
@@ -972,62 +1190,38 @@ public class JJSPRuntime extends Environment
                 start = Math.max(0, Math.min(end, limits[0]));
                 end = Math.max(start, end);
 
-                response.getHeaders().configureAsPartialContent(start, end, content.length);
+                response.getHeaders().configureAsPartialContent(start, end, length);
             }
             else
             {
                 response.getHeaders().configureAsOK();
-                response.getHeaders().setContentLength(content.length);
+                response.getHeaders().setContentLength(length);
             }
 
             response.getHeaders().configureCacheControl(cacheTime);
-            response.getHeaders().setContentLength(content.length);
-            response.getHeaders().guessAndSetContentType(path, defaultContentType);
-            if (contentEncoding != null)
-                response.getHeaders().setContentEncoding(contentEncoding);
+            response.getHeaders().setContentLength(length);
 
             if (request.getHeaders().isHead())
                 response.sendHeaders();
             else
-                response.sendContent(content, (int) start, (int) (end-start+1));
+            {
+                ByteBuffer range = content.duplicate();
+                range.position(content.position() + (int) Math.min(start, length));
+                range.limit(content.position() + (int) Math.min(end+1, length));
+                response.sendContent(range);
+            }
 
             return true;
         }
     }
 
+    /** A LocalFilter which negotiates gzip or deflate encoding of compressible content with each client. */
     public class LocalCompressedFilter extends LocalFilter
     {
-        private HashMap compressedContentCache;
-
         public LocalCompressedFilter(String name, String[] paths, int cacheTime, HTTPRequestFilter chain)
         {
             super(name, paths, cacheTime, chain);
-
-            compressedContentCache = new HashMap();
-            setContentEncoding("gzip");
-        }
-
-        @Override
-        protected byte[] getContentFor(String path)
-        {
-            byte[] compressed = null;
-            synchronized (compressedContentCache)
-            {
-                compressed = (byte[]) compressedContentCache.get(path);
-                if (compressed != null)
-                    return compressed;
-            }
-
-            byte[] raw = super.getContentFor(path);
-            if (raw == null)
-                return null;
-
-            compressed = Utils.gzip(raw);
-            synchronized (compressedContentCache)
-            {
-                compressedContentCache.put(path, compressed);
-                return compressed;
-            }
+            setUseCompression(true);
         }
     }
 
@@ -1148,6 +1342,16 @@ public class JJSPRuntime extends Environment
         return new HTTPAuthFilter(name, realm, authFailFilter, authOKFilter);
     }
 
+    public ResponseCacheFilter createResponseCacheFilter(String name, int cacheTimeSeconds, HTTPRequestFilter wrapped)
+    {
+        return new ResponseCacheFilter(name, cacheTimeSeconds, wrapped);
+    }
+
+    public ResponseCacheFilter createResponseCacheFilter(String name, int cacheTimeSeconds, int staleTimeSeconds, HTTPRequestFilter wrapped)
+    {
+        return new ResponseCacheFilter(name, cacheTimeSeconds, staleTimeSeconds, wrapped);
+    }
+
     public ErrorFilter createErrorFilter(String name, HTTPRequestFilter mainFilter)
     {
         return new ErrorFilter(name, mainFilter);
@@ -0,0 +1,469 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.http.*;
+import jjsp.util.*;
+
+/**
+   The content of an Environment's local store, keyed by local path, which can be read without locking while it is being written.
+
+   Entries registered as URIs are loaded on first use, once, however many threads ask for them together. The bytes held on the heap are
+   counted against a limit. Entries at least as large as the spill threshold (and any entry which would take the heap total over the limit)
+   are written to files in the spill directory and memory mapped instead, if a spill directory is set; otherwise exceeding the limit is an error.
+   Loaded URI entries which do not fit are not kept, and are loaded again each time they are asked for. The gzip and deflate encodings of an entry
+   are kept with it, under the same limits, so that they go when it is replaced or removed.
+ */
+public class LocalStore
+{
+    public static final String SPILL_DIR = "local/";
+    public static final long DEFAULT_MAX_BYTES = Long.MAX_VALUE;
+    public static final int DEFAULT_SPILL_THRESHOLD = 4*1024*1024;
+
+    private static final Entry[] NOT_ENCODED = new Entry[2];
+
+    class Entry
+    {
+        final URI source;
+
+        private FutureTask loader;
+        private byte[] data;
+        private MappedByteBuffer mapped;
+        private SoftReference copy;
+        private Entry[] encodings;
+        private boolean released;
+
+        Entry(byte[] data)
+        {
+            source = null;
+            loader = null;
+            this.data = data;
+        }
+
+        Entry(MappedByteBuffer mapped)
+        {
+            source = null;
+            loader = null;
+            this.mapped = mapped;
+        }
+
+        Entry(URI source)
+        {
+            this.source = source;
+            loader = createLoader();
+        }
+
+        private FutureTask createLoader()
+        {
+            return new FutureTask(() -> Utils.load(source));
+        }
+
+        synchronized FutureTask getLoader()
+        {
+            return loader;
+        }
+
+        /** Drops the finished load (and so the reference its result holds to the content), replacing it with a fresh one unless the content was kept. */
+        synchronized void loadFinished(FutureTask finished)
+        {
+            if (loader == finished)
+                loader = (released || isLoaded()) ? null : createLoader();
+        }
+
+        synchronized boolean isLoaded()
+        {
+            return (data != null) || (mapped != null);
+        }
+
+        synchronized byte[] getBytes()
+        {
+            if (data != null)
+                return data;
+            if (mapped == null)
+                return null;
+
+            byte[] result = (copy == null) ? null : (byte[]) copy.get();
+            if (result == null)
+            {
+                result = new byte[mapped.capacity()];
+                mapped.duplicate().get(result);
+                copy = new SoftReference(result);
+            }
+            return result;
+        }
+
+        synchronized ByteBuffer getBuffer()
+        {
+            if (data != null)
+                return ByteBuffer.wrap(data).asReadOnlyBuffer();
+            if (mapped != null)
+                return mapped.asReadOnlyBuffer();
+            return null;
+        }
+
+        synchronized Entry[] getEncodings()
+        {
+            return encodings;
+        }
+
+        synchronized boolean setEncodings(Entry[] values)
+        {
+            if (released || (encodings != null))
+                return false;
+            encodings = values;
+            return true;
+        }
+
+        synchronized boolean setLoaded(byte[] content, MappedByteBuffer buffer)
+        {
+            if (released || isLoaded())
+                return false;
+            data = content;
+            mapped = buffer;
+            loader = null;
+            return true;
+        }
+
+        synchronized void release()
+        {
+            if (released)
+                return;
+            released = true;
+            loader = null;
+            if (data != null)
+                heapBytes.addAndGet(-data.length);
+            if (mapped != null)
+                mappedBytes.addAndGet(-mapped.capacity());
+            if (encodings != null)
+                LocalStore.release(encodings);
+        }
+    }
+
+    private static void release(Entry[] values)
+    {
+        for (int i=0; i<values.length; i++)
+            if (values[i] != null)
+                values[i].release();
+    }
+
+    private final ConcurrentSkipListMap entries;
+    private final AtomicLong heapBytes, mappedBytes, loads, loadFailures, spills;
+
+    private volatile File spillDir;
+    private volatile long maxBytes;
+    private volatile int spillThreshold;
+
+    public LocalStore()
+    {
+        this(null, DEFAULT_MAX_BYTES, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public LocalStore(File spillDir, long maxBytes, int spillThreshold)
+    {
+        entries = new ConcurrentSkipListMap();
+        heapBytes = new AtomicLong();
+        mappedBytes = new AtomicLong();
+        loads = new AtomicLong();
+        loadFailures = new AtomicLong();
+        spills = new AtomicLong();
+
+        setSpillDirectory(spillDir);
+        setLimits(maxBytes, spillThreshold);
+    }
+
+    /** Sets the directory large entries are spilled to, or null to keep all entries on the heap. */
+    public void setSpillDirectory(File dir)
+    {
+        spillDir = dir;
+    }
+
+    public File getSpillDirectory()
+    {
+        return spillDir;
+    }
+
+    /** Sets the most bytes of content kept on the heap, and the size from which entries are memory mapped from the spill directory instead. */
+    public void setLimits(long maxBytes, int spillThreshold)
+    {
+        this.maxBytes = (maxBytes <= 0) ? DEFAULT_MAX_BYTES : maxBytes;
+        this.spillThreshold = (spillThreshold <= 0) ? Integer.MAX_VALUE : spillThreshold;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public int getSpillThreshold()
+    {
+        return spillThreshold;
+    }
+
+    public void put(String path, byte[] content) throws IOException
+    {
+        Entry entry = store(path, content, true);
+        replace(path, entry);
+    }
+
+    /** Registers a URI to be loaded the first time the path is asked for. */
+    public void put(String path, URI source)
+    {
+        replace(path, new Entry(source));
+    }
+
+    private void replace(String path, Entry entry)
+    {
+        Entry previous = (Entry) entries.put(path, entry);
+        if (previous != null)
+            previous.release();
+    }
+
+    private Entry store(String path, byte[] content, boolean required) throws IOException
+    {
+        File dir = spillDir;
+        if ((dir != null) && ((content.length >= spillThreshold) || (heapBytes.get() + content.length > maxBytes)))
+            return new Entry(spill(dir, path, content));
+
+        if (heapBytes.addAndGet(content.length) > maxBytes)
+        {
+            heapBytes.addAndGet(-content.length);
+            if (required)
+                throw new IOException("Local store limit of "+maxBytes+" bytes exceeded by '"+path+"' ("+content.length+" bytes)");
+            return null;
+        }
+        return new Entry(content);
+    }
+
+    private MappedByteBuffer spill(File dir, String path, byte[] content) throws IOException
+    {
+        dir.mkdirs();
+        File f = File.createTempFile("local", ".data", dir);
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer src = ByteBuffer.wrap(content);
+            while (src.hasRemaining())
+                ch.write(src);
+
+            MappedByteBuffer result = ch.map(FileChannel.MapMode.READ_ONLY, 0, content.length);
+            spills.incrementAndGet();
+            mappedBytes.addAndGet(content.length);
+            return result;
+        }
+        finally
+        {
+            //The mapping keeps the content readable; where the file cannot be deleted while mapped it goes when the JVM exits
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    /** Returns the content at the path, loading it first if it was registered as a URI, or null if there is none or it cannot be loaded. */
+    public byte[] get(String path)
+    {
+        Entry entry = (Entry) entries.get(path);
+        if (entry == null)
+            return null;
+
+        byte[] result = entry.getBytes();
+        if (result != null)
+            return result;
+        return load(entry, path);
+    }
+
+    /** Returns a read only view of the content at the path (which is memory mapped for spilled entries), or null if there is none or it cannot be loaded. */
+    public ByteBuffer getBuffer(String path)
+    {
+        Entry entry = (Entry) entries.get(path);
+        if (entry == null)
+            return null;
+
+        ByteBuffer result = entry.getBuffer();
+        if (result != null)
+            return result;
+
+        byte[] content = load(entry, path);
+        return (content == null) ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    /**
+        Returns a read only view of the content at the path in the given content coding (gzip or deflate), compressing it the first time either is
+        asked for. Returns null if the coding is unknown, is not worth using for this content, or could not be kept within the limits when compressed.
+    */
+    public ByteBuffer getEncodedBuffer(String path, String encoding)
+    {
+        int index = ContentVariants.GZIP.equals(encoding) ? 0 : (ContentVariants.DEFLATE.equals(encoding) ? 1 : -1);
+        Entry entry = (Entry) entries.get(path);
+        if ((index < 0) || (entry == null))
+            return null;
+
+        Entry[] encodings = entry.getEncodings();
+        if (encodings == null)
+        {
+            ByteBuffer content = entry.getBuffer();
+            if (content == null)
+            {
+                byte[] loaded = load(entry, path);
+                if (loaded == null)
+                    return null;
+                content = ByteBuffer.wrap(loaded);
+            }
+
+            encodings = encode(path, content);
+            if (!entry.setEncodings(encodings))
+            {
+                //Compressed concurrently by another request, or removed from the store meanwhile
+                release(encodings);
+                encodings = entry.getEncodings();
+                if (encodings == null)
+                    return null;
+            }
+        }
+
+        Entry result = encodings[index];
+        return (result == null) ? null : result.getBuffer();
+    }
+
+    private Entry[] encode(String path, ByteBuffer content)
+    {
+        byte[][] encoded = ContentVariants.encode(content);
+        if (encoded == null)
+            return NOT_ENCODED;
+
+        Entry[] result = new Entry[encoded.length];
+        try
+        {
+            for (int i=0; i<encoded.length; i++)
+            {
+                result[i] = store(path, encoded[i], false);
+                if (result[i] == null)
+                {
+                    release(result);
+                    return NOT_ENCODED;
+                }
+            }
+            return result;
+        }
+        catch (IOException e)
+        {
+            release(result);
+            return NOT_ENCODED;
+        }
+    }
+
+    private byte[] load(Entry entry, String path)
+    {
+        FutureTask loader = entry.getLoader();
+        if (loader == null)
+            return entry.getBytes(); //Loaded by another thread, or removed from the store
+
+        loader.run(); //Only the first caller loads, the others wait for its result
+        byte[] content = null;
+        try
+        {
+            content = (byte[]) loader.get();
+        }
+        catch (Exception e)
+        {
+            loadFailures.incrementAndGet();
+            entry.loadFinished(loader); //Let a later request try again
+            return null;
+        }
+
+        synchronized (entry)
+        {
+            if (entry.getLoader() != loader) //Another caller of the same load has already stored it, or not
+                return content;
+
+            loads.incrementAndGet();
+            try
+            {
+                Entry stored = store(path, content, false);
+                if ((stored != null) && !entry.setLoaded(stored.data, stored.mapped))
+                    stored.release();
+            }
+            catch (IOException e) {}
+            finally
+            {
+                //Content which was not kept (as it did not fit) is loaded again next time, rather than held here uncounted
+                entry.loadFinished(loader);
+            }
+        }
+        return content;
+    }
+
+    public boolean contains(String path)
+    {
+        return entries.containsKey(path);
+    }
+
+    public boolean remove(String path)
+    {
+        Entry previous = (Entry) entries.remove(path);
+        if (previous == null)
+            return false;
+        previous.release();
+        return true;
+    }
+
+    /** Returns the paths in the store, in order. */
+    public String[] list()
+    {
+        String[] result = new String[entries.size()];
+        return (String[]) entries.keySet().toArray(result);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public void clear()
+    {
+        while (!entries.isEmpty())
+        {
+            Map.Entry first = entries.pollFirstEntry();
+            if (first != null)
+                ((Entry) first.getValue()).release();
+        }
+    }
+
+    public long getHeapBytes()
+    {
+        return heapBytes.get();
+    }
+
+    public long getMappedBytes()
+    {
+        return mappedBytes.get();
+    }
+
+    public String toString()
+    {
+        return "LocalStore["+entries.size()+" entries, "+heapBytes.get()+"/"+maxBytes+" heap bytes, "+spills.get()+" spilled ("+mappedBytes.get()+" bytes), loads "+loads.get()+", load failures "+loadFailures.get()+"]";
+    }
+}
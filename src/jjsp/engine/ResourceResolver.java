@@ -0,0 +1,422 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.regex.*;
+import java.nio.file.*;
+
+import jjsp.util.*;
+
+/**
+   Fetches resources for an Environment on a bounded pool of daemon threads, so that the candidate locations of a resource in every resource
+   root, and resources known to be needed later (such as the includes named in a script), are fetched in parallel rather than one after another.
+
+   Each fetch is memoized by URI until its content is taken, and a resource found to be missing is remembered as missing for a short time,
+   so repeated lookups in roots which do not have it cost nothing. Prefetched content which is never taken is dropped after the same time
+   (or when the runtime discards its prefetches at the end of initialisation). HTTP resources are kept in a directory with their ETag and
+   Last-Modified headers and fetched again with a conditional GET, so an unchanged resource is not downloaded again (and the kept copy is
+   used if the server cannot be reached).
+ */
+public class ResourceResolver
+{
+    public static final String HTTP_CACHE = "http/";
+    public static final int POOL_SIZE = 8;
+    public static final long NEGATIVE_TTL = 30000;
+    public static final long PREFETCH_TTL = 30000;
+    public static final int CONNECT_TIMEOUT = 10000;
+    public static final int READ_TIMEOUT = 30000;
+
+    private static final byte[] MISSING = new byte[0];
+    private static final Pattern INCLUDES = Pattern.compile("\\b(?:include|cinclude|conditionalInclude|parse|loadFileToLocalStore|loadZipToLocalStore)\\s*\\(\\s*(['\"])([^'\"\\r\\n]+)\\1");
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(POOL_SIZE, (r) ->
+    {
+        Thread t = new Thread(r, "Resource Prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    class Lookup extends FutureTask
+    {
+        volatile long missingSince, loadedAt;
+        private ArrayList listeners;
+
+        Lookup(URI uri)
+        {
+            super(() -> fetchNow(uri));
+            missingSince = loadedAt = 0;
+            listeners = new ArrayList();
+        }
+
+        protected void set(Object value)
+        {
+            if (value == MISSING)
+                missingSince = System.currentTimeMillis();
+            else
+                loadedAt = System.currentTimeMillis();
+            super.set(value);
+        }
+
+        boolean expired(long now)
+        {
+            long missing = missingSince, loaded = loadedAt;
+            return ((missing > 0) && (now - missing >= NEGATIVE_TTL)) || ((loaded > 0) && (now - loaded >= PREFETCH_TTL));
+        }
+
+        void whenLoaded(Consumer listener)
+        {
+            synchronized (this)
+            {
+                if (listeners != null)
+                {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            deliver(listener);
+        }
+
+        private void deliver(Consumer listener)
+        {
+            try
+            {
+                Object value = get();
+                if (value != MISSING)
+                    listener.accept(value);
+            }
+            catch (Exception e) {}
+        }
+
+        protected void done()
+        {
+            ArrayList toNotify = null;
+            synchronized (this)
+            {
+                toNotify = listeners;
+                listeners = null;
+            }
+            for (int i=0; i<toNotify.size(); i++)
+                deliver((Consumer) toNotify.get(i));
+        }
+    }
+
+    private final File httpCacheDir;
+    private final ConcurrentHashMap lookups;
+    private final AtomicLong fetches, negativeHits, notModified, staleUsed, expired;
+    private volatile long lastSweep;
+
+    public ResourceResolver(File httpCacheDir)
+    {
+        this.httpCacheDir = httpCacheDir;
+        lookups = new ConcurrentHashMap();
+        fetches = new AtomicLong();
+        negativeHits = new AtomicLong();
+        notModified = new AtomicLong();
+        staleUsed = new AtomicLong();
+        expired = new AtomicLong();
+        lastSweep = System.currentTimeMillis();
+    }
+
+    /** Returns the literal paths passed to include, parse and the local store loading functions in the script source. */
+    public static String[] findIncludes(String source)
+    {
+        LinkedHashSet result = new LinkedHashSet();
+        Matcher m = INCLUDES.matcher(source);
+        while (m.find())
+            result.add(m.group(2));
+
+        String[] paths = new String[result.size()];
+        result.toArray(paths);
+        return paths;
+    }
+
+    /** Starts fetching the resource (if it is not already being fetched, or known to be missing) without waiting for it. */
+    public void prefetch(URI uri)
+    {
+        fetch(uri);
+    }
+
+    /** Prefetches the resource, passing its content to the listener (on a fetching thread) once it has been fetched, if it exists. */
+    public void prefetch(URI uri, Consumer listener)
+    {
+        fetch(uri).whenLoaded(listener);
+    }
+
+    private Lookup fetch(URI uri)
+    {
+        String key = uri.toString();
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= PREFETCH_TTL)
+            sweep(now);
+
+        while (true)
+        {
+            Lookup lookup = (Lookup) lookups.get(key);
+            if (lookup != null)
+            {
+                if (!lookup.expired(now))
+                    return lookup;
+                if (lookups.remove(key, lookup))
+                    expired.incrementAndGet();
+                continue;
+            }
+
+            Lookup created = new Lookup(uri);
+            lookup = (Lookup) lookups.putIfAbsent(key, created);
+            if (lookup != null)
+                continue;
+
+            fetches.incrementAndGet();
+            try
+            {
+                pool.execute(created);
+            }
+            catch (RejectedExecutionException e)
+            {
+                created.run();
+            }
+            return created;
+        }
+    }
+
+    /** Returns the content of the resource, or null if it does not exist or could not be fetched. */
+    public byte[] load(URI uri)
+    {
+        String key = uri.toString();
+        while (true)
+        {
+            Lookup lookup = fetch(uri);
+            boolean known = lookup.isDone();
+            try
+            {
+                byte[] data = (byte[]) lookup.get();
+                if (data == MISSING)
+                {
+                    if (known)
+                        negativeHits.incrementAndGet();
+                    return null;
+                }
+
+                lookups.remove(key, lookup);
+                return data;
+            }
+            catch (CancellationException e)
+            {
+                lookups.remove(key, lookup); //A discarded prefetch, so fetch it afresh
+            }
+            catch (Exception e)
+            {
+                lookups.remove(key, lookup);
+                return null;
+            }
+        }
+    }
+
+    private void sweep(long now)
+    {
+        lastSweep = now;
+        Iterator itt = lookups.values().iterator();
+        while (itt.hasNext())
+        {
+            if (((Lookup) itt.next()).expired(now))
+            {
+                itt.remove();
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /** 
+        Forgets every prefetched resource which has not been taken (as when the runtime has finished loading), keeping those known to be missing.
+        Fetches still in progress are cancelled, so that they do not go on to prefetch the includes of what they fetch.
+    */
+    public void discardPrefetched()
+    {
+        Iterator itt = lookups.values().iterator();
+        while (itt.hasNext())
+        {
+            Lookup lookup = (Lookup) itt.next();
+            if (lookup.missingSince == 0)
+            {
+                itt.remove();
+                lookup.cancel(false);
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /** Forgets a fetched resource which is no longer wanted (as when it was found in an earlier root), unless it is known to be missing. */
+    public void discard(URI uri)
+    {
+        String key = uri.toString();
+        Lookup lookup = (Lookup) lookups.get(key);
+        if ((lookup != null) && (lookup.missingSince == 0))
+            lookups.remove(key, lookup);
+    }
+
+    private byte[] fetchNow(URI uri) throws Exception
+    {
+        String scheme = uri.getScheme();
+        if ((scheme != null) && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https")))
+            return fetchHTTP(uri);
+
+        try
+        {
+            return Utils.load(uri);
+        }
+        catch (FileNotFoundException | NoSuchFileException e)
+        {
+            return MISSING;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return MISSING;
+        }
+    }
+
+    private byte[] fetchHTTP(URI uri) throws Exception
+    {
+        File cached = null;
+        byte[] cachedContent = null;
+        String etag = null, lastModified = null;
+        if (httpCacheDir != null)
+        {
+            String key = Utils.toHexString(Utils.SHA256(uri.toString().getBytes(Utils.UTF8)));
+            cached = new File(httpCacheDir, key+".cache");
+            if (cached.isFile())
+            {
+                try
+                {
+                    //The ETag and Last-Modified lines are kept in the same file as the content, so they can never be paired with another copy of it
+                    byte[] raw = Utils.load(cached);
+                    int eol1 = indexOf(raw, 0);
+                    int eol2 = (eol1 < 0) ? -1 : indexOf(raw, eol1+1);
+                    if (eol2 >= 0)
+                    {
+                        etag = (eol1 > 0) ? new String(raw, 0, eol1, Utils.UTF8) : null;
+                        lastModified = (eol2 > eol1+1) ? new String(raw, eol1+1, eol2-eol1-1, Utils.UTF8) : null;
+                        cachedContent = Arrays.copyOfRange(raw, eol2+1, raw.length);
+                    }
+                }
+                catch (IOException e) {}
+            }
+        }
+        boolean validatable = (cachedContent != null) && ((etag != null) || (lastModified != null));
+
+        HttpURLConnection conn = null;
+        try
+        {
+            conn = (HttpURLConnection) uri.toURL().openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setUseCaches(false);
+            if (validatable && (etag != null))
+                conn.setRequestProperty("If-None-Match", etag);
+            if (validatable && (lastModified != null))
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+
+            int code = conn.getResponseCode();
+            if ((code == HttpURLConnection.HTTP_NOT_MODIFIED) && validatable)
+            {
+                notModified.incrementAndGet();
+                return cachedContent;
+            }
+            if ((code == HttpURLConnection.HTTP_NOT_FOUND) || (code == HttpURLConnection.HTTP_GONE))
+                return MISSING;
+            if (code != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP "+code+" from "+uri);
+
+            byte[] content = Utils.load(conn.getInputStream());
+            String newETag = conn.getHeaderField("ETag");
+            String newLastModified = conn.getHeaderField("Last-Modified");
+            if ((cached != null) && ((newETag != null) || (newLastModified != null)))
+                save(cached, content, newETag, newLastModified);
+            return content;
+        }
+        catch (IOException e)
+        {
+            if (validatable)
+            {
+                staleUsed.incrementAndGet();
+                return cachedContent;
+            }
+            throw e;
+        }
+        finally
+        {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    private static int indexOf(byte[] raw, int from)
+    {
+        for (int i=from; i<raw.length; i++)
+            if (raw[i] == '\n')
+                return i;
+        return -1;
+    }
+
+    private static void save(File cached, byte[] content, String etag, String lastModified)
+    {
+        File temp = null;
+        try
+        {
+            cached.getParentFile().mkdirs();
+            temp = File.createTempFile("resource", ".tmp", cached.getParentFile());
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                out.write((((etag == null) ? "" : etag)+"\n"+((lastModified == null) ? "" : lastModified)+"\n").getBytes(Utils.UTF8));
+                out.write(content);
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (Exception e)
+        {
+            // The cache is only an optimisation; the fetched content is returned regardless
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    public long getFetches()
+    {
+        return fetches.get();
+    }
+
+    public long getNegativeHits()
+    {
+        return negativeHits.get();
+    }
+
+    public long getNotModified()
+    {
+        return notModified.get();
+    }
+
+    public String toString()
+    {
+        return "ResourceResolver[fetches "+fetches.get()+", negative hits "+negativeHits.get()+", not modified "+notModified.get()+", stale copies used "+staleUsed.get()+", expired "+expired.get()+", pending "+lookups.size()+"]";
+    }
+}
@@ -0,0 +1,129 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.nio.file.*;
+import javax.script.*;
+
+import org.openjdk.nashorn.api.scripting.*;
+
+import jjsp.util.*;
+
+/**
+   Caches JJSP sources translated to Javascript, keyed by a hash of their content, in memory and as files in a cache directory (normally
+   under the local cache dir), so an unchanged source is translated once rather than on every include, parse and restart, and across runs.
+
+   Script engines can also be created with the Nashorn persistent code cache, which keeps the classes compiled from each script
+   on disk (again keyed by content) so that the compile cost of unchanged scripts is not paid again by later engines and runs.
+ */
+public class ScriptCache
+{
+    public static final String SCRIPTS = "scripts/";
+    public static final String CODE_CACHE = "nashorn_code_cache/";
+
+    /** Part of every key, so that translations cached by an earlier version of ScriptParser are not used after it changes. */
+    public static final String TRANSLATION_VERSION = "1";
+
+    private static final String CODE_CACHE_PROPERTY = "nashorn.persistent.code.cache";
+    private static final LRUCache translations = new LRUCache(1024, 64*1024*1024, (value) -> 2*((String) value).length());
+
+    public static String getKey(String jjspSource)
+    {
+        return Utils.toHexString(Utils.SHA256((TRANSLATION_VERSION+"\n"+jjspSource).getBytes(Utils.UTF8)));
+    }
+
+    /** Returns the Javascript translation of the JJSP source, from memory or the cache directory (which may be null) if it has been translated before. */
+    public static String translateToJavascript(String jjspSource, File cacheDir) throws Exception
+    {
+        String key = getKey(jjspSource);
+        return (String) translations.get(key, (k) ->
+        {
+            File cached = (cacheDir == null) ? null : new File(new File(cacheDir, SCRIPTS), key+".js");
+            if ((cached != null) && cached.isFile())
+            {
+                try
+                {
+                    return Utils.toUTF8String(Utils.load(cached));
+                }
+                catch (IOException e) {}
+            }
+
+            String js = new ScriptParser(jjspSource).translateToJavascript();
+            if (cached != null)
+                save(cached, js);
+            return js;
+        });
+    }
+
+    private static void save(File cached, String js)
+    {
+        File temp = null;
+        try
+        {
+            cached.getParentFile().mkdirs();
+            temp = File.createTempFile("translation", ".tmp", cached.getParentFile());
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                out.write(js.getBytes(Utils.UTF8));
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (Exception e) 
+        {
+            // The cache is only an optimisation; the translation is returned regardless
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    public static LRUCache getTranslationCache()
+    {
+        return translations;
+    }
+
+    /**
+       Creates a Nashorn engine using the persistent code cache in the cache directory, unless the cache location has already been set with
+       the nashorn.persistent.code.cache system property (which Nashorn reads for every engine, so the first directory given is used by all).
+       Returns null if Nashorn is not available.
+    */
+    public static ScriptEngine createScriptEngine(File cacheDir, ClassLoader loader)
+    {
+        try
+        {
+            if (cacheDir != null)
+            {
+                synchronized (ScriptCache.class)
+                {
+                    if (System.getProperty(CODE_CACHE_PROPERTY) == null)
+                    {
+                        File codeCache = new File(cacheDir, CODE_CACHE);
+                        codeCache.mkdirs();
+                        System.setProperty(CODE_CACHE_PROPERTY, codeCache.getAbsolutePath());
+                    }
+                }
+                return new NashornScriptEngineFactory().getScriptEngine(new String[]{"--persistent-code-cache"}, loader);
+            }
+            return new NashornScriptEngineFactory().getScriptEngine(loader);
+        }
+        catch (Throwable e)
+        {
+            return null;
+        }
+    }
+}
@@ -21,17 +21,26 @@ package jjsp.engine;
 import java.io.*;
 import java.net.*;
 
+import jjsp.http.*;
+
 public class ServerSocketInfo
 {
     public final int port;
     public final boolean isSecure;
     public final InetAddress ipAddress;
+    public final TLSConfiguration tlsConfig;
 
     public ServerSocketInfo(int port, boolean isSecure, InetAddress ip)
+    {
+        this(port, isSecure, ip, null);
+    }
+
+    public ServerSocketInfo(int port, boolean isSecure, InetAddress ip, TLSConfiguration tlsConfig)
     {
         this.port = port;
         this.isSecure = isSecure;
         this.ipAddress = ip;
+        this.tlsConfig = tlsConfig;
     }
 
     public boolean equals(Object another)
@@ -44,7 +53,7 @@ public class ServerSocketInfo
             else if ((ipAddress != null) && (ss.ipAddress == null))
                 return false;
             else if ((ipAddress == ss.ipAddress) || ipAddress.equals(ss.ipAddress))
-                return (ss.port == port) && (isSecure == ss.isSecure);
+                return (ss.port == port) && (isSecure == ss.isSecure) && (tlsConfig == ss.tlsConfig);
         }
         catch (Exception e) {}
         return false;
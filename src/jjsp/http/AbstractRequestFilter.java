@@ -68,7 +68,7 @@ public abstract class AbstractRequestFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(filterName, chain, state);
         try
         {
             if (!handleRequestAndReport(myChain, request, response, state))
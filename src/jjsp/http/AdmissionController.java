@@ -0,0 +1,196 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Limits the number of open connections and concurrently executing requests on a Server.
+   Requests over the limit wait in a bounded queue for up to the queue timeout; connections and requests
+   which cannot be admitted are counted and rejected so that overload degrades to fast failures rather than unbounded thread growth.
+   A limit of zero or less means unlimited.
+ */
+public class AdmissionController
+{
+    private final int maxConnections, maxRequests, maxQueuedRequests;
+    private final long queueTimeout;
+
+    private final Semaphore requestPermits;
+    private final AtomicInteger openConnections, queuedRequests;
+    private final AtomicLong admittedConnections, rejectedConnections, admittedRequests, rejectedRequests, queueTimeouts;
+
+    public AdmissionController(int maxConnections, int maxRequests, int maxQueuedRequests, long queueTimeoutMillis)
+    {
+        this.maxConnections = maxConnections;
+        this.maxRequests = maxRequests;
+        this.maxQueuedRequests = Math.max(0, maxQueuedRequests);
+        this.queueTimeout = Math.max(0, queueTimeoutMillis);
+
+        requestPermits = (maxRequests > 0) ? new Semaphore(maxRequests, true) : null;
+        openConnections = new AtomicInteger();
+        queuedRequests = new AtomicInteger();
+        admittedConnections = new AtomicLong();
+        rejectedConnections = new AtomicLong();
+        admittedRequests = new AtomicLong();
+        rejectedRequests = new AtomicLong();
+        queueTimeouts = new AtomicLong();
+    }
+
+    public boolean tryAcquireConnection()
+    {
+        while (true)
+        {
+            int open = openConnections.get();
+            if ((maxConnections > 0) && (open >= maxConnections))
+            {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+
+            if (openConnections.compareAndSet(open, open+1))
+            {
+                admittedConnections.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public void releaseConnection()
+    {
+        openConnections.decrementAndGet();
+    }
+
+    /** Waits (in the bounded queue) for a request slot, returning false if the queue is full, the wait timed out or the thread was interrupted. */
+    public boolean acquireRequest()
+    {
+        if (requestPermits == null)
+        {
+            admittedRequests.incrementAndGet();
+            return true;
+        }
+
+        if (requestPermits.tryAcquire())
+        {
+            admittedRequests.incrementAndGet();
+            return true;
+        }
+
+        if ((queueTimeout <= 0) || (queuedRequests.incrementAndGet() > maxQueuedRequests))
+        {
+            if (queueTimeout > 0)
+                queuedRequests.decrementAndGet();
+            rejectedRequests.incrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            if (requestPermits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS))
+            {
+                admittedRequests.incrementAndGet();
+                return true;
+            }
+            queueTimeouts.incrementAndGet();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            queuedRequests.decrementAndGet();
+        }
+
+        rejectedRequests.incrementAndGet();
+        return false;
+    }
+
+    public void releaseRequest()
+    {
+        if (requestPermits != null)
+            requestPermits.release();
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public int getMaxRequests()
+    {
+        return maxRequests;
+    }
+
+    public int getMaxQueuedRequests()
+    {
+        return maxQueuedRequests;
+    }
+
+    public long getQueueTimeout()
+    {
+        return queueTimeout;
+    }
+
+    public int getOpenConnections()
+    {
+        return openConnections.get();
+    }
+
+    public int getActiveRequests()
+    {
+        if (requestPermits == null)
+            return -1;
+        return maxRequests - requestPermits.availablePermits();
+    }
+
+    public int getQueuedRequests()
+    {
+        return queuedRequests.get();
+    }
+
+    public long getAdmittedConnections()
+    {
+        return admittedConnections.get();
+    }
+
+    public long getRejectedConnections()
+    {
+        return rejectedConnections.get();
+    }
+
+    public long getAdmittedRequests()
+    {
+        return admittedRequests.get();
+    }
+
+    public long getRejectedRequests()
+    {
+        return rejectedRequests.get();
+    }
+
+    public long getQueueTimeouts()
+    {
+        return queueTimeouts.get();
+    }
+
+    public String toString()
+    {
+        return "AdmissionController[connections "+getOpenConnections()+"/"+maxConnections+" (rejected "+getRejectedConnections()+"), requests "+getActiveRequests()+"/"+maxRequests+" queued "+getQueuedRequests()+"/"+maxQueuedRequests+" (rejected "+getRejectedRequests()+", timed out "+getQueueTimeouts()+")]";
+    }
+}
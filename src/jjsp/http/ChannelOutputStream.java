@@ -0,0 +1,64 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/** The output stream of a channel backed socket, exposing the channel so that content can be transferred to it directly (see HTTPOutputStream.transferFrom). */
+public class ChannelOutputStream extends OutputStream
+{
+    private final OutputStream out;
+    private final SocketChannel channel;
+
+    public ChannelOutputStream(OutputStream out, SocketChannel channel)
+    {
+        this.out = out;
+        this.channel = channel;
+    }
+
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+    }
+
+    public void write(byte[] b) throws IOException
+    {
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write(b, off, len);
+    }
+
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        out.close();
+    }
+}
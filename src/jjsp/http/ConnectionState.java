@@ -24,6 +24,7 @@ public class ConnectionState implements AutoCloseable
 {
     private boolean closed = false;
     private HashMap state = new HashMap();
+    private HTTPFilterTrace filterTrace;
 
     public void put(String key, Object value) 
     {
@@ -39,6 +40,14 @@ public class ConnectionState implements AutoCloseable
         return state.get(key);
     }
 
+    /** Returns the recorder whose filter chain links are reused by each request on this connection. */
+    public HTTPFilterTrace getFilterTrace()
+    {
+        if (filterTrace == null)
+            filterTrace = new HTTPFilterTrace();
+        return filterTrace;
+    }
+
     public void close() throws Exception
     {
         closed = true;
@@ -0,0 +1,196 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+   The identity bytes of a resource together with its gzip and deflate encodings, for content negotiation on Accept-Encoding.
+   Both encodings are produced together from a single compression pass, either up front (precompress) or on first use,
+   and are only used when they save at least MIN_SAVING of the identity length.
+ */
+public class ContentVariants
+{
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static final int MIN_COMPRESSIBLE_LENGTH = 256;
+    public static final double MIN_SAVING = 0.1;
+
+    private static final byte[][] NOT_COMPRESSED = new byte[2][];
+
+    private final byte[] identity;
+    private volatile byte[][] encoded;
+
+    public ContentVariants(byte[] identity)
+    {
+        this.identity = identity;
+        encoded = null;
+    }
+
+    public byte[] getIdentity()
+    {
+        return identity;
+    }
+
+    public void precompress()
+    {
+        getEncodings();
+    }
+
+    public boolean isCompressed()
+    {
+        return (encoded != null) && (encoded != NOT_COMPRESSED);
+    }
+
+    /** Returns the bytes for the given content coding (null meaning identity), or null if that coding is unknown or not worth using for this content. */
+    public byte[] getEncoded(String encoding)
+    {
+        if (encoding == null)
+            return identity;
+        if (GZIP.equals(encoding))
+            return getEncodings()[0];
+        if (DEFLATE.equals(encoding))
+            return getEncodings()[1];
+        return null;
+    }
+
+    public long memorySize()
+    {
+        long result = identity.length;
+        byte[][] ee = encoded;
+        if ((ee != null) && (ee != NOT_COMPRESSED))
+            result += ee[0].length + ee[1].length;
+        return result;
+    }
+
+    private byte[][] getEncodings()
+    {
+        byte[][] result = encoded;
+        if (result == null)
+        {
+            result = compress(identity);
+            encoded = result;
+        }
+        return result;
+    }
+
+    private static byte[][] compress(byte[] src)
+    {
+        byte[][] result = encode(ByteBuffer.wrap(src));
+        return (result == null) ? NOT_COMPRESSED : result;
+    }
+
+    /**
+        Returns the gzip and deflate encodings (in that order) of the remaining bytes of the buffer, or null if compression is not worth using.
+        The buffer is read a chunk at a time, so memory mapped content is compressed without being copied onto the heap whole.
+    */
+    public static byte[][] encode(ByteBuffer content)
+    {
+        ByteBuffer src = content.duplicate();
+        int length = src.remaining();
+        if (length < MIN_COMPRESSIBLE_LENGTH)
+            return null;
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(length/3 + 64);
+        try
+        {
+            byte[] chunk = new byte[Math.min(length, 64*1024)];
+            byte[] buffer = new byte[16*1024];
+            while (src.hasRemaining())
+            {
+                int len = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, len);
+                deflater.setInput(chunk, 0, len);
+                while (!deflater.needsInput())
+                {
+                    int n = deflater.deflate(buffer);
+                    raw.write(buffer, 0, n);
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                int n = deflater.deflate(buffer);
+                raw.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        byte[] deflated = raw.toByteArray();
+        if (deflated.length + 18 > length*(1 - MIN_SAVING))
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        byte[] gzip = new byte[10 + deflated.length + 8];
+        gzip[0] = (byte) 0x1f;
+        gzip[1] = (byte) 0x8b;
+        gzip[2] = (byte) Deflater.DEFLATED;
+        gzip[9] = (byte) 0xff; // Unknown OS
+        System.arraycopy(deflated, 0, gzip, 10, deflated.length);
+        writeIntLE(gzip, 10 + deflated.length, crc.getValue());
+        writeIntLE(gzip, 14 + deflated.length, length);
+
+        Adler32 adler = new Adler32();
+        adler.update(content.duplicate());
+        byte[] zlib = new byte[2 + deflated.length + 4];
+        zlib[0] = (byte) 0x78;
+        zlib[1] = (byte) 0x9c;
+        System.arraycopy(deflated, 0, zlib, 2, deflated.length);
+        long a = adler.getValue();
+        zlib[zlib.length-4] = (byte) (a >> 24);
+        zlib[zlib.length-3] = (byte) (a >> 16);
+        zlib[zlib.length-2] = (byte) (a >> 8);
+        zlib[zlib.length-1] = (byte) a;
+
+        return new byte[][]{gzip, zlib};
+    }
+
+    private static void writeIntLE(byte[] buf, int off, long value)
+    {
+        buf[off] = (byte) value;
+        buf[off+1] = (byte) (value >> 8);
+        buf[off+2] = (byte) (value >> 16);
+        buf[off+3] = (byte) (value >> 24);
+    }
+
+    /** Returns true unless the MIME type is one which is already compressed (images, audio, video, archives and web fonts). */
+    public static boolean isCompressible(String contentType)
+    {
+        if (contentType == null)
+            return false;
+
+        String type = contentType.toLowerCase();
+        if (type.startsWith("text/") || type.contains("json") || type.contains("javascript") || type.contains("xml") || type.contains("svg"))
+            return true;
+        if (type.startsWith("image/") || type.startsWith("audio/") || type.startsWith("video/"))
+            return false;
+        if (type.contains("zip") || type.contains("compress") || type.contains("woff") || type.contains("rar") || type.contains("7z") || type.contains("pdf") || type.contains("octet-stream"))
+            return false;
+        return type.startsWith("application/") || type.startsWith("font/");
+    }
+}
@@ -0,0 +1,612 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   HPACK header compression for HTTP/2 (RFC 7541). A Decoder and an Encoder each hold the dynamic table for one direction of a connection,
+   so a connection needs one of each and must decode every header block it receives, in order, to keep its table in step with the peer's.
+ */
+public class HPACK
+{
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    public static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE =
+    {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"},
+        {":status", "200"}, {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"},
+        {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+        {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+        {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+        {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+        {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+        {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    private static final HashMap STATIC_INDEX = new HashMap();
+    private static final HashMap STATIC_NAME_INDEX = new HashMap();
+
+    private static final int[] HUFFMAN_CODES =
+    {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS =
+    {
+        13, 23, 28, 28, 28, 28, 28, 28,
+        28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28,
+        28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11,
+        10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6,
+        6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7,
+        8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6,
+        6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7,
+        7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23,
+        22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23,
+        23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21,
+        23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23,
+        20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25,
+        26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24,
+        21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23,
+        22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27,
+        27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private static final int EOS = 256;
+
+    /** The Huffman decoding tree, as pairs of child slots per node: values >= 0 are child node indexes, values < 0 are -(symbol+1) leaves. */
+    private static final int[] HUFFMAN_TREE;
+
+    static
+    {
+        for (int i=STATIC_TABLE.length-1; i>=0; i--)
+        {
+            STATIC_INDEX.put(STATIC_TABLE[i][0]+"\u0000"+STATIC_TABLE[i][1], Integer.valueOf(i+1));
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], Integer.valueOf(i+1));
+        }
+
+        int[] tree = new int[2*257];
+        Arrays.fill(tree, 0);
+        int nodes = 1;
+        for (int sym=0; sym<=EOS; sym++)
+        {
+            int code = (sym == EOS) ? 0x3fffffff : HUFFMAN_CODES[sym];
+            int length = (sym == EOS) ? 30 : HUFFMAN_LENGTHS[sym];
+
+            int node = 0;
+            for (int b=length-1; b>0; b--)
+            {
+                int slot = 2*node + ((code >>> b) & 1);
+                if (tree[slot] == 0)
+                    tree[slot] = nodes++;
+                node = tree[slot];
+            }
+            tree[2*node + (code & 1)] = -(sym+1);
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    static class DynamicTable
+    {
+        private String[] names, values;
+        private int head, count, size, maxSize;
+        private long inserted;
+
+        DynamicTable(int maxSize)
+        {
+            this.maxSize = maxSize;
+            names = new String[16];
+            values = new String[16];
+            head = count = size = 0;
+            inserted = 0;
+        }
+
+        int length()
+        {
+            return count;
+        }
+
+        /** Index 0 is the most recently added entry. */
+        String getName(int index)
+        {
+            return names[(head + count - 1 - index) & (names.length - 1)];
+        }
+
+        String getValue(int index)
+        {
+            return values[(head + count - 1 - index) & (names.length - 1)];
+        }
+
+        long oldestId()
+        {
+            return inserted - count;
+        }
+
+        void setMaxSize(int maxSize)
+        {
+            this.maxSize = maxSize;
+            evictTo(maxSize);
+        }
+
+        int getMaxSize()
+        {
+            return maxSize;
+        }
+
+        protected void evicted(String name, String value, long id) {}
+
+        private void evictTo(int limit)
+        {
+            while ((size > limit) && (count > 0))
+            {
+                String name = names[head];
+                String value = values[head];
+                names[head] = values[head] = null;
+                head = (head + 1) & (names.length - 1);
+                count--;
+                size -= name.length() + value.length() + ENTRY_OVERHEAD;
+                evicted(name, value, inserted - count - 1);
+            }
+        }
+
+        /** Adds the entry, returning its id (a sequence number which stays the same as later entries are added), or -1 if it was too large to add. */
+        long add(String name, String value)
+        {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evictTo(maxSize - entrySize);
+            if (entrySize > maxSize)
+                return -1;
+
+            if (count == names.length)
+            {
+                String[] nn = new String[2*names.length];
+                String[] vv = new String[2*names.length];
+                for (int i=0; i<count; i++)
+                {
+                    nn[i] = names[(head + i) & (names.length - 1)];
+                    vv[i] = values[(head + i) & (names.length - 1)];
+                }
+                names = nn;
+                values = vv;
+                head = 0;
+            }
+
+            int slot = (head + count) & (names.length - 1);
+            names[slot] = name;
+            values[slot] = value;
+            count++;
+            size += entrySize;
+            return inserted++;
+        }
+    }
+
+    /** Thrown when a decoded header list is larger than the decoder's limits. The block has still been fully decoded, so the dynamic table remains usable and only the stream need fail. */
+    public static class HeaderListSizeException extends IOException
+    {
+        public HeaderListSizeException(String message)
+        {
+            super(message);
+        }
+    }
+
+    public static class Decoder
+    {
+        private final DynamicTable table;
+        private final int maxHeaderListSize, maxHeaderFields;
+        private int maxTableSize;
+        private byte[] stringBuffer;
+
+        public Decoder(int maxTableSize)
+        {
+            this(maxTableSize, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+
+        /** The header list limits are the decoded size (name and value lengths plus 32 per field, as RFC 7541 section 4.1) and the number of fields. */
+        public Decoder(int maxTableSize, int maxHeaderListSize, int maxHeaderFields)
+        {
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+            this.maxHeaderFields = maxHeaderFields;
+            table = new DynamicTable(maxTableSize);
+            stringBuffer = new byte[256];
+        }
+
+        public int getMaxHeaderListSize()
+        {
+            return maxHeaderListSize;
+        }
+
+        /** 
+            Decodes a complete header block, adding alternate names and values to the list. Throws an IOException if the block is malformed, which is a connection error.
+            Fields stop being added to the list as soon as the header list limits are passed, and a HeaderListSizeException is thrown once the rest of the block has been
+            decoded (which only updates the dynamic table, as it must be kept in step with the encoder).
+        */
+        public void decode(byte[] block, int off, int len, List headers) throws IOException
+        {
+            int[] pos = new int[]{off};
+            int end = off + len;
+            boolean headerSeen = false;
+            long listSize = 0;
+            int fieldCount = 0;
+            boolean overLimit = false;
+
+            while (pos[0] < end)
+            {
+                String name = null, value = null;
+                int b = block[pos[0]] & 0xFF;
+                if ((b & 0x80) != 0)
+                {
+                    int index = readInteger(block, pos, end, 7);
+                    name = getName(index);
+                    value = getValue(index);
+                }
+                else if ((b & 0xC0) == 0x40)
+                {
+                    int index = readInteger(block, pos, end, 6);
+                    name = (index == 0) ? readString(block, pos, end) : getName(index);
+                    value = readString(block, pos, end);
+                    table.add(name, value);
+                }
+                else if ((b & 0xE0) == 0x20)
+                {
+                    if (headerSeen)
+                        throw new IOException("HPACK table size update after header field");
+                    int size = readInteger(block, pos, end, 5);
+                    if (size > maxTableSize)
+                        throw new IOException("HPACK table size update "+size+" exceeds limit "+maxTableSize);
+                    table.setMaxSize(size);
+                    continue;
+                }
+                else
+                {
+                    int index = readInteger(block, pos, end, 4);
+                    name = (index == 0) ? readString(block, pos, end) : getName(index);
+                    value = readString(block, pos, end);
+                }
+
+                headerSeen = true;
+                if (overLimit)
+                    continue;
+
+                fieldCount++;
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if ((fieldCount > maxHeaderFields) || (listSize > maxHeaderListSize))
+                    overLimit = true;
+                else
+                {
+                    headers.add(name);
+                    headers.add(value);
+                }
+            }
+
+            if (overLimit)
+                throw new HeaderListSizeException("Header list exceeds "+maxHeaderFields+" fields or "+maxHeaderListSize+" bytes");
+        }
+
+        private String getName(int index) throws IOException
+        {
+            if ((index > 0) && (index <= STATIC_TABLE.length))
+                return STATIC_TABLE[index-1][0];
+            index -= STATIC_TABLE.length + 1;
+            if ((index < 0) || (index >= table.length()))
+                throw new IOException("Invalid HPACK index");
+            return table.getName(index);
+        }
+
+        private String getValue(int index) throws IOException
+        {
+            if ((index > 0) && (index <= STATIC_TABLE.length))
+                return STATIC_TABLE[index-1][1];
+            index -= STATIC_TABLE.length + 1;
+            if ((index < 0) || (index >= table.length()))
+                throw new IOException("Invalid HPACK index");
+            return table.getValue(index);
+        }
+
+        private String readString(byte[] block, int[] pos, int end) throws IOException
+        {
+            if (pos[0] >= end)
+                throw new IOException("Truncated HPACK string");
+            boolean huffman = (block[pos[0]] & 0x80) != 0;
+            int length = readInteger(block, pos, end, 7);
+            if (length > end - pos[0])
+                throw new IOException("Truncated HPACK string");
+
+            int start = pos[0];
+            pos[0] += length;
+            if (!huffman)
+                return new String(block, start, length, HTTPUtils.ASCII);
+
+            int outLen = 0;
+            int node = 0, bitsSinceSymbol = 0;
+            boolean allOnes = true;
+            for (int i=start; i<start+length; i++)
+            {
+                int bb = block[i] & 0xFF;
+                for (int bit=7; bit>=0; bit--)
+                {
+                    int one = (bb >>> bit) & 1;
+                    int next = HUFFMAN_TREE[2*node + one];
+                    bitsSinceSymbol++;
+                    allOnes &= (one == 1);
+                    if (next < 0)
+                    {
+                        int sym = -next - 1;
+                        if (sym == EOS)
+                            throw new IOException("HPACK Huffman string contains EOS");
+                        if (outLen == stringBuffer.length)
+                            stringBuffer = Arrays.copyOf(stringBuffer, 2*outLen);
+                        stringBuffer[outLen++] = (byte) sym;
+                        node = 0;
+                        bitsSinceSymbol = 0;
+                        allOnes = true;
+                    }
+                    else if (next == 0)
+                        throw new IOException("Invalid HPACK Huffman code");
+                    else
+                        node = next;
+                }
+            }
+
+            if ((bitsSinceSymbol > 7) || !allOnes)
+                throw new IOException("Invalid HPACK Huffman padding");
+            return new String(stringBuffer, 0, outLen, HTTPUtils.ASCII);
+        }
+    }
+
+    static int readInteger(byte[] block, int[] pos, int end, int prefixBits) throws IOException
+    {
+        int mask = (1 << prefixBits) - 1;
+        int result = block[pos[0]++] & mask;
+        if (result < mask)
+            return result;
+
+        for (int shift=0; ; shift+=7)
+        {
+            if (pos[0] >= end)
+                throw new IOException("Truncated HPACK integer");
+            if (shift > 21)
+                throw new IOException("HPACK integer overflow");
+            int b = block[pos[0]++] & 0xFF;
+            result += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+    }
+
+    static void writeInteger(ByteArrayOutputStream out, int firstByteFlags, int prefixBits, int value)
+    {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask)
+        {
+            out.write(firstByteFlags | value);
+            return;
+        }
+
+        out.write(firstByteFlags | mask);
+        value -= mask;
+        while (value >= 0x80)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String s)
+    {
+        int len = s.length();
+        long bits = 0;
+        for (int i=0; i<len; i++)
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xFF];
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= len)
+        {
+            writeInteger(out, 0x00, 7, len);
+            for (int i=0; i<len; i++)
+                out.write(s.charAt(i));
+            return;
+        }
+
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long acc = 0;
+        int accBits = 0;
+        for (int i=0; i<len; i++)
+        {
+            int sym = s.charAt(i) & 0xFF;
+            acc = (acc << HUFFMAN_LENGTHS[sym]) | HUFFMAN_CODES[sym];
+            accBits += HUFFMAN_LENGTHS[sym];
+            while (accBits >= 8)
+            {
+                accBits -= 8;
+                out.write((int) (acc >>> accBits));
+            }
+        }
+        if (accBits > 0)
+            out.write((int) ((acc << (8 - accBits)) | (0xFF >>> accBits)));
+    }
+
+    /**
+        Encodes header blocks, indexing repeated fields in the dynamic table. Values which change with every response (lengths, validators, cookies)
+        are sent without indexing so that they do not push the repeated ones out of the table.
+    */
+    public static class Encoder
+    {
+        private final DynamicTable table;
+        private final HashMap fieldIds, nameIds;
+        private int pendingSizeUpdate;
+
+        public Encoder()
+        {
+            fieldIds = new HashMap();
+            nameIds = new HashMap();
+            pendingSizeUpdate = -1;
+            table = new DynamicTable(DEFAULT_TABLE_SIZE)
+            {
+                protected void evicted(String name, String value, long id)
+                {
+                    Long key = Long.valueOf(id);
+                    fieldIds.remove(name+"\u0000"+value, key);
+                    nameIds.remove(name, key);
+                }
+            };
+        }
+
+        /** Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The change is signalled at the start of the next header block. */
+        public void setMaxTableSize(int size)
+        {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.getMaxSize())
+                return;
+            table.setMaxSize(size);
+            pendingSizeUpdate = size;
+        }
+
+        private int dynamicIndex(Long id)
+        {
+            if ((id == null) || (id.longValue() < table.oldestId()))
+                return -1;
+            return STATIC_TABLE.length + 1 + (int) (table.inserted - 1 - id.longValue());
+        }
+
+        protected boolean shouldIndex(String name)
+        {
+            switch (name)
+            {
+            case "content-length":
+            case "content-range":
+            case "etag":
+            case "last-modified":
+            case "set-cookie":
+            case ":path":
+                return false;
+            default:
+                return true;
+            }
+        }
+
+        /** Starts a header block, writing any pending table size update. */
+        public void startBlock(ByteArrayOutputStream out)
+        {
+            if (pendingSizeUpdate >= 0)
+                writeInteger(out, 0x20, 5, pendingSizeUpdate);
+            pendingSizeUpdate = -1;
+        }
+
+        /** Writes one field; the name must already be lower case. */
+        public void encode(String name, String value, ByteArrayOutputStream out)
+        {
+            String field = name+"\u0000"+value;
+            Integer staticIndex = (Integer) STATIC_INDEX.get(field);
+            if (staticIndex != null)
+            {
+                writeInteger(out, 0x80, 7, staticIndex.intValue());
+                return;
+            }
+
+            int index = dynamicIndex((Long) fieldIds.get(field));
+            if (index > 0)
+            {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+
+            Integer staticName = (Integer) STATIC_NAME_INDEX.get(name);
+            int nameIndex = (staticName != null) ? staticName.intValue() : dynamicIndex((Long) nameIds.get(name));
+
+            if ("set-cookie".equals(name) || "authorization".equals(name))
+            {
+                writeInteger(out, 0x10, 4, Math.max(0, nameIndex));
+                if (nameIndex <= 0)
+                    writeString(out, name);
+                writeString(out, value);
+            }
+            else if (!shouldIndex(name))
+            {
+                writeInteger(out, 0x00, 4, Math.max(0, nameIndex));
+                if (nameIndex <= 0)
+                    writeString(out, name);
+                writeString(out, value);
+            }
+            else
+            {
+                writeInteger(out, 0x40, 6, Math.max(0, nameIndex));
+                if (nameIndex <= 0)
+                    writeString(out, name);
+                writeString(out, value);
+
+                long id = table.add(name, value);
+                if (id >= 0)
+                {
+                    fieldIds.put(field, Long.valueOf(id));
+                    nameIds.put(name, Long.valueOf(id));
+                }
+            }
+        }
+    }
+}
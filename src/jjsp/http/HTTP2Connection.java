@@ -0,0 +1,1408 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import jjsp.util.*;
+
+/**
+   The server side of an HTTP/2 connection (RFC 7540), with HPACK header compression, stream multiplexing and flow control.
+
+   The thread calling serve reads frames for the life of the connection, and each request stream is handled on the executor by a StreamHandler.
+   Streams are presented to the handler as HTTP/1.1 bytes - the request is rewritten as an HTTP/1.1 request (chunked if it has a body of unknown length)
+   and the HTTP/1.1 response written back is parsed into HEADERS and DATA frames - so that the existing HTTPInputStream and HTTPOutputStream
+   request processing, and every filter built on it, works unchanged over HTTP/2. Server push and stream priorities are not used.
+ */
+public class HTTP2Connection
+{
+    public interface StreamHandler
+    {
+        /** Reads one HTTP/1.1 request from the input and writes the HTTP/1.1 response to the output. Called on an executor thread for each stream. */
+        public void handleStream(InputStream request, OutputStream response) throws IOException;
+    }
+
+    public static final byte[] PREFACE = Utils.getAsciiBytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int STREAM_WINDOW_SIZE = 256*1024;
+    public static final int CONNECTION_WINDOW_SIZE = 1024*1024;
+    public static final int MAX_FRAME_SIZE = 16*1024;
+    public static final int MAX_HEADER_BLOCK_SIZE = 64*1024;
+    public static final int MAX_HEADER_LIST_SIZE = 64*1024;
+
+    static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5, PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 1, SETTINGS_ENABLE_PUSH = 2, SETTINGS_MAX_CONCURRENT_STREAMS = 3, SETTINGS_INITIAL_WINDOW_SIZE = 4, SETTINGS_MAX_FRAME_SIZE = 5, SETTINGS_MAX_HEADER_LIST_SIZE = 6;
+
+    public static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3, STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private static final byte[] LAST_CHUNK = Utils.getAsciiBytes("0\r\n\r\n");
+
+    static class HTTP2Exception extends IOException
+    {
+        final int errorCode;
+
+        HTTP2Exception(int errorCode, String message)
+        {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    static class BlockBuffer extends ByteArrayOutputStream
+    {
+        BlockBuffer(int size)
+        {
+            super(size);
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Executor executor;
+    private final StreamHandler handler;
+
+    private final HPACK.Decoder decoder;
+    private final HPACK.Encoder encoder;
+    private final HashMap streams;
+    private final int maxConcurrentStreams;
+
+    private final Object writeLock;
+    private final byte[] writeBuffer;
+    private final BlockBuffer encodedHeaders;
+    private int writePos;
+
+    private int lastStreamId, activeStreams, peerInitialWindow, peerMaxFrameSize, receivedSinceUpdate;
+    private long connectionSendWindow;
+    private boolean goingAway, closed;
+
+    public HTTP2Connection(InputStream in, OutputStream out, Executor executor, StreamHandler handler)
+    {
+        this(in, out, executor, handler, DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    public HTTP2Connection(InputStream in, OutputStream out, Executor executor, StreamHandler handler, int maxConcurrentStreams)
+    {
+        this.in = in;
+        this.out = out;
+        this.executor = executor;
+        this.handler = handler;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+
+        decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE, HTTPHeaders.MAX_HEADERS);
+        encoder = new HPACK.Encoder();
+        streams = new HashMap();
+
+        writeLock = new Object();
+        writeBuffer = new byte[64*1024];
+        encodedHeaders = new BlockBuffer(1024);
+        writePos = 0;
+
+        lastStreamId = 0;
+        activeStreams = 0;
+        receivedSinceUpdate = 0;
+        peerInitialWindow = DEFAULT_WINDOW_SIZE;
+        peerMaxFrameSize = MAX_FRAME_SIZE;
+        connectionSendWindow = DEFAULT_WINDOW_SIZE;
+        goingAway = closed = false;
+    }
+
+    /**
+        Serves the connection until the client closes it, or a connection error occurs. If prefaceRead is true the caller
+        has already consumed the client connection preface (for example while parsing it as an HTTP/1.1 request line).
+    */
+    public void serve(boolean prefaceRead) throws IOException
+    {
+        serve(prefaceRead, null, null, false);
+    }
+
+    /**
+        Serves a connection upgraded from HTTP/1.1 (an "Upgrade: h2c" request, already answered with 101 Switching Protocols).
+        The upgrading request, given as its HTTP/1.1 header bytes, becomes stream 1 and the settings are the decoded HTTP2-Settings header.
+    */
+    public void serveUpgrade(byte[] requestHead, boolean isHeadRequest, byte[] settings) throws IOException
+    {
+        serve(false, requestHead, settings, isHeadRequest);
+    }
+
+    private void serve(boolean prefaceRead, byte[] upgradeRequest, byte[] upgradeSettings, boolean upgradeIsHead) throws IOException
+    {
+        try
+        {
+            sendSettings();
+            if (upgradeSettings != null)
+                applySettings(upgradeSettings, 0, upgradeSettings.length, false);
+            if (upgradeRequest != null)
+            {
+                Stream s = new Stream(1, upgradeIsHead);
+                s.enqueue(upgradeRequest, 0);
+                s.endInput();
+                lastStreamId = 1;
+                dispatch(s);
+            }
+
+            if (!prefaceRead)
+                readPreface();
+            readFrames();
+        }
+        catch (HTTP2Exception e)
+        {
+            try
+            {
+                sendGoAway(e.errorCode);
+            }
+            catch (IOException ee) {}
+            throw e;
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+
+    private void readPreface() throws IOException
+    {
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface, preface.length);
+        if (!Arrays.equals(preface, PREFACE))
+            throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid HTTP/2 connection preface");
+    }
+
+    private void readFully(byte[] buf, int len) throws IOException
+    {
+        int pos = 0;
+        while (pos < len)
+        {
+            int r = in.read(buf, pos, len - pos);
+            if (r < 0)
+                throw new EOFException();
+            pos += r;
+        }
+    }
+
+    private void readFrames() throws IOException
+    {
+        byte[] header = new byte[9];
+        byte[] payload = new byte[MAX_FRAME_SIZE];
+        BlockBuffer headerBlock = new BlockBuffer(1024);
+        int continuationStream = 0, continuationFlags = 0;
+
+        while (true)
+        {
+            try
+            {
+                readFully(header, 1);
+            }
+            catch (EOFException e)
+            {
+                return;
+            }
+            catch (SocketTimeoutException e)
+            {
+                synchronized (this)
+                {
+                    if (activeStreams > 0)
+                        continue;
+                }
+                sendGoAway(NO_ERROR);
+                return;
+            }
+
+            int pos = 1;
+            while (pos < 9)
+            {
+                int r = in.read(header, pos, 9 - pos);
+                if (r < 0)
+                    throw new EOFException("Truncated HTTP/2 frame");
+                pos += r;
+            }
+
+            int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int streamId = readInt(header, 5) & 0x7FFFFFFF;
+
+            if (length > MAX_FRAME_SIZE)
+                throw new HTTP2Exception(FRAME_SIZE_ERROR, "Frame too large "+length);
+            readFully(payload, length);
+
+            if ((continuationStream != 0) && ((type != CONTINUATION) || (streamId != continuationStream)))
+                throw new HTTP2Exception(PROTOCOL_ERROR, "Expected CONTINUATION frame");
+
+            switch (type)
+            {
+            case DATA:
+                receiveData(streamId, flags, payload, length);
+                break;
+
+            case HEADERS:
+            {
+                if ((streamId == 0) || ((streamId & 1) == 0))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid stream id "+streamId+" for HEADERS");
+
+                int off = 0, padding = 0;
+                if ((flags & PADDED) != 0)
+                {
+                    if (length == 0)
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid HEADERS padding");
+                    padding = payload[0] & 0xFF;
+                    off = 1;
+                }
+                if ((flags & PRIORITY_FLAG) != 0)
+                    off += 5;
+                if (off + padding > length)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid HEADERS padding");
+
+                headerBlock.reset();
+                headerBlock.write(payload, off, length - off - padding);
+                if ((flags & END_HEADERS) != 0)
+                    receiveHeaders(streamId, flags, headerBlock);
+                else
+                {
+                    continuationStream = streamId;
+                    continuationFlags = flags;
+                }
+                break;
+            }
+
+            case CONTINUATION:
+                if (continuationStream == 0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+                if (headerBlock.size() + length > MAX_HEADER_BLOCK_SIZE)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Header block too large");
+
+                headerBlock.write(payload, 0, length);
+                if ((flags & END_HEADERS) != 0)
+                {
+                    continuationStream = 0;
+                    receiveHeaders(streamId, continuationFlags, headerBlock);
+                }
+                break;
+
+            case PRIORITY:
+                if (length != 5)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "Invalid PRIORITY frame");
+                break;
+
+            case RST_STREAM:
+                if (length != 4)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+                if (streamId == 0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+                Stream reset = getStream(streamId);
+                if (reset != null)
+                    reset.reset();
+                break;
+
+            case SETTINGS:
+                if (streamId != 0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "SETTINGS on stream "+streamId);
+                if ((flags & ACK) != 0)
+                {
+                    if (length != 0)
+                        throw new HTTP2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                    break;
+                }
+                if ((length % 6) != 0)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS length");
+                applySettings(payload, 0, length, true);
+                break;
+
+            case PUSH_PROMISE:
+                throw new HTTP2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+
+            case PING:
+                if (length != 8)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+                if (streamId != 0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "PING on stream "+streamId);
+                if ((flags & ACK) == 0)
+                    writeFrame(PING, ACK, 0, payload, 0, 8, true);
+                break;
+
+            case GOAWAY:
+                synchronized (this)
+                {
+                    goingAway = true;
+                }
+                break;
+
+            case WINDOW_UPDATE:
+            {
+                if (length != 4)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+                int increment = readInt(payload, 0) & 0x7FFFFFFF;
+                if (streamId == 0)
+                {
+                    if (increment == 0)
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "Zero WINDOW_UPDATE increment");
+                    synchronized (this)
+                    {
+                        connectionSendWindow += increment;
+                        if (connectionSendWindow > MAX_WINDOW_SIZE)
+                            throw new HTTP2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                        notifyAll();
+                    }
+                }
+                else
+                {
+                    Stream s = getStream(streamId);
+                    if (s == null)
+                        break;
+                    if (increment == 0)
+                    {
+                        resetStream(s, PROTOCOL_ERROR);
+                        break;
+                    }
+                    synchronized (this)
+                    {
+                        s.sendWindow += increment;
+                        if (s.sendWindow > MAX_WINDOW_SIZE)
+                        {
+                            resetStream(s, FLOW_CONTROL_ERROR);
+                            break;
+                        }
+                        notifyAll();
+                    }
+                }
+                break;
+            }
+
+            default: //Unknown frame types are ignored
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int off, int value)
+    {
+        b[off] = (byte) (value >>> 24);
+        b[off+1] = (byte) (value >>> 16);
+        b[off+2] = (byte) (value >>> 8);
+        b[off+3] = (byte) value;
+    }
+
+    private synchronized Stream getStream(int id)
+    {
+        return (Stream) streams.get(Integer.valueOf(id));
+    }
+
+    private void applySettings(byte[] payload, int off, int len, boolean acknowledge) throws IOException
+    {
+        for (int i=off; i+6<=off+len; i+=6)
+        {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i+1] & 0xFF);
+            int value = readInt(payload, i+2);
+
+            switch (id)
+            {
+            case SETTINGS_HEADER_TABLE_SIZE:
+                synchronized (writeLock)
+                {
+                    encoder.setMaxTableSize(Math.max(0, value));
+                }
+                break;
+
+            case SETTINGS_ENABLE_PUSH:
+                if ((value != 0) && (value != 1))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                break;
+
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value < 0)
+                    throw new HTTP2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                synchronized (this)
+                {
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    Iterator itt = streams.values().iterator();
+                    while (itt.hasNext())
+                    {
+                        Stream s = (Stream) itt.next();
+                        s.sendWindow += delta;
+                        if (s.sendWindow > MAX_WINDOW_SIZE)
+                            throw new HTTP2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                    }
+                    notifyAll();
+                }
+                break;
+
+            case SETTINGS_MAX_FRAME_SIZE:
+                if ((value < MAX_FRAME_SIZE) || (value > 0xFFFFFF))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                synchronized (this)
+                {
+                    peerMaxFrameSize = value;
+                }
+                break;
+
+            default:
+            }
+        }
+
+        if (acknowledge)
+            writeFrame(SETTINGS, ACK, 0, null, 0, 0, true);
+    }
+
+    private void sendSettings() throws IOException
+    {
+        byte[] settings = new byte[18];
+        settings[1] = (byte) SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt(settings, 2, maxConcurrentStreams);
+        settings[7] = (byte) SETTINGS_INITIAL_WINDOW_SIZE;
+        writeInt(settings, 8, STREAM_WINDOW_SIZE);
+        settings[13] = (byte) SETTINGS_MAX_HEADER_LIST_SIZE;
+        writeInt(settings, 14, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, false);
+
+        byte[] increment = new byte[4];
+        writeInt(increment, 0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+        writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, 4, true);
+    }
+
+    private void sendGoAway(int errorCode) throws IOException
+    {
+        byte[] payload = new byte[8];
+        synchronized (this)
+        {
+            writeInt(payload, 0, lastStreamId);
+        }
+        writeInt(payload, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8, true);
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException
+    {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4, true);
+    }
+
+    private void resetStream(Stream s, int errorCode) throws IOException
+    {
+        s.reset();
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, s.id, payload, 0, 4, true);
+    }
+
+    private void refuseStream(int id, int errorCode) throws IOException
+    {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, id, payload, 0, 4, true);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len, boolean flush) throws IOException
+    {
+        synchronized (writeLock)
+        {
+            if (writePos + 9 + len > writeBuffer.length)
+                flushBuffer();
+
+            byte[] b = writeBuffer;
+            b[writePos] = (byte) (len >>> 16);
+            b[writePos+1] = (byte) (len >>> 8);
+            b[writePos+2] = (byte) len;
+            b[writePos+3] = (byte) type;
+            b[writePos+4] = (byte) flags;
+            writeInt(b, writePos+5, streamId);
+            writePos += 9;
+
+            if (len > 0)
+            {
+                if (writePos + len > writeBuffer.length)
+                {
+                    flushBuffer();
+                    out.write(payload, off, len);
+                }
+                else
+                {
+                    System.arraycopy(payload, off, writeBuffer, writePos, len);
+                    writePos += len;
+                }
+            }
+
+            if (flush)
+                flushOutput();
+        }
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (writePos > 0)
+            out.write(writeBuffer, 0, writePos);
+        writePos = 0;
+    }
+
+    private void flushOutput() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /** HPACK encodes the header fields (alternate names and values) as a HEADERS frame, with CONTINUATION frames if the block is larger than a frame. */
+    private void sendHeaders(int streamId, List fields, boolean endStream) throws IOException
+    {
+        int frameSize = MAX_FRAME_SIZE;
+        synchronized (writeLock)
+        {
+            encodedHeaders.reset();
+            encoder.startBlock(encodedHeaders);
+            for (int i=0; i<fields.size(); i+=2)
+                encoder.encode((String) fields.get(i), (String) fields.get(i+1), encodedHeaders);
+
+            byte[] block = encodedHeaders.array();
+            int len = encodedHeaders.size();
+            int first = Math.min(len, frameSize);
+            int flags = (endStream ? END_STREAM : 0) | ((first == len) ? END_HEADERS : 0);
+            writeFrame(HEADERS, flags, streamId, block, 0, first, false);
+
+            for (int pos=first; pos<len; pos+=frameSize)
+            {
+                int n = Math.min(frameSize, len - pos);
+                writeFrame(CONTINUATION, (pos + n == len) ? END_HEADERS : 0, streamId, block, pos, n, false);
+            }
+        }
+    }
+
+    /** Sends the content as DATA frames, waiting as necessary for the stream and connection flow control windows. */
+    private void sendData(Stream s, byte[] b, int off, int len, boolean endStream) throws IOException
+    {
+        if (len == 0)
+        {
+            if (endStream)
+                writeFrame(DATA, END_STREAM, s.id, null, 0, 0, false);
+            return;
+        }
+
+        while (len > 0)
+        {
+            int n = 0;
+            synchronized (this)
+            {
+                while (true)
+                {
+                    if (s.reset || closed)
+                        throw new IOException("HTTP/2 stream "+s.id+" closed");
+
+                    n = (int) Math.min(Math.min(len, Math.min(peerMaxFrameSize, MAX_FRAME_SIZE)), Math.min(s.sendWindow, connectionSendWindow));
+                    if (n > 0)
+                        break;
+
+                    flushOutput(); //The client must see what has been sent before it can open the window
+                    try
+                    {
+                        wait(1000);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                s.sendWindow -= n;
+                connectionSendWindow -= n;
+            }
+
+            boolean last = endStream && (n == len);
+            writeFrame(DATA, last ? END_STREAM : 0, s.id, b, off, n, false);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void receiveData(int streamId, int flags, byte[] payload, int length) throws IOException
+    {
+        if (streamId == 0)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+
+        int off = 0, padding = 0;
+        if ((flags & PADDED) != 0)
+        {
+            if (length == 0)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid DATA padding");
+            padding = payload[0] & 0xFF;
+            off = 1;
+            if (off + padding > length)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "Invalid DATA padding");
+        }
+
+        receivedSinceUpdate += length;
+        if (receivedSinceUpdate >= CONNECTION_WINDOW_SIZE/2)
+        {
+            sendWindowUpdate(0, receivedSinceUpdate);
+            receivedSinceUpdate = 0;
+        }
+
+        Stream s = getStream(streamId);
+        if (s == null)
+        {
+            synchronized (this)
+            {
+                if (streamId > lastStreamId)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "DATA on idle stream "+streamId);
+            }
+            return; //A stream which has been closed or reset, for which frames may still be in flight
+        }
+
+        if (s.inputEnded)
+        {
+            resetStream(s, STREAM_CLOSED);
+            return;
+        }
+
+        boolean overflow = false;
+        synchronized (s)
+        {
+            s.receiveWindow -= length;
+            overflow = s.receiveWindow < 0;
+        }
+        if (overflow)
+        {
+            resetStream(s, FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        int dataLength = length - off - padding;
+        if (dataLength > 0)
+        {
+            byte[] data = Arrays.copyOfRange(payload, off, off + dataLength);
+            if (s.chunkedInput)
+                s.enqueue(Utils.getAsciiBytes(Integer.toHexString(dataLength)+"\r\n"), 0);
+            s.enqueue(data, dataLength);
+            if (s.chunkedInput)
+                s.enqueue(Utils.getAsciiBytes("\r\n"), 0);
+        }
+        if (off + padding > 0)
+            s.credit(off + padding);
+
+        if ((flags & END_STREAM) != 0)
+        {
+            if (s.chunkedInput)
+                s.enqueue(LAST_CHUNK, 0);
+            s.endInput();
+        }
+    }
+
+    private void receiveHeaders(int streamId, int flags, BlockBuffer block) throws IOException
+    {
+        ArrayList fields = new ArrayList();
+        boolean tooLarge = false;
+        try
+        {
+            decoder.decode(block.array(), 0, block.size(), fields);
+        }
+        catch (HPACK.HeaderListSizeException e)
+        {
+            tooLarge = true;
+        }
+        catch (IOException e)
+        {
+            throw new HTTP2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        boolean endStream = (flags & END_STREAM) != 0;
+        Stream existing = getStream(streamId);
+        if (existing != null)
+        {
+
+            //Trailers, which are not passed on (the synthesised HTTP/1.1 request has none), but which end the request body
+            if (!endStream)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "Trailers without END_STREAM");
+            if (existing.chunkedInput)
+                existing.enqueue(LAST_CHUNK, 0);
+            existing.endInput();
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (streamId <= lastStreamId)
+                throw new HTTP2Exception(STREAM_CLOSED, "HEADERS on closed stream "+streamId);
+            lastStreamId = streamId;
+
+            if (goingAway || closed)
+                return;
+        }
+
+        if (tooLarge)
+        {
+            rejectHeaderList(streamId, endStream);
+            return;
+        }
+
+        Stream s = null;
+        byte[] requestHead = null;
+        try
+        {
+            s = new Stream(streamId, false);
+            requestHead = toHTTP11Request(fields, endStream, s);
+        }
+        catch (IOException e)
+        {
+            refuseStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (activeStreams >= maxConcurrentStreams)
+                s = null;
+        }
+        if (s == null)
+        {
+            refuseStream(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        s.enqueue(requestHead, 0);
+        if (endStream)
+            s.endInput();
+        dispatch(s);
+    }
+
+    /** Answers a request whose header list is over the advertised limit with a 431 response, resetting the stream if the client has more to send. */
+    private void rejectHeaderList(int streamId, boolean endStream) throws IOException
+    {
+        ArrayList fields = new ArrayList();
+        fields.add(":status");
+        fields.add("431");
+        fields.add("content-length");
+        fields.add("0");
+        sendHeaders(streamId, fields, true);
+
+        if (endStream)
+            flushOutput();
+        else
+            refuseStream(streamId, NO_ERROR);
+    }
+
+    private void dispatch(Stream s) throws IOException
+    {
+        synchronized (this)
+        {
+            streams.put(Integer.valueOf(s.id), s);
+            activeStreams++;
+        }
+
+        try
+        {
+            executor.execute(() -> runStream(s));
+        }
+        catch (RejectedExecutionException e)
+        {
+            streamFinished(s);
+            refuseStream(s.id, REFUSED_STREAM);
+        }
+    }
+
+    private void runStream(Stream s)
+    {
+        try
+        {
+            handler.handleStream(s.input, s.output);
+            s.output.finish();
+        }
+        catch (Throwable t)
+        {
+            try
+            {
+                if (!s.output.ended && !s.reset)
+                    resetStream(s, INTERNAL_ERROR);
+                flushOutput();
+            }
+            catch (Throwable tt) {}
+        }
+        finally
+        {
+            streamFinished(s);
+        }
+    }
+
+    private void streamFinished(Stream s)
+    {
+        boolean unreadInput = false;
+        synchronized (this)
+        {
+            if (streams.remove(Integer.valueOf(s.id)) != null)
+                activeStreams--;
+            notifyAll();
+            unreadInput = !s.inputEnded && !s.reset;
+        }
+
+        if (unreadInput) //The response is complete, so the client need not send the rest of the request body
+        {
+            try
+            {
+                resetStream(s, NO_ERROR);
+            }
+            catch (Throwable t) {}
+        }
+    }
+
+    private void closeAll()
+    {
+        ArrayList toClose = null;
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new ArrayList(streams.values());
+            notifyAll();
+        }
+
+        for (int i=0; i<toClose.size(); i++)
+            ((Stream) toClose.get(i)).reset();
+
+        try
+        {
+            flushOutput();
+        }
+        catch (Throwable t) {}
+    }
+
+    private static boolean isValidFieldText(String s, boolean isName)
+    {
+        for (int i=0; i<s.length(); i++)
+        {
+            char ch = s.charAt(i);
+            if ((ch == '\r') || (ch == '\n') || (ch == 0) || (ch > 0xFF))
+                return false;
+            if (isName && ((ch <= ' ') || (ch == ':') || ((ch >= 'A') && (ch <= 'Z'))))
+                return false;
+        }
+        return true;
+    }
+
+    /** Rewrites the request header fields as an HTTP/1.1 request head, rejecting malformed requests (including any which could inject extra HTTP/1.1 header lines). */
+    private byte[] toHTTP11Request(List fields, boolean endStream, Stream s) throws IOException
+    {
+        String method = null, path = null, authority = null;
+        boolean regularSeen = false, hasHost = false, hasContentLength = false;
+        StringBuilder headers = new StringBuilder();
+        StringBuilder cookies = null;
+
+        for (int i=0; i<fields.size(); i+=2)
+        {
+            String name = (String) fields.get(i);
+            String value = (String) fields.get(i+1);
+
+            if (name.startsWith(":"))
+            {
+                if (regularSeen)
+                    throw new IOException("Pseudo header after regular header");
+                if (!isValidFieldText(value, false))
+                    throw new IOException("Invalid pseudo header value");
+
+                if (name.equals(":method") && (method == null))
+                    method = value;
+                else if (name.equals(":path") && (path == null))
+                    path = value;
+                else if (name.equals(":authority") && (authority == null))
+                    authority = value;
+                else if (!name.equals(":scheme"))
+                    throw new IOException("Invalid pseudo header "+name);
+                continue;
+            }
+
+            regularSeen = true;
+            if (!isValidFieldText(name, true) || !isValidFieldText(value, false))
+                throw new IOException("Invalid header field");
+
+            switch (name)
+            {
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+                throw new IOException("Connection specific header "+name);
+            case "te":
+            case "expect":
+                continue;
+            case "cookie":
+                if (cookies == null)
+                    cookies = new StringBuilder(value);
+                else
+                    cookies.append("; ").append(value);
+                continue;
+            case "host":
+                hasHost = true;
+                break;
+            case "content-length":
+                hasContentLength = true;
+                break;
+            default:
+            }
+
+            headers.append(name).append(": ").append(value).append("\r\n");
+        }
+
+        if ((method == null) || (path == null) || (path.length() == 0) || (method.indexOf(' ') >= 0) || (path.indexOf(' ') >= 0))
+            throw new IOException("Missing or invalid :method or :path");
+        if (method.equals("CONNECT"))
+            throw new IOException("CONNECT not supported");
+
+        StringBuilder result = new StringBuilder(method.length() + path.length() + headers.length() + 64);
+        result.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (!hasHost && (authority != null))
+            result.append("Host: ").append(authority).append("\r\n");
+        result.append(headers);
+        if (cookies != null)
+            result.append("Cookie: ").append(cookies).append("\r\n");
+        if (!endStream && !hasContentLength)
+        {
+            result.append("Transfer-Encoding: chunked\r\n");
+            s.chunkedInput = true;
+        }
+        result.append("\r\n");
+
+        s.isHeadRequest = method.equals("HEAD");
+        return Utils.getAsciiBytes(result.toString());
+    }
+
+    class Chunk
+    {
+        final byte[] data;
+        final int credit;
+        int pos;
+
+        Chunk(byte[] data, int credit)
+        {
+            this.data = data;
+            this.credit = credit;
+            pos = 0;
+        }
+    }
+
+    class Stream
+    {
+        final int id;
+        final ArrayDeque chunks;
+        final StreamInput input;
+        final StreamOutput output;
+
+        boolean isHeadRequest, chunkedInput;
+        volatile boolean inputEnded, reset;
+        long sendWindow;
+        int receiveWindow, unsentCredit;
+
+        Stream(int id, boolean isHeadRequest)
+        {
+            this.id = id;
+            this.isHeadRequest = isHeadRequest;
+            chunkedInput = false;
+            inputEnded = reset = false;
+            chunks = new ArrayDeque();
+            receiveWindow = STREAM_WINDOW_SIZE;
+            unsentCredit = 0;
+            synchronized (HTTP2Connection.this)
+            {
+                sendWindow = peerInitialWindow;
+            }
+
+            input = new StreamInput(this);
+            output = new StreamOutput(this);
+        }
+
+        synchronized void enqueue(byte[] data, int credit)
+        {
+            chunks.add(new Chunk(data, credit));
+            notifyAll();
+        }
+
+        synchronized void endInput()
+        {
+            inputEnded = true;
+            notifyAll();
+        }
+
+        void reset()
+        {
+            synchronized (this)
+            {
+                reset = true;
+                notifyAll();
+            }
+            synchronized (HTTP2Connection.this)
+            {
+                HTTP2Connection.this.notifyAll();
+            }
+        }
+
+        /** Returns flow control credit for consumed request content to the client once enough has accumulated. */
+        void credit(int bytes) throws IOException
+        {
+            int toSend = 0;
+            synchronized (this)
+            {
+                unsentCredit += bytes;
+                if ((unsentCredit >= STREAM_WINDOW_SIZE/2) && !inputEnded && !reset)
+                {
+                    toSend = unsentCredit;
+                    receiveWindow += unsentCredit;
+                    unsentCredit = 0;
+                }
+            }
+            if (toSend > 0)
+                sendWindowUpdate(id, toSend);
+        }
+    }
+
+    class StreamInput extends InputStream
+    {
+        private final Stream s;
+
+        StreamInput(Stream s)
+        {
+            this.s = s;
+        }
+
+        public int available()
+        {
+            synchronized (s)
+            {
+                Chunk c = (Chunk) s.chunks.peek();
+                return (c == null) ? 0 : c.data.length - c.pos;
+            }
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            return (r <= 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len <= 0)
+                return 0;
+
+            int credit = 0, r = 0;
+            synchronized (s)
+            {
+                while (s.chunks.isEmpty())
+                {
+                    if (s.reset)
+                        throw new IOException("HTTP/2 stream "+s.id+" reset");
+                    if (s.inputEnded)
+                        return -1;
+                    try
+                    {
+                        s.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                Chunk c = (Chunk) s.chunks.peek();
+                r = Math.min(len, c.data.length - c.pos);
+                System.arraycopy(c.data, c.pos, b, off, r);
+                c.pos += r;
+                if (c.pos == c.data.length)
+                {
+                    s.chunks.poll();
+                    credit = c.credit;
+                }
+            }
+
+            if (credit > 0)
+                s.credit(credit);
+            return r;
+        }
+    }
+
+    /** Parses the HTTP/1.1 response written by the stream handler into HEADERS and DATA frames. */
+    class StreamOutput extends OutputStream
+    {
+        private static final int HEAD = 0, NO_BODY = 1, FIXED = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4, CHUNK_DATA_END = 5, TRAILERS = 6, UNTIL_CLOSE = 7, DONE = 8;
+
+        private final Stream s;
+        private final ByteArrayOutputStream head;
+        private final StringBuilder line;
+
+        private int state, lastFour;
+        private long remaining;
+        boolean headersSent, ended;
+
+        StreamOutput(Stream s)
+        {
+            this.s = s;
+            head = new ByteArrayOutputStream(512);
+            line = new StringBuilder();
+            state = HEAD;
+            lastFour = 0;
+            headersSent = ended = false;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (s.reset)
+                throw new IOException("HTTP/2 stream "+s.id+" reset");
+
+            int end = off + len;
+            while (off < end)
+            {
+                switch (state)
+                {
+                case HEAD:
+                {
+                    int start = off;
+                    while ((off < end) && !headComplete(b[off++]));
+                    head.write(b, start, off - start);
+                    if (head.size() > MAX_HEADER_BLOCK_SIZE)
+                        throw new IOException("Response header too large");
+                    if (lastFour == 0x0D0A0D0A)
+                        sendResponseHeaders();
+                    break;
+                }
+
+                case NO_BODY:
+                case DONE:
+                    return;
+
+                case FIXED:
+                {
+                    int n = (int) Math.min(remaining, end - off);
+                    remaining -= n;
+                    sendBody(b, off, n, remaining == 0);
+                    off += n;
+                    break;
+                }
+
+                case UNTIL_CLOSE:
+                    sendBody(b, off, end - off, false);
+                    off = end;
+                    break;
+
+                case CHUNK_DATA:
+                {
+                    int n = (int) Math.min(remaining, end - off);
+                    remaining -= n;
+                    sendBody(b, off, n, false);
+                    off += n;
+                    if (remaining == 0)
+                        state = CHUNK_DATA_END;
+                    break;
+                }
+
+                default:
+                    off = parseChunkFraming(b, off, end);
+                }
+            }
+        }
+
+        private boolean headComplete(byte b)
+        {
+            lastFour = (lastFour << 8) | (b & 0xFF);
+            return lastFour == 0x0D0A0D0A;
+        }
+
+        private int parseChunkFraming(byte[] b, int off, int end) throws IOException
+        {
+            while (off < end)
+            {
+                char ch = (char) (b[off++] & 0xFF);
+                if (ch != '\n')
+                {
+                    line.append(ch);
+                    continue;
+                }
+
+                String text = line.toString().trim();
+                line.setLength(0);
+                if (state == CHUNK_DATA_END)
+                {
+                    state = CHUNK_SIZE;
+                    continue;
+                }
+                if (state == TRAILERS)
+                {
+                    if (text.length() == 0)
+                    {
+                        state = DONE;
+                        sendBody(null, 0, 0, true);
+                        return end;
+                    }
+                    continue;
+                }
+
+                int semi = text.indexOf(';');
+                if (semi >= 0)
+                    text = text.substring(0, semi).trim();
+                try
+                {
+                    remaining = Long.parseLong(text, 16);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Invalid chunk size in response");
+                }
+                state = (remaining == 0) ? TRAILERS : CHUNK_DATA;
+                return off;
+            }
+            return off;
+        }
+
+        private void sendResponseHeaders() throws IOException
+        {
+            String[] lines = new String(head.toByteArray(), HTTPUtils.ASCII).split("\r\n");
+            head.reset();
+            lastFour = 0;
+
+            String[] status = lines[0].split(" ", 3);
+            int code = 0;
+            try
+            {
+                code = Integer.parseInt(status[1]);
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Invalid response status line "+lines[0]);
+            }
+            if ((code >= 100) && (code < 200)) //Interim responses (100 Continue) are not passed on
+                return;
+
+            ArrayList fields = new ArrayList();
+            fields.add(":status");
+            fields.add(String.valueOf(code));
+
+            boolean chunked = false;
+            long contentLength = -1;
+            for (int i=1; i<lines.length; i++)
+            {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase();
+                String value = lines[i].substring(colon+1).trim();
+
+                switch (name)
+                {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "upgrade":
+                    continue;
+                case "transfer-encoding":
+                    chunked = value.toLowerCase().contains("chunked");
+                    continue;
+                case "content-length":
+                    try
+                    {
+                        contentLength = Long.parseLong(value);
+                    }
+                    catch (NumberFormatException e) {}
+                    break;
+                default:
+                }
+
+                fields.add(name);
+                fields.add(value);
+            }
+
+            if (s.isHeadRequest || (code == 204) || (code == 304) || (!chunked && (contentLength == 0)))
+                state = NO_BODY;
+            else if (chunked)
+                state = CHUNK_SIZE;
+            else if (contentLength > 0)
+            {
+                state = FIXED;
+                remaining = contentLength;
+            }
+            else
+                state = UNTIL_CLOSE;
+
+            headersSent = true;
+            sendHeaders(s.id, fields, state == NO_BODY);
+            if (state == NO_BODY)
+                ended = true;
+        }
+
+        private void sendBody(byte[] b, int off, int len, boolean last) throws IOException
+        {
+            if (ended)
+                return;
+            sendData(s, b, off, len, last);
+            if (last)
+            {
+                ended = true;
+                state = DONE;
+                flushOutput();
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            if (headersSent)
+                flushOutput();
+        }
+
+        /** Ends the stream once the handler has returned, if the response did not already do so. */
+        void finish() throws IOException
+        {
+            if (!headersSent)
+            {
+                if (!s.reset)
+                    resetStream(s, INTERNAL_ERROR);
+                return;
+            }
+            if (!ended)
+            {
+                if ((state == UNTIL_CLOSE) || (state == DONE))
+                    sendBody(null, 0, 0, true);
+                else
+                    resetStream(s, INTERNAL_ERROR);
+            }
+            flushOutput();
+        }
+
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
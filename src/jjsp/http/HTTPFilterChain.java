@@ -22,15 +22,24 @@ import java.net.*;
 
 import jjsp.util.*;
 
+/**
+   One link in the record of the filters a request passed through, each with its report and any error.
+
+   Filters should create their link with link(name, chain, state), which reuses links from the connection's HTTPFilterTrace rather than
+   allocating a new linked list for every request. Such links are only valid until the next request on the connection starts, so anything
+   which keeps a chain beyond the request (such as an HTTPLogEntry) should keep detach() instead. Reports are only rendered when asked for.
+ */
 public class HTTPFilterChain
 { 
-    public final String linkName;
-    public final HTTPFilterChain previous;
+    public String linkName;
+    public HTTPFilterChain previous;
 
     public String report;
     public Throwable error;
 
-    private static final String EMPTY_REPORT = "";
+    HTTPFilterTrace trace;
+
+    static final String EMPTY_REPORT = "";
 
     public HTTPFilterChain(String linkName)
     {
@@ -42,6 +51,18 @@ public class HTTPFilterChain
         this.linkName = linkName;
         this.previous = previous;
         report = EMPTY_REPORT;
+        trace = null;
+    }
+
+    /** Returns a new link for the named filter following previous, taken from the trace of the connection (or of the previous link) where there is one. */
+    public static HTTPFilterChain link(String linkName, HTTPFilterChain previous, ConnectionState state)
+    {
+        HTTPFilterTrace t = (previous != null) ? previous.trace : null;
+        if ((t == null) && (state != null))
+            t = state.getFilterTrace();
+        if (t == null)
+            return new HTTPFilterChain(linkName, previous);
+        return t.next(linkName, previous);
     }
 
     public void setReport(String report)
@@ -53,39 +74,90 @@ public class HTTPFilterChain
     {
         report += toAppend.replace("\n", " ");
     }
+
+    /** Returns the number of links from the first filter to this one. */
+    public int getDepth()
+    {
+        int depth = 0;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
+            depth++;
+        return depth;
+    }
+
+    /** Returns the links from the first filter to this one. */
+    public HTTPFilterChain[] getLinks()
+    {
+        HTTPFilterChain[] result = new HTTPFilterChain[getDepth()];
+        int i = result.length;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
+            result[--i] = ch;
+        return result;
+    }
+
+    /** Returns this chain if none of its links will be reused, else a copy of it which can be kept after the request. */
+    public HTTPFilterChain detach()
+    {
+        boolean pooled = false;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
+            pooled |= (ch.trace != null);
+        if (!pooled)
+            return this;
+
+        HTTPFilterChain[] links = getLinks();
+        HTTPFilterChain result = null;
+        for (int i=0; i<links.length; i++)
+        {
+            result = new HTTPFilterChain(links[i].linkName, result);
+            result.report = links[i].report;
+            result.error = links[i].error;
+        }
+        return result;
+    }
     
+    /** Returns the error recorded nearest the start of the chain, which is usually the cause of any later ones. */
     public Throwable getPrimaryError()
     {
-        if (previous != null)
+        Throwable result = null;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
         {
-            Throwable err = previous.getPrimaryError();
-            if (err != null)
-                return err;
+            if (ch.error != null)
+                result = ch.error;
         }
-
-        return error;
+        return result;
     }
 
     public String getFullReport()
     {
-        String result = "";
-        if ((report != null) && (error != null))
-            result = "["+report+": "+error+"]";
-        else if ((report == null) && (error != null))
-            result = "["+error+"]";
-        else if ((report != null) && (error == null))
-            result = "["+report+"]";
-
-        if (previous == null)
-            return linkName+result;
-        return previous.getFullReport()+"/"+linkName+result;
+        HTTPFilterChain[] links = getLinks();
+        StringBuilder buf = new StringBuilder();
+        for (int i=0; i<links.length; i++)
+        {
+            HTTPFilterChain ch = links[i];
+            if (i > 0)
+                buf.append('/');
+            buf.append(ch.linkName);
+
+            if ((ch.report != null) && (ch.error != null))
+                buf.append('[').append(ch.report).append(": ").append(ch.error).append(']');
+            else if (ch.error != null)
+                buf.append('[').append(ch.error).append(']');
+            else if (ch.report != null)
+                buf.append('[').append(ch.report).append(']');
+        }
+        return buf.toString();
     }
 
     public String getPath()
     {
-        if (previous == null)
-            return linkName;
-        return previous.getPath()+"/"+linkName;
+        HTTPFilterChain[] links = getLinks();
+        StringBuilder buf = new StringBuilder();
+        for (int i=0; i<links.length; i++)
+        {
+            if (i > 0)
+                buf.append('/');
+            buf.append(links[i].linkName);
+        }
+        return buf.toString();
     }
 
     public String toJSON()
@@ -93,11 +165,11 @@ public class HTTPFilterChain
         StringBuffer buf = new StringBuffer();
         for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
         {
-            buf.append(",{\"name\":\""+linkName+"\"");
-            if (report != null)
-                buf.append(",\"report\":\""+report.replace("\"", "\\\"")+"\"");
-            if (error != null)
-                buf.append(",\"error\":\""+error.toString().replace("\"", "\\\"")+"\"");
+            buf.append(",{\"name\":\""+ch.linkName+"\"");
+            if (ch.report != null)
+                buf.append(",\"report\":\""+ch.report.replace("\"", "\\\"")+"\"");
+            if (ch.error != null)
+                buf.append(",\"error\":\""+ch.error.toString().replace("\"", "\\\"")+"\"");
             buf.append("}");
         }
         buf.setCharAt(0, '[');
@@ -0,0 +1,83 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.util.*;
+
+/**
+   Holds the filter chain links of one connection in a growable array which is reused for each request, so that passing a request
+   through the filters does not allocate a new linked list every time. Links are handed out in order and never reused within a request;
+   reset() makes them all available again, so links must not be kept after the next request starts (see HTTPFilterChain.detach()).
+ */
+public class HTTPFilterTrace
+{
+    public static final int MAX_POOLED_LINKS = 256;
+
+    private HTTPFilterChain[] links;
+    private int used;
+
+    public HTTPFilterTrace()
+    {
+        links = new HTTPFilterChain[16];
+        used = 0;
+    }
+
+    /** Starts a new request, making all links available for reuse. */
+    public void reset()
+    {
+        for (int i=0; i<used; i++)
+        {
+            HTTPFilterChain ch = links[i];
+            ch.previous = null;
+            ch.report = HTTPFilterChain.EMPTY_REPORT;
+            ch.error = null;
+        }
+        used = 0;
+    }
+
+    /** Returns the number of links used by the current request. */
+    public int size()
+    {
+        return used;
+    }
+
+    HTTPFilterChain next(String linkName, HTTPFilterChain previous)
+    {
+        if (used == links.length)
+        {
+            if (used >= MAX_POOLED_LINKS)
+                return new HTTPFilterChain(linkName, previous);
+            links = Arrays.copyOf(links, Math.min(MAX_POOLED_LINKS, 2*used));
+        }
+
+        HTTPFilterChain result = links[used];
+        if (result == null)
+        {
+            result = new HTTPFilterChain(linkName, previous);
+            result.trace = this;
+            links[used] = result;
+        }
+        else
+        {
+            result.linkName = linkName;
+            result.previous = previous;
+        }
+        used++;
+        return result;
+    }
+}
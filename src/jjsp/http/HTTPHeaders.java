@@ -31,6 +31,26 @@ public class HTTPHeaders
     public static final int MAX_HEADERS = 128;
     public static final String MAIN_LINE = "Main-Line";
 
+    public static final String HOST = "Host";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CONNECTION = "Connection";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String COOKIE = "Cookie";
+    public static final String USER_AGENT = "User-Agent";
+    public static final String ACCEPT = "Accept";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ACCEPT_LANGUAGE = "Accept-Language";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String RANGE = "Range";
+    public static final String EXPECT = "Expect";
+    public static final String REFERER = "Referer";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    public static final String FORWARDED = "Forwarded";
+
     protected String mainLine;
     protected LinkedHashMap headerMap;
 
@@ -294,7 +314,7 @@ public class HTTPHeaders
     public Map toMap()
     {
         LinkedHashMap result = new LinkedHashMap();
-        result.put(MAIN_LINE, mainLine);
+        result.put(MAIN_LINE, getMainLine());
         result.putAll(headerMap);
 
         Object sc = result.get("Set-Cookie");
@@ -28,6 +28,8 @@ public class HTTPInputStream extends InputStream
     private static final int DEFAULT_MAX_TO_READ_ON_CLOSE = 4*1024;
     private static final int DEFAULT_MAX_POST_DATA_SIZE = 4*1024*1024;
 
+    public static final int READ_BUFFER_SIZE = 8*1024;
+
     private boolean isSecure;
     private int serverPort;
     private int maxPostDataLength;
@@ -83,6 +85,30 @@ public class HTTPInputStream extends InputStream
         return src.totalBytesRead;
     }
 
+    /** Returns the number of bytes which can be read from the underlying connection without blocking, whether or not they belong to the current request. */
+    public int connectionBytesAvailable() throws IOException
+    {
+        return src.available();
+    }
+
+    /** Returns the number of bytes already read from the connection into the buffer but not yet consumed, typically the start of a pipelined request. */
+    public int bufferedBytesAvailable()
+    {
+        return src.buffered();
+    }
+
+    /** Returns the buffered connection stream, including any bytes read beyond the current request, for protocols (HTTP/2) which take over the connection. */
+    public InputStream getConnectionStream()
+    {
+        return src;
+    }
+
+    /** Sets an action (usually flushing held response output) to perform before any read which would wait for more data from the client. */
+    public void setFlushBeforeBlockingRead(Flushable f)
+    {
+        src.beforeBlockingRead = f;
+    }
+
     public long getMaxPostDataLength()
     {
         return maxPostDataLength;
@@ -93,23 +119,36 @@ public class HTTPInputStream extends InputStream
         maxPostDataLength = value;
     }
 
+    /** Reads the connection through a buffer, so that header lines are not read byte by byte from the socket and pipelined requests which arrive together are parsed from memory. */
     class MeasurableInputStream extends InputStream
     {
         boolean measureTimeOfNextRead;
         long readTime, totalBytesRead;
+        Flushable beforeBlockingRead;
 
         private final InputStream src;
+        private final byte[] buffer;
+        private int pos, limit;
 
         MeasurableInputStream(InputStream src)
         {
             this.src = src;
             measureTimeOfNextRead = false;
             readTime = totalBytesRead = 0;
+            beforeBlockingRead = null;
+
+            buffer = new byte[READ_BUFFER_SIZE];
+            pos = limit = 0;
+        }
+
+        int buffered()
+        {
+            return limit - pos;
         }
 
         public int available() throws IOException
         {
-            return src.available();
+            return buffered() + src.available();
         }
 
         public void close() throws IOException
@@ -128,13 +167,29 @@ public class HTTPInputStream extends InputStream
             totalBytesRead += number;
         }
 
+        private void aboutToRead() throws IOException
+        {
+            if ((beforeBlockingRead != null) && (src.available() <= 0))
+                beforeBlockingRead.flush();
+        }
+
+        private boolean fill() throws IOException
+        {
+            aboutToRead();
+            int r = src.read(buffer, 0, buffer.length);
+            if (r <= 0)
+                return false;
+            pos = 0;
+            limit = r;
+            return true;
+        }
+
         public int read() throws IOException
         {
-            int result = src.read();
-            if (result < 0)
-                return result;
+            if ((pos >= limit) && !fill())
+                return -1;
             bytesRead(1);
-            return result;
+            return buffer[pos++] & 0xFF;
         }
 
         public int read(byte[] b) throws IOException
@@ -144,16 +199,53 @@ public class HTTPInputStream extends InputStream
 
         public int read(byte[] b, int off, int len) throws IOException
         {
-            int r = src.read(b, off, len);
-            if (r <= 0)
-                return r;
+            if (len <= 0)
+                return 0;
+
+            int r;
+            if (pos < limit)
+            {
+                r = Math.min(len, limit - pos);
+                System.arraycopy(buffer, pos, b, off, r);
+                pos += r;
+            }
+            else if (len >= buffer.length)
+            {
+                aboutToRead();
+                r = src.read(b, off, len);
+                if (r <= 0)
+                    return r;
+            }
+            else
+            {
+                if (!fill())
+                    return -1;
+                r = Math.min(len, limit);
+                System.arraycopy(buffer, 0, b, off, r);
+                pos = r;
+            }
+
             bytesRead(r);
             return r;
         }
 
         public long skip(long toSkip) throws IOException
         {
-            long result = src.skip(toSkip);
+            if (toSkip <= 0)
+                return 0;
+
+            long result;
+            if (pos < limit)
+            {
+                result = Math.min(toSkip, limit - pos);
+                pos += (int) result;
+            }
+            else
+            {
+                aboutToRead();
+                result = src.skip(toSkip);
+            }
+
             if (result >= 0)
                 bytesRead(result);
             return result;
@@ -172,7 +264,7 @@ public class HTTPInputStream extends InputStream
         long len = headers.getContentLength();
         if (len >= 0)
             contentStream = new UnchunkedContentStream(len);
-        else if (headers.getHeader("Content-Type", "").equals("chunked"))
+        else if (headers.isChunked())
             contentStream = new ChunkedContentStream();
 
         return true;
@@ -43,7 +43,7 @@ public class HTTPLogEntry
         this.responseSent = responseSent;
         this.bytesRead = bytesRead;
         this.bytesWritten = bytesWritten;
-        this.filterChain = filterChain;
+        this.filterChain = (filterChain == null) ? null : filterChain.detach();
 
         reqHeaders = req.toMap();
         respHeaders = resp.toMap();
@@ -20,16 +20,25 @@ package jjsp.http;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
 
 import jjsp.util.*;
 
 public class HTTPOutputStream extends OutputStream
 {
-    private int serverPort;
+    public static final int DEFAULT_COMPRESSION_FLUSH_SIZE = 64*1024;
+    public static final int COMPRESSION_BUFFER_SIZE = 16*1024;
+    public static final int COALESCE_BUFFER_SIZE = 16*1024;
+
+    private int serverPort, compressionLevel, compressionFlushSize;
+    private Deflater deflater;
     private OutputStream contentStream;
     private MeasurableOutputStream dest;
     private HTTPResponseHeaders headers;
     private InetSocketAddress clientAddress;
+    private SocketChannel channel;
     private boolean isSecure, isResponseToHeadRequest, outputSent, legacyHTTP, isDisposed;
 
     public HTTPOutputStream(int serverPort, boolean isSecure, InetSocketAddress address, OutputStream dest)
@@ -38,6 +47,8 @@ public class HTTPOutputStream extends OutputStream
         this.isSecure = isSecure;
         this.serverPort = serverPort;
         this.clientAddress = address;
+        if (!isSecure && (dest instanceof ChannelOutputStream))
+            channel = ((ChannelOutputStream) dest).getChannel();
 
         outputSent = false;
         isDisposed = false;
@@ -45,33 +56,64 @@ public class HTTPOutputStream extends OutputStream
         isResponseToHeadRequest = false;
         headers = new HTTPResponseHeaders();
         contentStream = null;
+
+        deflater = null;
+        compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        compressionFlushSize = DEFAULT_COMPRESSION_FLUSH_SIZE;
     }
 
+    /** While flushes are deferred, writes smaller than the coalescing buffer are gathered in it rather than being written to the socket individually. */
     class MeasurableOutputStream extends OutputStream
     {
-        boolean registerNextWriteTime;
+        boolean registerNextWriteTime, deferFlush;
         long writeTime, totalWritten;
 
         private final OutputStream dest;
+        private byte[] buffer;
+        private int pos;
 
         MeasurableOutputStream(OutputStream out)
         {
             dest = out;
             registerNextWriteTime = false;
+            deferFlush = false;
             writeTime = totalWritten = 0;
+            buffer = null;
+            pos = 0;
         }
 
         public void close() throws IOException
         {
-            dest.close();
+            try
+            {
+                forceFlush();
+            }
+            finally
+            {
+                dest.close();
+            }
         }
 
         public void flush() throws IOException
         {
+            if (!deferFlush)
+                forceFlush();
+        }
+
+        void writeBuffered() throws IOException
+        {
+            if (pos > 0)
+                dest.write(buffer, 0, pos);
+            pos = 0;
+        }
+
+        void forceFlush() throws IOException
+        {
+            writeBuffered();
             dest.flush();
         }
 
-        private void bytesWritten(int w)
+        private void bytesWritten(long w)
         {
             totalWritten += w;
 
@@ -84,23 +126,63 @@ public class HTTPOutputStream extends OutputStream
 
         public void write(byte[] b) throws IOException
         {
-            dest.write(b);
-            bytesWritten(b.length);
+            write(b, 0, b.length);
         }
 
         public void write(byte[] b, int off, int len) throws IOException
         {
-            dest.write(b, off, len);
+            if (!deferFlush && (pos == 0))
+                dest.write(b, off, len);
+            else
+            {
+                if (buffer == null)
+                    buffer = new byte[COALESCE_BUFFER_SIZE];
+                if (len > buffer.length - pos)
+                    writeBuffered();
+
+                if (len >= buffer.length)
+                    dest.write(b, off, len);
+                else
+                {
+                    System.arraycopy(b, off, buffer, pos, len);
+                    pos += len;
+                }
+            }
             bytesWritten(len);
         }
 
         public void write(int b) throws IOException
         {
-            dest.write(b);
+            if (!deferFlush && (pos == 0))
+                dest.write(b);
+            else
+            {
+                if (buffer == null)
+                    buffer = new byte[COALESCE_BUFFER_SIZE];
+                if (pos == buffer.length)
+                    writeBuffered();
+                buffer[pos++] = (byte) b;
+            }
             bytesWritten(1);
         }
     }
 
+    /**
+        While set, the flushes made as each response completes are held back and small writes are gathered, so that the responses to pipelined requests
+        go out together in fewer socket writes (in order, as they are produced in order). Clearing it sends anything held. Explicit calls to flush always send.
+    */
+    public void setDeferFlush(boolean value) throws IOException
+    {
+        dest.deferFlush = value;
+        if (!value)
+            dest.forceFlush();
+    }
+
+    public boolean isFlushDeferred()
+    {
+        return dest.deferFlush;
+    }
+
     public void resetWriteTime()
     {
         dest.registerNextWriteTime = true;
@@ -156,6 +238,33 @@ public class HTTPOutputStream extends OutputStream
         return headers;
     }
 
+    /** Sets the Deflater level (0 to 9, or -1 for the default) used by prepareToSendCompressedContent. */
+    public void setCompressionLevel(int level)
+    {
+        if ((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level "+level);
+        compressionLevel = level;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /** 
+        Sets how many uncompressed bytes may be written to a compressed response before the compressor is sync flushed and the output sent as a chunk.
+        Smaller values reduce the latency of streamed output at some cost in compression ratio; zero or less means output is only flushed when flush is called or the buffers fill.
+    */
+    public void setCompressionFlushSize(int bytes)
+    {
+        compressionFlushSize = bytes;
+    }
+
+    public int getCompressionFlushSize()
+    {
+        return compressionFlushSize;
+    }
+
     public boolean outputSent()
     {
         return outputSent;
@@ -280,12 +389,35 @@ public class HTTPOutputStream extends OutputStream
         else
         {
             len = Math.min(content.length - off, len);
-            prepareToSendContent(len, false);
-            write(content, off, len);
+            prepareToSendContent(len, false, content, off, len);
             close();
         }
     }
 
+    /** Sends the remaining bytes of the buffer as the content, copying them a chunk at a time so that a memory mapped buffer is not read onto the heap whole. */
+    public void sendContent(ByteBuffer content) throws IOException
+    {
+        if (content.hasArray())
+        {
+            sendContent(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            return;
+        }
+
+        if (!headers.contentTypeConfigured())
+            headers.setContentType("text/html; charset=utf-8");
+
+        ByteBuffer src = content.duplicate();
+        prepareToSendContent(src.remaining(), false);
+        byte[] chunk = new byte[Math.min(src.remaining(), 16*1024)];
+        while (src.hasRemaining())
+        {
+            int len = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, len);
+            write(chunk, 0, len);
+        }
+        close();
+    }
+
     public void sendHeaders() throws IOException
     {
         if (!headers.responseCodeConfigured())
@@ -311,6 +443,11 @@ public class HTTPOutputStream extends OutputStream
     }
 
     public void prepareToSendContent(long contentLength, boolean isChunked) throws IOException
+    {
+        prepareToSendContent(contentLength, isChunked, null, 0, 0);
+    }
+
+    private void prepareToSendContent(long contentLength, boolean isChunked, byte[] content, int off, int len) throws IOException
     {
         if (outputSent)
             throw new IOException("Already sending output");
@@ -335,15 +472,16 @@ public class HTTPOutputStream extends OutputStream
                 headers.setHeader("Transfer-Encoding", "Chunked");
         }
         else if (contentLength >= 0)
-        {
-            headers.setHeader("Content-Length", String.valueOf(contentLength));
-            headers.deleteHeader("Transfer-Encoding");
-        }
+            headers.setContentLength(contentLength);
 
         outputSent = true;
         if (legacyHTTP)
             headers.convertToHTTP10();
-        headers.printToStream(dest);
+
+        if ((content == null) || isResponseToHeadRequest || isChunked)
+            headers.printToStream(dest);
+        else
+            headers.printToStream(dest, content, off, len);
 
         if (isResponseToHeadRequest)
             contentStream = new DummyOutputStream();
@@ -355,7 +493,75 @@ public class HTTPOutputStream extends OutputStream
                 contentStream = new ChunkedOutputStream();
         }
         else
-            contentStream = new FixedLengthOutputStream(contentLength);
+        {
+            FixedLengthOutputStream fixed = new FixedLengthOutputStream(contentLength);
+            if (content != null)
+                fixed.pos = len;
+            contentStream = fixed;
+        }
+    }
+
+    /**
+        Starts a chunked response whose content is compressed as it is written, with "gzip" or "deflate" content encoding, so that
+        large generated content can be sent without holding either the uncompressed or the compressed form in memory.
+        Any other encoding (including null, as returned by HTTPRequestHeaders.selectContentEncoding when the client accepts neither) sends the content uncompressed.
+        Content written is buffered by the compressor, so call flush to push what has been written so far to the client.
+    */
+    public void prepareToSendCompressedContent(String contentEncoding) throws IOException
+    {
+        boolean gzip = ContentVariants.GZIP.equalsIgnoreCase(contentEncoding);
+        if (!gzip && !ContentVariants.DEFLATE.equalsIgnoreCase(contentEncoding))
+        {
+            prepareToSendContent(-1, true);
+            return;
+        }
+
+        headers.setContentEncoding(gzip ? ContentVariants.GZIP : ContentVariants.DEFLATE);
+        headers.addVary(HTTPHeaders.ACCEPT_ENCODING);
+        prepareToSendContent(-1, true);
+        if (isResponseToHeadRequest)
+            return;
+
+        if (deflater == null)
+            deflater = new Deflater(compressionLevel, true);
+        else
+        {
+            deflater.reset();
+            deflater.setLevel(compressionLevel);
+        }
+        contentStream = new CompressingOutputStream(contentStream, deflater, gzip, compressionFlushSize);
+    }
+
+    /** 
+        Sends count bytes of the file, starting at position, straight to the socket channel using FileChannel.transferTo (sendfile where the OS supports it).
+        This is only possible for fixed length content on a plain channel backed (NIO mode) socket; otherwise false is returned 
+        without writing anything and the caller should write the content through this stream instead.
+    */
+    public boolean transferFrom(FileChannel file, long position, long count) throws IOException
+    {
+        if ((channel == null) || !(contentStream instanceof FixedLengthOutputStream))
+            return false;
+        FixedLengthOutputStream fixed = (FixedLengthOutputStream) contentStream;
+        if (fixed.closed || (fixed.length - fixed.pos < count) || !channel.isBlocking())
+            return false;
+
+        dest.forceFlush();
+        long end = position + count;
+        while (position < end)
+        {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent <= 0)
+            {
+                if (position >= file.size())
+                    throw new EOFException("File truncated during transfer");
+                continue;
+            }
+
+            position += sent;
+            fixed.pos += sent;
+            dest.bytesWritten(sent);
+        }
+        return true;
     }
 
     public void write(int b) throws IOException
@@ -398,6 +604,7 @@ public class HTTPOutputStream extends OutputStream
     {
         if (contentStream != null)
             contentStream.flush();
+        dest.forceFlush();
     }
 
     public void close() throws IOException
@@ -415,7 +622,16 @@ public class HTTPOutputStream extends OutputStream
     public void dispose() throws IOException
     {
         isDisposed = true;
-        close();
+        try
+        {
+            close();
+        }
+        finally
+        {
+            if (deflater != null)
+                deflater.end();
+            deflater = null;
+        }
     }
 
     class FixedLengthOutputStream extends OutputStream
@@ -482,6 +698,9 @@ public class HTTPOutputStream extends OutputStream
         }
     }
 
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
     class ChunkedOutputStream extends OutputStream
     {
         private boolean closed;
@@ -491,11 +710,20 @@ public class HTTPOutputStream extends OutputStream
             closed = false;
         }
 
-        private void print(String s) throws IOException
+        private final byte[] chunkHeader = new byte[10];
+
+        private void writeChunkHeader(int length) throws IOException
         {
-            int len = s.length();
-            for (int i=0; i<len; i++)
-                dest.write((byte) s.charAt(i));
+            int pos = chunkHeader.length;
+            chunkHeader[--pos] = '\n';
+            chunkHeader[--pos] = '\r';
+            do
+            {
+                chunkHeader[--pos] = (byte) Character.forDigit(length & 0xF, 16);
+                length >>>= 4;
+            }
+            while (length != 0);
+            dest.write(chunkHeader, pos, chunkHeader.length - pos);
         }
 
         public void close() throws IOException
@@ -503,7 +731,7 @@ public class HTTPOutputStream extends OutputStream
             if (closed)
                 return;
             closed = true;
-            print("0\r\n\r\n");
+            dest.write(LAST_CHUNK);
             dest.flush();
         }
 
@@ -527,10 +755,9 @@ public class HTTPOutputStream extends OutputStream
             if (toWrite <= 0)
                 return;
 
-            print(Integer.toHexString(toWrite));
-            print("\r\n");
+            writeChunkHeader(toWrite);
             dest.write(b, off, toWrite);
-            print("\r\n");
+            dest.write(CRLF);
         }
 
         public void write(int b) throws IOException
@@ -538,9 +765,156 @@ public class HTTPOutputStream extends OutputStream
             if (closed)
                 throw new EOFException("Chunked output stream closed");
 
-            print("1\r\n");
+            writeChunkHeader(1);
             dest.write(b);
-            print("\r\n");
+            dest.write(CRLF);
+        }
+    }
+
+    /** Compresses content into the (chunked) content stream, framed as gzip or as zlib for the deflate content coding, using a raw deflater which is reused between responses. */
+    static class CompressingOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final Checksum checksum;
+        private final boolean gzip;
+        private final int flushSize;
+        private final byte[] buffer;
+
+        private boolean closed;
+        private int pos, sinceFlush;
+        private long totalIn;
+
+        CompressingOutputStream(OutputStream out, Deflater deflater, boolean gzip, int flushSize)
+        {
+            this.out = out;
+            this.deflater = deflater;
+            this.gzip = gzip;
+            this.flushSize = flushSize;
+            checksum = gzip ? (Checksum) new CRC32() : (Checksum) new Adler32();
+            buffer = new byte[COMPRESSION_BUFFER_SIZE];
+            closed = false;
+            sinceFlush = 0;
+            totalIn = 0;
+
+            if (gzip)
+            {
+                buffer[0] = (byte) 0x1f;
+                buffer[1] = (byte) 0x8b;
+                buffer[2] = (byte) Deflater.DEFLATED;
+                buffer[9] = (byte) 0xff;
+                pos = 10;
+            }
+            else
+            {
+                buffer[0] = (byte) 0x78;
+                buffer[1] = (byte) 0x9c;
+                pos = 2;
+            }
+        }
+
+        private void drain(int flushMode) throws IOException
+        {
+            while (true)
+            {
+                int n = deflater.deflate(buffer, pos, buffer.length - pos, flushMode);
+                pos += n;
+                if (pos == buffer.length)
+                {
+                    out.write(buffer, 0, pos);
+                    pos = 0;
+                    continue;
+                }
+
+                if (flushMode != Deflater.NO_FLUSH) //A flush which did not fill the buffer is complete
+                    return;
+                if (closed ? deflater.finished() : deflater.needsInput())
+                    return;
+            }
+        }
+
+        private void writeBuffered(long value, int bytes, boolean bigEndian) throws IOException
+        {
+            for (int i=0; i<bytes; i++)
+            {
+                if (pos == buffer.length)
+                {
+                    out.write(buffer, 0, pos);
+                    pos = 0;
+                }
+                int shift = bigEndian ? 8*(bytes-1-i) : 8*i;
+                buffer[pos++] = (byte) (value >> shift);
+            }
+        }
+
+        private void sendBuffer() throws IOException
+        {
+            if (pos > 0)
+                out.write(buffer, 0, pos);
+            pos = 0;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b) throws IOException
+        {
+            write(b, 0, b.length);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (closed)
+                throw new EOFException("Compressed output stream closed");
+            len = Math.min(b.length - off, len);
+            if (len <= 0)
+                return;
+
+            checksum.update(b, off, len);
+            totalIn += len;
+            deflater.setInput(b, off, len);
+            drain(Deflater.NO_FLUSH);
+
+            sinceFlush += len;
+            if ((flushSize > 0) && (sinceFlush >= flushSize))
+            {
+                drain(Deflater.SYNC_FLUSH);
+                sendBuffer();
+                sinceFlush = 0;
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            if (closed)
+                return;
+            drain(Deflater.SYNC_FLUSH);
+            sendBuffer();
+            sinceFlush = 0;
+            out.flush();
+        }
+
+        public void close() throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            deflater.finish();
+            drain(Deflater.NO_FLUSH);
+            if (gzip)
+            {
+                writeBuffered(checksum.getValue(), 4, false);
+                writeBuffered(totalIn, 4, false);
+            }
+            else
+                writeBuffered(checksum.getValue(), 4, true);
+
+            sendBuffer();
+            deflater.reset();
+            out.close();
         }
     }
 
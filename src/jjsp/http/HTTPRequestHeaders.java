@@ -30,13 +30,25 @@ public class HTTPRequestHeaders extends HTTPHeaders
 {
     public static final int DEFAULT_HEADER_LINE_LENGTH = 4*1024;
 
-    private int pos;
-    private String reqURL;
+    private static final String[] WELL_KNOWN_HEADERS = {HOST, CONTENT_LENGTH, CONTENT_TYPE, CONNECTION, TRANSFER_ENCODING, COOKIE, USER_AGENT, ACCEPT, ACCEPT_ENCODING, ACCEPT_LANGUAGE, CACHE_CONTROL, IF_MODIFIED_SINCE, IF_NONE_MATCH, RANGE, EXPECT, REFERER, AUTHORIZATION, X_FORWARDED_FOR, FORWARDED};
+    private static final String[] WELL_KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+
+    private final int lineLength;
+
+    // The raw main line and header lines (including their CRLFs) are read into this reusable buffer, and headers are indexed 
+    // as offsets into it. Names and values are only decoded into Strings when asked for. Headers set after parsing are held in the headerMap.
+    private byte[] block;
+    private int blockLength, mainLineLength, headerCount;
+    private int[] nameStart, nameLength, valueStart, valueLength;
+    private String[] names, values;
+    private boolean[] removed;
+
+    private String reqURL, path, queryString;
     private boolean isSecure;
-    private byte[] lineBuffer;
-    private String clientIPAddress;
-    private Map queryMap, cookieMap;
-    private boolean queryParsed, cookiesParsed;
+    private boolean queryParsed, cookiesParsed, clientIPResolved;
+    private String clientIPAddress, socketHostAddress;
+    private InetSocketAddress clientSocketAddress, cachedSocketAddress;
+    private Map queryMap, cookieMap, pathParameters;
 
     public HTTPRequestHeaders()
     {
@@ -45,66 +57,120 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public HTTPRequestHeaders(int lineLength)
     {
-        pos = 0;
-        reqURL = null;
-        lineBuffer = new byte[lineLength];
+        this.lineLength = lineLength;
+        block = new byte[2*lineLength];
+        blockLength = mainLineLength = headerCount = 0;
+
+        nameStart = new int[MAX_HEADERS];
+        nameLength = new int[MAX_HEADERS];
+        valueStart = new int[MAX_HEADERS];
+        valueLength = new int[MAX_HEADERS];
+        names = new String[MAX_HEADERS];
+        values = new String[MAX_HEADERS];
+        removed = new boolean[MAX_HEADERS];
+
+        reqURL = path = queryString = null;
         queryMap = new HashMap();
         cookieMap = new HashMap();
+        pathParameters = null;
         clientIPAddress = null;
+        clientSocketAddress = null;
     }
 
     public void clear()
     {
         super.clear();
-        reqURL = null;
-        pos = 0;
+        Arrays.fill(names, 0, headerCount, null);
+        Arrays.fill(values, 0, headerCount, null);
+        Arrays.fill(removed, 0, headerCount, false);
+        blockLength = mainLineLength = headerCount = 0;
+
+        reqURL = path = queryString = null;
         isSecure = false;
+        if (queryParsed)
+            queryMap.clear();
+        if (cookiesParsed)
+            cookieMap.clear();
+        if (pathParameters != null)
+            pathParameters.clear();
         queryParsed = false;
         cookiesParsed = false;
-        queryMap.clear();
-        cookieMap.clear();
+        clientIPResolved = false;
         clientIPAddress = null;
+        clientSocketAddress = null;
+    }
+
+    private int readLineIntoBlock(InputStream src) throws IOException
+    {
+        if (block.length - blockLength < lineLength)
+            block = Arrays.copyOf(block, Math.max(2*block.length, blockLength + lineLength));
+
+        int len = readLine(src, block, blockLength, lineLength);
+        if (len < 0)
+            return -1;
+        blockLength += len;
+        return len;
     }
 
-    private boolean readLine(InputStream src) throws IOException
+    private static boolean equalsIgnoreCase(byte[] raw, int off, int len, String s)
     {
-        int pos2 = readLine(src, lineBuffer);
-        if (pos2 < 0)
+        if (len != s.length())
             return false;
-        pos = pos2;
+
+        for (int i=0; i<len; i++)
+        {
+            int b = raw[off+i];
+            int c = s.charAt(i);
+            if (b == c)
+                continue;
+            if ((b >= 'A') && (b <= 'Z'))
+                b += 'a' - 'A';
+            if ((c >= 'A') && (c <= 'Z'))
+                c += 'a' - 'A';
+            if (b != c)
+                return false;
+        }
         return true;
     }
 
-    private String getLineAsString()
+    private static String wellKnownName(byte[] raw, int off, int len)
     {
-        return getCRLFTerminatedLineAsString(lineBuffer, pos);
+        for (int i=0; i<WELL_KNOWN_HEADERS.length; i++)
+            if (equalsIgnoreCase(raw, off, len, WELL_KNOWN_HEADERS[i]))
+                return WELL_KNOWN_HEADERS[i];
+        return null;
     }
 
     public boolean readNextHeaderValuesFromStream(InputStream src) throws IOException
     {
         while (true)
         {
-            if (!readLine(src))
+            int lineStart = blockLength;
+            int len = readLineIntoBlock(src);
+            if (len < 0)
                 return false; // Entity too large
-            if (pos == 2)
+            if (len == 2)
                 return true;
 
-            for (int i=0; i<pos; i++)
+            int lineEnd = lineStart + len - 2;
+            for (int i=lineStart; i<lineEnd; i++)
             {
-                if (lineBuffer[i] != (byte)':')
+                if (block[i] != (byte)':')
                     continue;
 
-                String key = new String(lineBuffer, 0, i, HTTPUtils.ASCII);
+                if (headerCount >= MAX_HEADERS)
+                    return false;
 
                 int val = i+1;
-                while (lineBuffer[val] == (byte)' ')
+                while ((val < lineEnd) && (block[val] == (byte)' '))
                     val++;
 
-                String value = new String(lineBuffer, val, pos-val-2, HTTPUtils.ASCII);
-                if (getHeaderCount() >= MAX_HEADERS)
-                    return false;
-
-                setHeader(key, value);
+                nameStart[headerCount] = lineStart;
+                nameLength[headerCount] = i - lineStart;
+                valueStart[headerCount] = val;
+                valueLength[headerCount] = lineEnd - val;
+                names[headerCount] = wellKnownName(block, lineStart, i - lineStart);
+                headerCount++;
                 break;
             }
         }
@@ -118,47 +184,255 @@ public class HTTPRequestHeaders extends HTTPHeaders
     public boolean readHeadersFromStream(InputStream src, InetSocketAddress clientSocketAddress, boolean isSecure) throws IOException
     {
         clear();
-        if (!readLine(src))
+        int len = readLineIntoBlock(src);
+        if (len < 0)
             return false;// Header value too long, or too many headers
+        mainLineLength = len - 2;
 
-        mainLine = getLineAsString();
         if (!readNextHeaderValuesFromStream(src))
             return false;// Header value too long, or too many headers
 
-        try
+        this.clientSocketAddress = clientSocketAddress;
+        return true;
+    }
+
+    private int findHeader(String key)
+    {
+        for (int i=headerCount-1; i>=0; i--)
         {
-            if (clientSocketAddress != null)
-                clientIPAddress = clientSocketAddress.getAddress().getHostAddress();
+            if (removed[i])
+                continue;
+            if ((names[i] == key) || equalsIgnoreCase(block, nameStart[i], nameLength[i], key))
+                return i;
         }
-        catch (Exception e) {}
+        return -1;
+    }
 
-        try
+    private String getHeaderName(int index)
+    {
+        if (names[index] == null)
+            names[index] = new String(block, nameStart[index], nameLength[index], HTTPUtils.ASCII);
+        return names[index];
+    }
+
+    private String getHeaderValue(int index)
+    {
+        if (values[index] == null)
+            values[index] = new String(block, valueStart[index], valueLength[index], HTTPUtils.ASCII);
+        return values[index];
+    }
+
+    private Object findSetHeader(String key)
+    {
+        if (headerMap.isEmpty())
+            return null;
+        Object result = headerMap.get(key);
+        if (result != null)
+            return result;
+
+        Iterator itt = headerMap.entrySet().iterator();
+        while (itt.hasNext())
         {
-            String forwardHeader = getHeader("X-Forwarded-For");
-            if ( ( forwardHeader == null ) || forwardHeader.isEmpty() )
-                forwardHeader = getHeader("Forwarded");
+            Map.Entry entry = (Map.Entry) itt.next();
+            if (key.equalsIgnoreCase((String) entry.getKey()))
+                return entry.getValue();
+        }
+        return null;
+    }
 
-            if (forwardHeader != null && forwardHeader.length() > 4)
+    public String getMainLine()
+    {
+        if ((mainLine == null) && (blockLength > 0))
+            mainLine = new String(block, 0, mainLineLength, HTTPUtils.ASCII);
+        return mainLine;
+    }
+
+    public int getHeaderCount()
+    {
+        int result = headerMap.size();
+        for (int i=0; i<headerCount; i++)
+            if (!removed[i] && (findHeader(getHeaderName(i)) == i) && (findSetHeader(getHeaderName(i)) == null))
+                result++;
+        return result;
+    }
+
+    public String[] getHeaderKeys()
+    {
+        ArrayList keys = new ArrayList();
+        for (int i=0; i<headerCount; i++)
+        {
+            if (removed[i])
+                continue;
+            String name = getHeaderName(i);
+            if ((findHeader(name) == i) && (findSetHeader(name) == null))
+                keys.add(name);
+        }
+        keys.addAll(headerMap.keySet());
+
+        String[] result = new String[keys.size()];
+        keys.toArray(result);
+        return result;
+    }
+
+    public boolean hasHeader(String key)
+    {
+        if (key == null)
+            return false;
+        return (findSetHeader(key) != null) || (findHeader(key) >= 0);
+    }
+
+    /** Header names are matched case-insensitively; values are only decoded to Strings on first request. */
+    public String getHeader(String key, String defaultValue)
+    {
+        if (key == null)
+            return null;
+
+        Object set = findSetHeader(key);
+        if (set != null)
+            return (String) set;
+
+        int index = findHeader(key);
+        if (index < 0)
+            return defaultValue;
+        return getHeaderValue(index);
+    }
+
+    private boolean removeParsedHeader(String key)
+    {
+        boolean result = false;
+        for (int i=0; i<headerCount; i++)
+        {
+            if (!removed[i] && ((names[i] == key) || equalsIgnoreCase(block, nameStart[i], nameLength[i], key)))
             {
-                int comma = forwardHeader.indexOf(",");
-                if (comma < 0)
-                    clientIPAddress = forwardHeader.trim();
-                else
-                    clientIPAddress = forwardHeader.substring(0, comma).trim();
+                removed[i] = true;
+                result = true;
+            }
+        }
 
-                if (clientIPAddress.startsWith("for="))
-                    clientIPAddress = clientIPAddress.substring(4);
-                if (clientIPAddress.startsWith("\""))
-                    clientIPAddress = clientIPAddress.substring(1, clientIPAddress.length()-1).trim();
+        Iterator itt = headerMap.keySet().iterator();
+        while (itt.hasNext())
+        {
+            if (key.equalsIgnoreCase((String) itt.next()))
+            {
+                itt.remove();
+                result = true;
             }
         }
-        catch (Exception e) {}
+        return result;
+    }
+
+    public void setHeader(String key, String value)
+    {
+        if (key == null)
+            return;
+
+        removeParsedHeader(key);
+        if (value != null)
+            super.setHeader(key, value);
+    }
+
+    public boolean deleteHeader(String key)
+    {
+        if (key == null)
+            return false;
+        return removeParsedHeader(key);
+    }
 
+    private boolean headerValueEqualsIgnoreCase(String key, String value)
+    {
+        Object set = findSetHeader(key);
+        if (set != null)
+            return value.equalsIgnoreCase((String) set);
+
+        int index = findHeader(key);
+        if (index < 0)
+            return false;
+        return equalsIgnoreCase(block, valueStart[index], valueLength[index], value);
+    }
+
+    public long getContentLength()
+    {
+        if (findSetHeader(CONTENT_LENGTH) != null)
+            return super.getContentLength();
+
+        int index = findHeader(CONTENT_LENGTH);
+        if ((index < 0) || (valueLength[index] == 0))
+            return -1;
+
+        long result = 0;
+        int end = valueStart[index] + valueLength[index];
+        for (int i=valueStart[index]; i<end; i++)
+        {
+            int digit = block[i] - '0';
+            if ((digit < 0) || (digit > 9) || (result > Long.MAX_VALUE/10))
+                return -1;
+            result = 10*result + digit;
+        }
+        return result;
+    }
+
+    public boolean isChunked()
+    {
+        return isHTTP11() && headerValueEqualsIgnoreCase(TRANSFER_ENCODING, "chunked");
+    }
+
+    public boolean closeConnection()
+    {
+        return !isHTTP11() || headerValueEqualsIgnoreCase(CONNECTION, "close");
+    }
+
+    public Map toMap()
+    {
+        LinkedHashMap result = new LinkedHashMap();
+        result.put(MAIN_LINE, getMainLine());
+
+        String[] keys = getHeaderKeys();
+        for (int i=0; i<keys.length; i++)
+            result.put(keys[i], getHeader(keys[i], null));
+        return result;
+    }
+
+    public void print(PrintStream ps)
+    {
+        ps.print(getMainLine());
+        ps.print("\r\n");
+
+        String[] keys = getHeaderKeys();
+        for (int i=0; i<keys.length; i++)
+        {
+            ps.print(keys[i]);
+            ps.print(": ");
+            ps.print(getHeader(keys[i], ""));
+            ps.print("\r\n");
+        }
+        ps.print("\r\n");
+        ps.flush();
+    }
+
+    private boolean mainLineStartsWith(String prefix)
+    {
+        if (mainLineLength < prefix.length())
+            return false;
+        for (int i=0; i<prefix.length(); i++)
+            if (block[i] != (byte) prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private boolean mainLineEndsWith(String suffix)
+    {
+        int off = mainLineLength - suffix.length();
+        if (off < 0)
+            return false;
+        for (int i=0; i<suffix.length(); i++)
+            if (block[off+i] != (byte) suffix.charAt(i))
+                return false;
         return true;
     }
 
     public String getRawURL() 
     {
+        String mainLine = getMainLine();
         int space = mainLine.indexOf(" ");
         if (space < 0)
             return null;
@@ -174,6 +448,7 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (reqURL != null)
             return reqURL;
 
+        String mainLine = getMainLine();
         int space = mainLine.indexOf(" ");
         if (space < 0)
             return null;
@@ -210,19 +485,22 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public String getPath()
     {
+        if (path != null)
+            return path;
+
         String reqURL = getRequestURL();
         if (reqURL.startsWith("http://"))
         {
             int s = reqURL.indexOf("/", 7);
             if (s < 0)
-                return "/";
+                return path = "/";
             reqURL = reqURL.substring(s);
         }
         else if (reqURL.startsWith("https://"))
         {
             int s = reqURL.indexOf("/", 8);
             if (s < 0)
-                return "/";
+                return path = "/";
             reqURL = reqURL.substring(s);
         }
 
@@ -234,11 +512,14 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (h >= 0)
             reqURL = reqURL.substring(0, h);
 
-        return reqURL;
+        return path = reqURL;
     }
 
     public String getQueryString()
     {
+        if (queryString != null)
+            return queryString;
+
         String reqURL = getRequestURL();
         int q = reqURL.indexOf("?");
         if (q < 0)
@@ -246,7 +527,7 @@ public class HTTPRequestHeaders extends HTTPHeaders
         int h = reqURL.indexOf("#");
         if (h < q)
             h = reqURL.length();
-        return reqURL.substring(q + 1, h);
+        return queryString = reqURL.substring(q + 1, h);
     }
 
     public Map getQueryParameters()
@@ -264,6 +545,19 @@ public class HTTPRequestHeaders extends HTTPHeaders
         return isSecure;
     }
 
+    /** Returns the (modifiable) map of parameters captured from the path by routing filters, such as the id in a PathMappedFilter path "/user/{id}". */
+    public Map getPathParameters()
+    {
+        if (pathParameters == null)
+            pathParameters = new HashMap();
+        return pathParameters;
+    }
+
+    public String getPathParameter(String key)
+    {
+        return (pathParameters == null) ? null : (String) pathParameters.get(key);
+    }
+
     public boolean hasQueryParam(String key)
     {
         return getQueryParameters().get(key) != null;
@@ -413,12 +707,12 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public boolean isHTTP11()
     {
-        return mainLine.endsWith(" HTTP/1.1");
+        return mainLineEndsWith(" HTTP/1.1");
     }
 
     public String getHost()
     {
-        String hostHeader = getHeader("Host", null);
+        String hostHeader = getHeader(HOST, null);
         if (hostHeader != null)
             return hostHeader;
         String absoluteURL = getRequestURL();
@@ -441,34 +735,79 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public String getClientIPAddress()
     {
+        if (clientIPResolved)
+            return clientIPAddress;
+        clientIPResolved = true;
+
+        try
+        {
+            if (clientSocketAddress != null)
+            {
+                if (clientSocketAddress != cachedSocketAddress)
+                {
+                    cachedSocketAddress = clientSocketAddress;
+                    socketHostAddress = clientSocketAddress.getAddress().getHostAddress();
+                }
+                clientIPAddress = socketHostAddress;
+            }
+        }
+        catch (Exception e) {}
+
+        try
+        {
+            String forwardHeader = getHeader(X_FORWARDED_FOR);
+            if ( ( forwardHeader == null ) || forwardHeader.isEmpty() )
+                forwardHeader = getHeader(FORWARDED);
+
+            if (forwardHeader != null && forwardHeader.length() > 4)
+            {
+                int comma = forwardHeader.indexOf(",");
+                if (comma < 0)
+                    clientIPAddress = forwardHeader.trim();
+                else
+                    clientIPAddress = forwardHeader.substring(0, comma).trim();
+
+                if (clientIPAddress.startsWith("for="))
+                    clientIPAddress = clientIPAddress.substring(4);
+                if (clientIPAddress.startsWith("\""))
+                    clientIPAddress = clientIPAddress.substring(1, clientIPAddress.length()-1).trim();
+            }
+        }
+        catch (Exception e) {}
+
         return clientIPAddress;
     }
 
     public boolean isHead()
     {
-        return mainLine.startsWith("HEAD");
+        return mainLineStartsWith("HEAD");
     }
 
     public boolean isGet()
     {
-        return mainLine.startsWith("GET");
+        return mainLineStartsWith("GET");
     }
 
     public boolean isPost()
     {
-        return mainLine.startsWith("POST");
+        return mainLineStartsWith("POST");
     }
 
     public boolean isPut()
     {
-        return mainLine.startsWith("PUT");
+        return mainLineStartsWith("PUT");
     }
 
     public String getHTTPMethod()
     {
-        if (mainLine == null)
+        if (blockLength == 0)
             return null;
 
+        for (int i=0; i<WELL_KNOWN_METHODS.length; i++)
+            if (mainLineStartsWith(WELL_KNOWN_METHODS[i]) && (mainLineLength > WELL_KNOWN_METHODS[i].length()) && (block[WELL_KNOWN_METHODS[i].length()] == (byte)' '))
+                return WELL_KNOWN_METHODS[i];
+
+        String mainLine = getMainLine();
         int sp = mainLine.indexOf(" ");
         if (sp < 0)
             return null;
@@ -478,22 +817,80 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public boolean expectsContinueResponse()
     {
-        return !isHead() && getHeader("Expect", "").startsWith("100-continue") || isPost();
+        return !isHead() && getHeader(EXPECT, "").startsWith("100-continue") || isPost();
     }
 
     public long getIfModifiedSinceTime()
     {
-        return HTTPUtils.getUtils().parseHTTPDate(getHeader("If-Modified-Since", null), -1);
+        return HTTPUtils.getUtils().parseHTTPDate(getHeader(IF_MODIFIED_SINCE, null), -1);
     }
 
     public boolean requestsPartialContent()
     {
-        return getHeader("Range", null) != null;
+        return hasHeader(RANGE);
     }
 
     public String getUserAgent()
     {
-        return getHeader("User-Agent", "");
+        return getHeader(USER_AGENT, "");
+    }
+
+    /** Returns the quality (0 to 1) given to a content coding by an Accept-Encoding header value, allowing for the '*' wildcard and the x-gzip alias. */
+    public static double getAcceptedQuality(String acceptEncoding, String coding)
+    {
+        if (acceptEncoding == null)
+            return 0;
+
+        double exact = -1, wildcard = -1;
+        int len = acceptEncoding.length();
+        for (int pos = 0; pos < len; )
+        {
+            int comma = acceptEncoding.indexOf(',', pos);
+            if (comma < 0)
+                comma = len;
+            int semi = acceptEncoding.indexOf(';', pos);
+            if ((semi < 0) || (semi > comma))
+                semi = comma;
+
+            String name = acceptEncoding.substring(pos, semi).trim();
+            double q = 1;
+            int qIndex = acceptEncoding.indexOf("q=", semi);
+            if ((qIndex >= 0) && (qIndex < comma))
+            {
+                try
+                {
+                    q = Double.parseDouble(acceptEncoding.substring(qIndex+2, comma).trim());
+                }
+                catch (Exception e) 
+                {
+                    q = 0;
+                }
+            }
+
+            if (name.equalsIgnoreCase(coding) || (ContentVariants.GZIP.equals(coding) && name.equalsIgnoreCase("x-gzip")))
+                exact = Math.max(exact, q);
+            else if (name.equals("*"))
+                wildcard = q;
+            pos = comma+1;
+        }
+
+        if (exact >= 0)
+            return exact;
+        return Math.max(0, wildcard);
+    }
+
+    /** Chooses gzip or deflate (gzip when they are equally acceptable) from the Accept-Encoding header, or returns null if only the identity coding is acceptable. */
+    public String selectContentEncoding()
+    {
+        String accept = getHeader(ACCEPT_ENCODING, null);
+        if (accept == null)
+            return null;
+
+        double gzip = getAcceptedQuality(accept, ContentVariants.GZIP);
+        double deflate = getAcceptedQuality(accept, ContentVariants.DEFLATE);
+        if ((gzip <= 0) && (deflate <= 0))
+            return null;
+        return (gzip >= deflate) ? ContentVariants.GZIP : ContentVariants.DEFLATE;
     }
 
     public static String getCRLFTerminatedLineAsString(byte[] lineBuffer, int len)
@@ -511,6 +908,12 @@ public class HTTPRequestHeaders extends HTTPHeaders
     }
 
     public static int readLine(InputStream src, byte[] lineBuffer) throws IOException
+    {
+        return readLine(src, lineBuffer, 0, lineBuffer.length);
+    }
+
+    /** Reads a CRLF terminated line into the buffer at the given offset, returning its length (including the CRLF) or -1 if it is longer than maxLength. */
+    public static int readLine(InputStream src, byte[] lineBuffer, int offset, int maxLength) throws IOException
     {
         int pos = 0;
         int eol = 0;
@@ -519,10 +922,10 @@ public class HTTPRequestHeaders extends HTTPHeaders
             int b = src.read();
             if (b < 0)
                 throw new EOFException("Unexpected EOF while seeking EOL");
-            if (pos >= lineBuffer.length)
+            if (pos >= maxLength)
                 return -1; // "413 Entity Too Large" (when in HTTP header line);
 
-            lineBuffer[pos++] = (byte) b;
+            lineBuffer[offset + pos++] = (byte) b;
             eol = (eol << 8) | b;
             if ((0xFFFF & eol) == 0x0D0A)
                 return pos;
@@ -531,7 +934,7 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public void clearCookies()
     {
-        deleteHeader("Cookie");
+        deleteHeader(COOKIE);
         cookieMap.clear();
     }
 
@@ -540,7 +943,7 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (!cookiesParsed)
         {
             cookiesParsed = true;
-            parseCookies(getHeader("Cookie"), cookieMap);
+            parseCookies(getHeader(COOKIE), cookieMap);
         }
 
         String[] result = new String[cookieMap.size()];
@@ -553,7 +956,7 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (!cookiesParsed)
         {
             cookiesParsed = true;
-            parseCookies(getHeader("Cookie"), cookieMap);
+            parseCookies(getHeader(COOKIE), cookieMap);
         }
 
         return (String) cookieMap.get(key);
@@ -49,6 +49,26 @@ public class HTTPResponseHeaders extends HTTPHeaders
     public static final int HTTP_SERVICE_UNAVAILABLE = 503;
     public static final int HTTP_GATEWAY_TIMEOUT = 504;
 
+    /** Content up to this size is appended to the encoded headers and sent with them in a single write. */
+    public static final int MAX_COALESCED_CONTENT = 16*1024;
+
+    private byte[] encoded;
+    private int encodedLength;
+
+    private int cachedMaxAge;
+    private boolean cachedPublic;
+    private String cachedCacheControl;
+    private long cachedLength;
+    private String cachedLengthValue;
+
+    public HTTPResponseHeaders()
+    {
+        encoded = new byte[1024];
+        encodedLength = 0;
+        cachedMaxAge = -1;
+        cachedLength = -1;
+    }
+
     public boolean isHTTP11()
     {
         return mainLine.startsWith("HTTP/1.1 ");
@@ -107,10 +127,13 @@ public class HTTPResponseHeaders extends HTTPHeaders
         setLastModified(lastModified);
         if (maxAgeSeconds > 0)
         {
-            if (isPublic)
-                setHeader("Cache-Control", "public, max-age="+maxAgeSeconds);
-            else
-                setHeader("Cache-Control", "private, max-age="+maxAgeSeconds);
+            if ((maxAgeSeconds != cachedMaxAge) || (isPublic != cachedPublic))
+            {
+                cachedCacheControl = (isPublic ? "public, max-age=" : "private, max-age=")+maxAgeSeconds;
+                cachedMaxAge = maxAgeSeconds;
+                cachedPublic = isPublic;
+            }
+            setHeader("Cache-Control", cachedCacheControl);
         }
         else
             configureToPreventCaching();
@@ -126,7 +149,12 @@ public class HTTPResponseHeaders extends HTTPHeaders
 
     public void setContentLength(long length)
     {
-        setHeader("Content-Length", ""+length);
+        if (length != cachedLength)
+        {
+            cachedLengthValue = String.valueOf(length);
+            cachedLength = length;
+        }
+        setHeader("Content-Length", cachedLengthValue);
         deleteHeader("Transfer-Encoding");
     }
 
@@ -140,6 +168,16 @@ public class HTTPResponseHeaders extends HTTPHeaders
         setHeader("Content-Encoding", encType);
     }
 
+    /** Adds a request header name to the Vary header, unless it is already listed. */
+    public void addVary(String requestHeader)
+    {
+        String vary = getHeader("Vary", null);
+        if (vary == null)
+            setHeader("Vary", requestHeader);
+        else if (!vary.toLowerCase().contains(requestHeader.toLowerCase()))
+            setHeader("Vary", vary+", "+requestHeader);
+    }
+
     public void clearContentType()
     {
         setHeader("Content-Type", null);
@@ -214,6 +252,16 @@ public class HTTPResponseHeaders extends HTTPHeaders
         ll.add(cookie);
     }
 
+    public HttpCookie[] getCookies()
+    {
+        List ll = (List) headerMap.get("Set-Cookie");
+        if (ll == null)
+            return new HttpCookie[0];
+        HttpCookie[] result = new HttpCookie[ll.size()];
+        ll.toArray(result);
+        return result;
+    }
+
     public HttpCookie getCookie(String name)
     {
         List ll = (List) headerMap.get("Set-Cookie");
@@ -370,7 +418,11 @@ public class HTTPResponseHeaders extends HTTPHeaders
 
     public void configure(int code, String statusMessage)
     {
-        mainLine = "HTTP/1.1 "+code+" "+statusMessage;
+        String cached = getCachedStatusLine(code, statusMessage);
+        if (cached != null)
+            mainLine = cached;
+        else
+            mainLine = "HTTP/1.1 "+code+" "+statusMessage;
 
         setHeader("Date", HTTPUtils.getUtils().formatHTTPDate());
         setHeader("Connection", "keep-alive");
@@ -393,13 +445,136 @@ public class HTTPResponseHeaders extends HTTPHeaders
         }
     }
 
-    private static byte[] crlf = Utils.getAsciiBytes("\r\n");
-    private static byte[] colon = Utils.getAsciiBytes(": ");
+    private static final String[] statusMessages = new String[600];
+    private static final String[] statusLines = new String[600];
+    private static final byte[][] encodedStatusLines = new byte[600][];
+    private static final HashMap encodedHeaderNames = new HashMap();
+    static
+    {
+        cacheStatusLine(HTTP_OK, "OK");
+        cacheStatusLine(HTTP_PARTIAL_CONTENT, "Partial Content");
+        cacheStatusLine(HTTP_NO_CONTENT, "No Content");
+        cacheStatusLine(HTTP_MOVED_PERMANENTLY, "Moved Permanently");
+        cacheStatusLine(HTTP_FOUND, "Found");
+        cacheStatusLine(HTTP_SEE_OTHER, "See Other");
+        cacheStatusLine(HTTP_NOT_MODIFIED, "Not Modified");
+        cacheStatusLine(HTTP_TEMPORARY_REDIRECT, "Temporary Redirect");
+        cacheStatusLine(HTTP_PERMANENT_REDIRECT, "Permanent Redirect");
+        cacheStatusLine(HTTP_BAD_REQUEST, "The Request was Invalid");
+        cacheStatusLine(HTTP_UNAUTHORIZED, "Unauthorized");
+        cacheStatusLine(HTTP_FORBIDDEN, "Forbidden");
+        cacheStatusLine(HTTP_NOT_FOUND, "Not Found");
+        cacheStatusLine(HTTP_NOT_ALLOWED, "Not Allowed");
+        cacheStatusLine(HTTP_TOO_LARGE, "Request Entity Too Large");
+        cacheStatusLine(HTTP_SERVER_ERROR, "Internal Server Error ");
+        cacheStatusLine(HTTP_NOT_IMPLEMENTED, "Not Implemented");
+        cacheStatusLine(HTTP_SERVICE_UNAVAILABLE, "Service Unavailable");
+        cacheStatusLine(HTTP_GATEWAY_TIMEOUT, "Gateway Timeout");
+
+        String[] names = {"Date", CONNECTION, CONTENT_TYPE, CONTENT_LENGTH, "Content-Encoding", TRANSFER_ENCODING, CACHE_CONTROL, "Expires", "Pragma",
+                          "Last-Modified", "ETag", "Location", "Accept-Ranges", "Content-Range", "Set-Cookie", "WWW-Authenticate", "Vary", "Server"};
+        for (int i=0; i<names.length; i++)
+            encodedHeaderNames.put(names[i], Utils.getAsciiBytes(names[i]+": "));
+    }
+
+    private static void cacheStatusLine(int code, String statusMessage)
+    {
+        statusMessages[code] = statusMessage;
+        statusLines[code] = "HTTP/1.1 "+code+" "+statusMessage;
+        encodedStatusLines[code] = Utils.getAsciiBytes(statusLines[code]+"\r\n");
+    }
+
+    private static String getCachedStatusLine(int code, String statusMessage)
+    {
+        if ((code < 0) || (code >= statusLines.length) || (statusLines[code] == null))
+            return null;
+        if (!statusMessages[code].equals(statusMessage))
+            return null;
+        return statusLines[code];
+    }
+
+    private static byte[] getEncodedStatusLine(String line)
+    {
+        if ((line == null) || (line.length() < 12))
+            return null;
 
-    public void printToStream(OutputStream out) throws IOException
+        int code = 0;
+        for (int i=9; i<12; i++)
+        {
+            char ch = line.charAt(i);
+            if ((ch < '0') || (ch > '9'))
+                return null;
+            code = code*10 + (ch - '0');
+        }
+
+        if (statusLines[code] == line)
+            return encodedStatusLines[code];
+        return null;
+    }
+
+    private void ensureEncodedCapacity(int extra)
     {
-        out.write(Utils.getAsciiBytes(mainLine));
-        out.write(crlf);
+        if (encodedLength + extra <= encoded.length)
+            return;
+        encoded = Arrays.copyOf(encoded, Math.max(2*encoded.length, encodedLength + extra));
+    }
+
+    private void append(byte[] bytes, int off, int len)
+    {
+        ensureEncodedCapacity(len);
+        System.arraycopy(bytes, off, encoded, encodedLength, len);
+        encodedLength += len;
+    }
+
+    private void append(String s)
+    {
+        int len = s.length();
+        ensureEncodedCapacity(len);
+        for (int i=0; i<len; i++)
+        {
+            char ch = s.charAt(i);
+            encoded[encodedLength++] = (ch < 0x80) ? (byte) ch : (byte) '?';
+        }
+    }
+
+    private void appendCRLF()
+    {
+        ensureEncodedCapacity(2);
+        encoded[encodedLength++] = (byte) '\r';
+        encoded[encodedLength++] = (byte) '\n';
+    }
+
+    private void appendHeader(String key, String value)
+    {
+        byte[] name = (byte[]) encodedHeaderNames.get(key);
+        if (name != null)
+            append(name, 0, name.length);
+        else
+        {
+            append(key);
+            append(": ");
+        }
+
+        byte[] date = HTTPUtils.getEncodedHTTPDate(value);
+        if (date != null)
+            append(date, 0, date.length);
+        else
+            append(value);
+        appendCRLF();
+    }
+
+    /** Encodes the main line and headers into this object's reusable buffer, returning the number of bytes encoded. */
+    public int encode()
+    {
+        encodedLength = 0;
+        byte[] statusLine = getEncodedStatusLine(mainLine);
+        if (statusLine != null)
+            append(statusLine, 0, statusLine.length);
+        else
+        {
+            append(mainLine);
+            appendCRLF();
+        }
 
         Iterator itt = headerMap.entrySet().iterator();
         while (itt.hasNext())
@@ -407,27 +582,43 @@ public class HTTPResponseHeaders extends HTTPHeaders
             Map.Entry entry = (Map.Entry) itt.next();
             String key = (String) entry.getKey();
             Object val = entry.getValue();
-            try
-            {
-                String sval = (String) val;
-                out.write(Utils.getAsciiBytes(key));
-                out.write(colon);
-                out.write(Utils.getAsciiBytes(sval));
-                out.write(crlf);
-            }
-            catch (ClassCastException e) //handle a list of Set-Cookie entries
+            if (val instanceof List) //handle a list of Set-Cookie entries
             {
                 List ll = (List) val;
                 for (int i=0; i<ll.size(); i++)
-                {
-                    out.write(Utils.getAsciiBytes(key));
-                    out.write(colon);
-                    out.write(Utils.getAsciiBytes(formatSetCookie((HttpCookie)ll.get(i))));
-                    out.write(crlf);
-                }
+                    appendHeader(key, formatSetCookie((HttpCookie)ll.get(i)));
             }
+            else
+                appendHeader(key, (String) val);
+        }
+        appendCRLF();
+
+        return encodedLength;
+    }
+
+    public void printToStream(OutputStream out) throws IOException
+    {
+        printToStream(out, null, 0, 0);
+    }
+
+    /** Writes the encoded headers followed by the given content, as a single write when the content is no larger than MAX_COALESCED_CONTENT. */
+    public void printToStream(OutputStream out, byte[] content, int off, int len) throws IOException
+    {
+        encode();
+        if ((content == null) || (len <= 0))
+            out.write(encoded, 0, encodedLength);
+        else if (len <= MAX_COALESCED_CONTENT)
+        {
+            int headerLength = encodedLength;
+            append(content, off, len);
+            out.write(encoded, 0, encodedLength);
+            encodedLength = headerLength;
+        }
+        else
+        {
+            out.write(encoded, 0, encodedLength);
+            out.write(content, off, len);
         }
-        out.write(crlf);
     }
 
     private static byte[] continueResponseBytes = Utils.getAsciiBytes("HTTP/1.1 100 Continue\r\n\r\n");
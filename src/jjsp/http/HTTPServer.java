@@ -19,6 +19,8 @@ package jjsp.http;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import jjsp.util.*;
 import jjsp.engine.*;
@@ -27,9 +29,15 @@ import jjsp.http.filters.*;
 public class HTTPServer extends Server
 {
     private volatile int timeout;
+    private volatile boolean http2Enabled;
+    private volatile HTTPRequestFilter unavailableFilter;
 
-    private final HTTPServerLogger logger;
-    private final HTTPRequestFilter mainFilter;
+    private volatile Generation current;
+
+    private static final byte[] REJECTED_REQUEST = Utils.getAsciiBytes("GET / HTTP/1.1\r\n\r\n");
+    private static final byte[] PREFACE_END = Utils.getAsciiBytes("SM\r\n\r\n");
+    private static final byte[] SWITCHING_TO_HTTP2 = Utils.getAsciiBytes("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+    private static final String[] HTTP2_PROTOCOLS = {"h2", "http/1.1"};
 
     public HTTPServer(HTTPRequestFilter filter, HTTPServerLogger logger)
     {
@@ -39,8 +47,114 @@ public class HTTPServer extends Server
     public HTTPServer(HTTPRequestFilter filter, int recvBufferSize, int sendBufferSize, HTTPServerLogger logger)
     {
         super(recvBufferSize, sendBufferSize);
-        this.mainFilter = filter;
-        this.logger = logger;
+        current = new Generation(filter, logger);
+        unavailableFilter = FixedResponseFilter.createUnavailableFilter("SERVER_BUSY");
+        http2Enabled = false;
+    }
+
+    /** 
+        Sets whether HTTP/2 is offered to clients: by ALPN ("h2") on secure ports, and on non-secure ports to clients which 
+        send the HTTP/2 connection preface (prior knowledge) or ask to upgrade a request without content with "Upgrade: h2c". 
+    */
+    public void setHTTP2Enabled(boolean value)
+    {
+        http2Enabled = value;
+    }
+
+    public boolean isHTTP2Enabled()
+    {
+        return http2Enabled;
+    }
+
+    /** Sets the filter used to respond to requests and connections refused by the admission controller (by default a 503 Service Unavailable). */
+    public void setUnavailableFilter(HTTPRequestFilter filter)
+    {
+        unavailableFilter = filter;
+    }
+
+    public HTTPRequestFilter getUnavailableFilter()
+    {
+        return unavailableFilter;
+    }
+
+    /** A main filter and logger, with the count of requests currently being handled by them. */
+    public static class Generation
+    {
+        final HTTPRequestFilter mainFilter;
+        final HTTPServerLogger logger;
+        final AtomicInteger activeRequests;
+
+        Generation(HTTPRequestFilter mainFilter, HTTPServerLogger logger)
+        {
+            this.mainFilter = mainFilter;
+            this.logger = logger;
+            activeRequests = new AtomicInteger();
+        }
+
+        public int getActiveRequests()
+        {
+            return activeRequests.get();
+        }
+
+        /** Waits up to msToWait for the requests being handled by this generation to finish, returning true if they all did. */
+        public boolean awaitIdle(long msToWait) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + msToWait;
+            while (activeRequests.get() > 0)
+            {
+                if (System.currentTimeMillis() >= deadline)
+                    return false;
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+
+    public HTTPRequestFilter getMainFilter()
+    {
+        return current.mainFilter;
+    }
+
+    public HTTPServerLogger getLogger()
+    {
+        return current.logger;
+    }
+
+    /** Returns the number of requests being handled by the current main filter. */
+    public int getActiveRequests()
+    {
+        return current.activeRequests.get();
+    }
+
+    /**
+        Atomically replaces the main filter and logger without interrupting the listening sockets or open connections: requests already being
+        handled complete on the previous filter, and every later request (including those on existing keep-alive connections) goes to the new one.
+        Returns the previous generation, whose requests can be waited for with awaitIdle.
+    */
+    public synchronized Generation replaceMainFilter(HTTPRequestFilter filter, HTTPServerLogger logger)
+    {
+        Generation previous = current;
+        current = new Generation(filter, logger);
+        return previous;
+    }
+
+    /** Counts a request into the current generation, trying again if it was replaced meanwhile, so that awaitIdle on a replaced generation always sees it. */
+    private Generation enterCurrentGeneration()
+    {
+        while (true)
+        {
+            Generation gen = current;
+            gen.activeRequests.incrementAndGet();
+            if (current == gen)
+                return gen;
+            gen.activeRequests.decrementAndGet();
+        }
+    }
+
+    /** Replaces the main filter and logger, then waits up to msToWait for the requests on the previous filter to finish, returning true if they all did. */
+    public boolean replaceMainFilter(HTTPRequestFilter filter, HTTPServerLogger logger, long msToWait) throws InterruptedException
+    {
+        return replaceMainFilter(filter, logger).awaitIdle(msToWait);
     }
 
     public int getDefaultSocketTimeout()
@@ -61,12 +175,38 @@ public class HTTPServer extends Server
 
     protected void errorOnSocketAccept(int serverPort, boolean isSecure, Throwable t)
     {
+        HTTPServerLogger logger = current.logger;
         if (logger != null)
             logger.socketException(-1, serverPort, isSecure, null, t);
     }
 
+    /** Sends the unavailable response (without reading the request) on refused non-secure connections, then closes them. */
+    protected void rejectConnection(Socket socket, int serverPort, boolean isSecure)
+    {
+        try
+        {
+            if (!isSecure)
+            {
+                InetSocketAddress clientAddress = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
+                HTTPInputStream requestInput = new HTTPInputStream(serverPort, false, clientAddress, new ByteArrayInputStream(REJECTED_REQUEST));
+                HTTPOutputStream requestOutput = new HTTPOutputStream(serverPort, false, clientAddress, socket.getOutputStream());
+
+                requestInput.readHeaders();
+                requestOutput.getHeaders().setConnectionClose();
+                unavailableFilter.filterRequest(null, requestInput, requestOutput, null);
+                socket.shutdownOutput();
+            }
+        }
+        catch (Throwable e) {}
+        finally
+        {
+            super.rejectConnection(socket, serverPort, isSecure);
+        }
+    }
+
     protected void connectionError(InetSocketAddress clientAddress, int serverPort, boolean isSecure, Throwable t)
     {
+        HTTPServerLogger logger = current.logger;
         if (logger != null)
             logger.socketException(clientAddress.getPort(), serverPort, isSecure, clientAddress, t);
     }
@@ -76,109 +216,286 @@ public class HTTPServer extends Server
         requestOutput.getHeaders().configureAsNotFound();
     }
 
-    protected void handleSocketStreams(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    protected ConnectionHandler createConnectionHandler(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
     {
-        HTTPInputStream requestInput = new HTTPInputStream(serverPort, isSecure, clientAddress, input);
-        HTTPOutputStream requestOutput = new HTTPOutputStream(serverPort, isSecure, clientAddress, output);
+        return new HTTPConnection(clientAddress, serverPort, isSecure, input, output);
+    }
 
-        ConnectionState state = new ConnectionState();
+    protected void handleSocketStreams(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    {
+        HTTPConnection connection = new HTTPConnection(clientAddress, serverPort, isSecure, input, output);
         try
         {
-            while (true)
-            {   
-                String clientIP = "";
-                long headersReadTime = 0;
-                long readMark = requestInput.getBytesRead();
-                long writeMark = requestOutput.getBytesWritten();
+            while (connection.processNextRequest());
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    protected String[] getApplicationProtocols(int serverPort)
+    {
+        return http2Enabled ? HTTP2_PROTOCOLS : null;
+    }
+
+    protected void handleNegotiatedProtocol(String protocol, InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    {
+        if (protocol.equals("h2"))
+            createHTTP2Connection(clientAddress, serverPort, isSecure, input, output).serve(false);
+        else
+            super.handleNegotiatedProtocol(protocol, clientAddress, serverPort, isSecure, input, output);
+    }
+
+    /** Creates the HTTP/2 connection for the socket streams, with each stream handled as a single request through the main filter. */
+    protected HTTP2Connection createHTTP2Connection(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output)
+    {
+        return new HTTP2Connection(input, output, getExecutor(), (request, response) ->
+        {
+            HTTPConnection stream = new HTTPConnection(clientAddress, serverPort, isSecure, request, response);
+            try
+            {
+                stream.processNextRequest();
+            }
+            finally
+            {
+                stream.close();
+            }
+        });
+    }
+
+    class HTTPConnection implements ConnectionHandler
+    {
+        private final int serverPort;
+        private final boolean isSecure;
+        private final OutputStream output;
+        private final ConnectionState state;
+        private final HTTPInputStream requestInput;
+        private final HTTPOutputStream requestOutput;
+
+        private boolean closed;
+
+        HTTPConnection(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output)
+        {
+            this.serverPort = serverPort;
+            this.isSecure = isSecure;
+            this.output = output;
+
+            requestInput = new HTTPInputStream(serverPort, isSecure, clientAddress, input);
+            requestOutput = new HTTPOutputStream(serverPort, isSecure, clientAddress, output);
+            requestInput.setFlushBeforeBlockingRead(() -> requestOutput.setDeferFlush(false));
+            state = new ConnectionState();
+            closed = false;
+        }
+
+        public boolean process() throws IOException
+        {
+            while (processNextRequest())
+            {
+                if (requestInput.connectionBytesAvailable() <= 0)
+                    return true;
+            }
+            return false;
+        }
+
+        /** Reads and responds to the next request on the connection, returning false if the connection should then be closed. */
+        boolean processNextRequest() throws IOException
+        {
+            String clientIP = "";
+            long headersReadTime = 0;
+            long readMark = requestInput.getBytesRead();
+            long writeMark = requestOutput.getBytesWritten();
                 
-                requestInput.resetReadTime();
-                requestOutput.resetWriteTime();
+            requestInput.resetReadTime();
+            requestOutput.resetWriteTime();
 
-                try
-                {
-                    boolean headerTooLarge = !requestInput.readHeaders();
-                    headersReadTime = System.currentTimeMillis();
-                    clientIP = requestInput.getHeaders().getClientIPAddress();
+            try
+            {
+                boolean headerTooLarge = !requestInput.readHeaders();
+                headersReadTime = System.currentTimeMillis();
+                clientIP = requestInput.getHeaders().getClientIPAddress();
 
-                    if (headerTooLarge)
-                    {
-                        requestOutput.getHeaders().configureAsTooLarge();
-                        requestOutput.sendHeaders();             
+                if (headerTooLarge)
+                {
+                    requestOutput.getHeaders().configureAsTooLarge();
+                    requestOutput.sendHeaders();             
                         
-                        if (logger != null)
-                        {
-                            long responseSent = System.currentTimeMillis();
-                            long read = requestInput.getBytesRead() - readMark;
-                            long written = requestOutput.getBytesWritten() - writeMark;
+                    HTTPServerLogger logger = current.logger;
+                    if (logger != null)
+                    {
+                        long responseSent = System.currentTimeMillis();
+                        long read = requestInput.getBytesRead() - readMark;
+                        long written = requestOutput.getBytesWritten() - writeMark;
                             
-                            HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, new HTTPFilterChain("HDRS_TOO_LARGE"), requestInput.getHeaders(), requestOutput.getHeaders());
-                            logger.requestProcessed(logEntry);
-                        }
-
-                        throw new IOException("HTTP Header entity too large (HTTP 413)");
+                        HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, new HTTPFilterChain("HDRS_TOO_LARGE"), requestInput.getHeaders(), requestOutput.getHeaders());
+                        logger.requestProcessed(logEntry);
                     }
+
+                    throw new IOException("HTTP Header entity too large (HTTP 413)");
                 }
-                catch (EOFException e) 
-                {
-                    break;
-                }
+            }
+            catch (EOFException e) 
+            {
+                return false;
+            }
 
-                HTTPRequestHeaders reqHdrs = requestInput.getHeaders();
-                boolean isHTTP11 = reqHdrs.isHTTP11();
+            HTTPRequestHeaders reqHdrs = requestInput.getHeaders();
+            if (http2Enabled && switchToHTTP2(reqHdrs))
+                return false;
 
-                if (isHTTP11 && reqHdrs.expectsContinueResponse())
-                    HTTPResponseHeaders.sendContinueResponse(output);
+            Generation gen = enterCurrentGeneration();
+            try
+            {
+                return respond(gen, clientIP, headersReadTime, readMark, writeMark);
+            }
+            finally
+            {
+                gen.activeRequests.decrementAndGet();
+            }
+        }
 
-                boolean closeConnection = !isHTTP11 || requestInput.getHeaders().closeConnection();
-                if (closeConnection)
-                    requestOutput.getHeaders().setConnectionClose();
-                if (reqHdrs.isHead())
-                    requestOutput.setResponseToHeadRequest(true);
-                if (!isHTTP11)
-                    requestOutput.setToLegacyHTTP();
+        private boolean respond(Generation gen, String clientIP, long headersReadTime, long readMark, long writeMark) throws IOException
+        {
+            HTTPRequestHeaders reqHdrs = requestInput.getHeaders();
+            boolean isHTTP11 = reqHdrs.isHTTP11();
+
+            if (isHTTP11 && reqHdrs.expectsContinueResponse())
+            {
+                requestOutput.setDeferFlush(false);
+                HTTPResponseHeaders.sendContinueResponse(output);
+            }
+
+            boolean closeConnection = !isHTTP11 || requestInput.getHeaders().closeConnection();
+            if (!closeConnection && (requestInput.bufferedBytesAvailable() > 0)) //Another request has been pipelined behind this one, so hold this response to send with the next
+                requestOutput.setDeferFlush(true);
+            if (closeConnection)
+                requestOutput.getHeaders().setConnectionClose();
+            if (reqHdrs.isHead())
+                requestOutput.setResponseToHeadRequest(true);
+            if (!isHTTP11)
+                requestOutput.setToLegacyHTTP();
                  
-                HTTPFilterChain chain = mainFilter.filterRequest(null, requestInput, requestOutput, state);
-                
-                Throwable primaryError = chain.getPrimaryError();
+            state.getFilterTrace().reset();
+            HTTPFilterChain chain = null;
+            AdmissionController admission = getAdmissionController();
+            if ((admission == null) || admission.acquireRequest())
+            {
                 try
                 {
-                    if ((primaryError != null) && !requestOutput.outputSent())
-                    {
-                        requestOutput.resetForNextResponse();
-                        configureResponseToInternalError(requestOutput, primaryError);
-                        requestOutput.sendHeaders();
-                    }
-                    else if (!requestOutput.outputSent())
-                    {
-                        requestOutput.getHeaders().configureAsNotFound();
-                        requestOutput.sendHeaders();
-                    }
+                    chain = gen.mainFilter.filterRequest(null, requestInput, requestOutput, state);
                 }
-                catch (Throwable e) { /* Else we can't do much cause there's already a better error to report! */}
-
-                long responseSent = System.currentTimeMillis();
-                long read = requestInput.getBytesRead() - readMark;
-                long written = requestOutput.getBytesWritten() - writeMark;
+                finally
+                {
+                    if (admission != null)
+                        admission.releaseRequest();
+                }
+            }
+            else
+            {
+                closeConnection = true;
+                requestOutput.getHeaders().setConnectionClose();
+                chain = unavailableFilter.filterRequest(null, requestInput, requestOutput, state);
+            }
                 
-                if (logger != null)
+            Throwable primaryError = chain.getPrimaryError();
+            try
+            {
+                if ((primaryError != null) && !requestOutput.outputSent())
+                {
+                    requestOutput.resetForNextResponse();
+                    configureResponseToInternalError(requestOutput, primaryError);
+                    requestOutput.sendHeaders();
+                }
+                else if (!requestOutput.outputSent())
                 {
-                    HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, chain, requestInput.getHeaders(), requestOutput.getHeaders());
-                    logger.requestProcessed(logEntry);
+                    requestOutput.getHeaders().configureAsNotFound();
+                    requestOutput.sendHeaders();
                 }
+            }
+            catch (Throwable e) { /* Else we can't do much cause there's already a better error to report! */}
+
+            long responseSent = System.currentTimeMillis();
+            long read = requestInput.getBytesRead() - readMark;
+            long written = requestOutput.getBytesWritten() - writeMark;
+                
+            if (gen.logger != null)
+            {
+                HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, chain, requestInput.getHeaders(), requestOutput.getHeaders());
+                gen.logger.requestProcessed(logEntry);
+            }
 
-                if (requestOutput.isDisposed())
-                    break;
+            if (requestOutput.isDisposed())
+                return false;
 
-                requestInput.close();
-                requestOutput.close();
-                requestOutput.resetForNextResponse();
+            requestInput.close();
+            requestOutput.close();
+            requestOutput.resetForNextResponse();
+            if (closeConnection || (requestInput.bufferedBytesAvailable() == 0))
+                requestOutput.setDeferFlush(false);
             
-                if (closeConnection)
-                    break;
+            return !closeConnection;
+        }
+
+        /** Serves the rest of the connection as HTTP/2 if the request is the HTTP/2 connection preface or an h2c upgrade, returning true once it has closed. */
+        private boolean switchToHTTP2(HTTPRequestHeaders reqHdrs) throws IOException
+        {
+            if (reqHdrs.getMainLine().equals("PRI * HTTP/2.0") && (reqHdrs.getHeaderCount() == 0))
+            {
+                InputStream connection = requestInput.getConnectionStream();
+                for (int i=0; i<PREFACE_END.length; i++)
+                {
+                    if (connection.read() != PREFACE_END[i])
+                        throw new IOException("Invalid HTTP/2 connection preface");
+                }
+
+                requestOutput.setDeferFlush(false);
+                createHTTP2Connection(requestInput.getClientAddress(), serverPort, isSecure, connection, output).serve(true);
+                return true;
             }
+
+            if (isSecure || !reqHdrs.isHTTP11() || !reqHdrs.getHeader("Upgrade", "").trim().equalsIgnoreCase("h2c") || (reqHdrs.getContentLength() > 0) || reqHdrs.isChunked())
+                return false;
+
+            byte[] settings = null;
+            try
+            {
+                settings = Base64.getUrlDecoder().decode(reqHdrs.getHeader("HTTP2-Settings", "").trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                return false;
+            }
+
+            StringBuilder head = new StringBuilder(reqHdrs.getMainLine()).append("\r\n");
+            String[] keys = reqHdrs.getHeaderKeys();
+            for (int i=0; i<keys.length; i++)
+            {
+                String key = keys[i];
+                if (key.equalsIgnoreCase("Connection") || key.equalsIgnoreCase("Upgrade") || key.equalsIgnoreCase("HTTP2-Settings"))
+                    continue;
+                head.append(key).append(": ").append(reqHdrs.getHeader(key, "")).append("\r\n");
+            }
+            head.append("\r\n");
+
+            requestOutput.setDeferFlush(false);
+            output.write(SWITCHING_TO_HTTP2);
+            output.flush();
+            createHTTP2Connection(requestInput.getClientAddress(), serverPort, isSecure, requestInput.getConnectionStream(), output).serveUpgrade(Utils.getAsciiBytes(head.toString()), reqHdrs.isHead(), settings);
+            return true;
         }
-        finally
+
+        public void close()
         {
+            if (closed)
+                return;
+            closed = true;
+
+            try
+            {
+                requestOutput.setDeferFlush(false);
+            }
+            catch (Exception e) {}
+
             try
             {
                 state.close();
@@ -213,10 +530,21 @@ public class HTTPServer extends Server
         boolean debugMode = Args.getBoolean("debug", false);
         boolean debugHTTP  = Args.getBoolean("debugHTTP", false);
         boolean printExceptions  = Args.getBoolean("exceptions", false);
+        boolean nioMode = Args.getBoolean("nio", false);
+        boolean virtualThreads = Args.getBoolean("virtual", false);
+        boolean http2 = Args.getBoolean("http2", false);
+        int maxConnections = Args.getInt("maxConnections", 0);
+        int maxRequests = Args.getInt("maxRequests", 0);
+        int maxQueued = Args.getInt("maxQueued", 0);
+        int queueTimeout = Args.getInt("queueTimeout", 1000);
         int maxExceptionLines  = Args.getInt("exceptionLines", 10);
 
-        System.setProperty("javax.net.ssl.keyStore", Args.getArg("keyStore", "serverkeystore.jks"));
-        System.setProperty("javax.net.ssl.keyStorePassword", Args.getArg("keyStorePassword", "GTVrocks!"));
+        TLSConfiguration tls = new TLSConfiguration(Args.getArg("keyStore", "serverkeystore.jks"), Args.getArg("keyStorePassword", "GTVrocks!"));
+        String tlsProtocols = Args.getArg("tlsProtocols", null);
+        if (tlsProtocols != null)
+            tls.setProtocols(tlsProtocols.split(","));
+        tls.setSessionCacheSize(Args.getInt("tlsSessionCache", TLSConfiguration.DEFAULT_SESSION_CACHE_SIZE));
+        tls.setSessionTimeout(Args.getInt("tlsSessionTimeout", TLSConfiguration.DEFAULT_SESSION_TIMEOUT));
 
         DirectoryFilter mainDir = null;
         if (allowUpload)
@@ -244,6 +572,12 @@ public class HTTPServer extends Server
         PrintStreamLogger logger = new PrintStreamLogger(maxExceptionLines, debugMode || printExceptions, debugMode || debugHTTP);
         HTTPServer server = new HTTPServer(mainFilter, logger);
         server.setDefaultSocketTimeout(timeout);
+        server.setNIOMode(nioMode);
+        server.setVirtualThreads(virtualThreads);
+        server.setHTTP2Enabled(http2);
+        server.setTLSConfiguration(tls);
+        if ((maxConnections > 0) || (maxRequests > 0))
+            server.setAdmissionController(new AdmissionController(maxConnections, maxRequests, maxQueued, queueTimeout));
         
         InetAddress addr = null;
         try
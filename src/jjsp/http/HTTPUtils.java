@@ -36,9 +36,25 @@ public class HTTPUtils
     private MessageDigest md5;
     private MessageDigest sha256;
     private DateFormat httpDateFormat;
-    private long lastFormattedTime;
+    private long lastFormattedSecond;
     private String lastFormat;
 
+    static class CachedDate
+    {
+        final long second;
+        final String text;
+        final byte[] encoded;
+
+        CachedDate(long second, String text)
+        {
+            this.second = second;
+            this.text = text;
+            encoded = Utils.getAsciiBytes(text);
+        }
+    }
+
+    private static volatile CachedDate currentDate = new CachedDate(Long.MIN_VALUE, "");
+
     private static String cachedHostName = "localhost";
     static
     {
@@ -81,8 +97,8 @@ public class HTTPUtils
         }
         catch (Exception e) {}
 
-        lastFormattedTime = System.currentTimeMillis();
-        lastFormat = httpDateFormat.format(lastFormattedTime);
+        lastFormattedSecond = Long.MIN_VALUE;
+        lastFormat = null;
 
         try
         {
@@ -147,19 +163,39 @@ public class HTTPUtils
 
     public String formatHTTPDate(long time)
     {
-        if (time < lastFormattedTime)
-            return httpDateFormat.format(time);
-        else if (time < lastFormattedTime + 500)
+        long second = Math.floorDiv(time, 1000);
+        CachedDate date = currentDate;
+        if (date.second == second)
+            return date.text;
+        if (lastFormattedSecond == second)
             return lastFormat;
 
         lastFormat = httpDateFormat.format(time);
-        lastFormattedTime = time;
+        lastFormattedSecond = second;
         return lastFormat;
     }
 
+    /** Returns the current time as an HTTP date, shared between threads and formatted at most once per second. */
     public String formatHTTPDate()
     {
-        return formatHTTPDate(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        CachedDate date = currentDate;
+        if (date.second == second)
+            return date.text;
+
+        date = new CachedDate(second, httpDateFormat.format(now));
+        currentDate = date;
+        return date.text;
+    }
+
+    /** Returns the pre-encoded bytes of the given date string if it is the current cached HTTP date, otherwise null. */
+    static byte[] getEncodedHTTPDate(String text)
+    {
+        CachedDate date = currentDate;
+        if (date.text == text)
+            return date.encoded;
+        return null;
     }
 
     public long parseHTTPDate(String dateString, long defaultValue)
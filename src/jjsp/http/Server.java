@@ -20,15 +20,25 @@ package jjsp.http;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import javax.net.*;
 import javax.net.ssl.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.reflect.*;
 
 import jjsp.util.*;
 
 /**
    A multi-threaded abstract server class which dispatches multiple threads to handle incoming TCP connections. 
+
+   In NIO mode (see setNIOMode) non-secure ports are opened as channels, and subclasses which supply a ConnectionHandler
+   can hand idle keep-alive connections back to the server, which parks them on a Selector until more request bytes arrive.
+   The output streams of these connections are ChannelOutputStreams, so that file content can be sent with FileChannel.transferTo.
+
+   With setVirtualThreads each connection is handled on its own virtual thread instead (on JVMs which support them), 
+   which keeps the blocking stream code unchanged while making idle connections cheap.
  */
 public abstract class Server implements ThreadFactory
 {
@@ -45,11 +55,17 @@ public abstract class Server implements ThreadFactory
     
     private final int receiveBufferSize, sendBufferSize;
 
-    private long nameCounter;
+    private final AtomicLong nameCounter;
     private TreeMap acceptorMap;
-    private ExecutorService executor;
+    private volatile ExecutorService executor;
+    private volatile boolean virtualThreads;
+    private volatile AdmissionController admission;
+    private volatile TLSConfiguration tlsConfiguration;
 
-    private volatile boolean closed;
+    private Selector idleSelector;
+    private final ConcurrentLinkedQueue toPark;
+
+    private volatile boolean closed, nioMode;
 
     public Server()
     {
@@ -59,12 +75,110 @@ public abstract class Server implements ThreadFactory
     public Server(int receiveBufferSize, int sendBufferSize)
     {
         closed = false;
+        nioMode = false;
+        virtualThreads = false;
+        nameCounter = new AtomicLong();
+        idleSelector = null;
+        toPark = new ConcurrentLinkedQueue();
         acceptorMap = new TreeMap();
         this.receiveBufferSize = receiveBufferSize;
         this.sendBufferSize = sendBufferSize;
         executor = createThreadPool();
     }
 
+    /** Sets whether non-secure ports opened by subsequent calls to listenOn use NIO channels, allowing idle connections to be parked without holding a thread. */
+    public void setNIOMode(boolean value)
+    {
+        nioMode = value;
+    }
+
+    public boolean isNIOMode()
+    {
+        return nioMode;
+    }
+
+    /** Returns true if this JVM can create virtual threads (Java 21 or later). */
+    public static boolean virtualThreadsSupported()
+    {
+        try
+        {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (Throwable e)
+        {
+            return false;
+        }
+    }
+
+    /** Creates a ThreadFactory for virtual threads named with the given prefix and a counter. Looked up reflectively so the server still compiles and runs on JVMs without virtual threads. */
+    public static ThreadFactory createVirtualThreadFactory(String namePrefix)
+    {
+        try
+        {
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, Long.valueOf(0));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new IllegalStateException("Failed to create virtual thread factory", e.getCause());
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException("Virtual threads not supported by this JVM ("+System.getProperty("java.version")+")");
+        }
+    }
+
+    /** Sets whether each connection is handled on its own virtual thread rather than by the platform thread pool. Must be called before listening on any port. */
+    public void setVirtualThreads(boolean value)
+    {
+        synchronized (acceptorMap)
+        {
+            if (closed)
+                throw new IllegalStateException("Server Closed");
+            if (!acceptorMap.isEmpty())
+                throw new IllegalStateException("Cannot change thread mode once the server is listening");
+            if (value == virtualThreads)
+                return;
+            if (value && !virtualThreadsSupported())
+                throw new IllegalStateException("Virtual threads not supported by this JVM ("+System.getProperty("java.version")+")");
+
+            virtualThreads = value;
+            ExecutorService old = executor;
+            executor = createThreadPool();
+            old.shutdownNow();
+        }
+    }
+
+    public boolean usesVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /** Sets the controller limiting open connections and concurrent requests, or null (the default) for no limits. */
+    public void setAdmissionController(AdmissionController controller)
+    {
+        admission = controller;
+    }
+
+    public AdmissionController getAdmissionController()
+    {
+        return admission;
+    }
+
+    /** Sets the TLS configuration for secure ports opened without one of their own, or null (the default) to use the JVM default SSL server socket factory. */
+    public void setTLSConfiguration(TLSConfiguration config)
+    {
+        tlsConfiguration = config;
+    }
+
+    public TLSConfiguration getTLSConfiguration()
+    {
+        return tlsConfiguration;
+    }
+
     protected void errorOnListen(int port, boolean isSecure, Throwable t) {}
     
     protected void errorOnSocketAccept(int port, boolean isSecure, Throwable t) {}
@@ -92,24 +206,79 @@ public abstract class Server implements ThreadFactory
        */
     protected abstract void handleSocketStreams(InetSocketAddress address, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException;
 
+    /** Returns the protocols offered by ALPN on secure connections to the given port, in order of preference, or null (the default) to not use ALPN. */
+    protected String[] getApplicationProtocols(int serverPort)
+    {
+        return null;
+    }
+
+    /** Called instead of handleSocketStreams when ALPN negotiated a protocol other than http/1.1 on a secure connection. The default handles the connection with handleSocketStreams anyway. */
+    protected void handleNegotiatedProtocol(String protocol, InetSocketAddress address, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    {
+        handleSocketStreams(address, serverPort, isSecure, input, output);
+    }
+
+    /** 
+        A protocol handler for a single connection which returns control to the server between requests. 
+        Used only for NIO connections, when the subclass returns one from createConnectionHandler.
+    */
+    protected interface ConnectionHandler
+    {
+        /** Processes input from the connection until no more is available. Returns true if the connection is still open and should be parked until more input arrives, or false if it should now be closed. */
+        public boolean process() throws IOException;
+
+        /** Called once when the connection is closed, whether it was parked or being processed at the time. */
+        public void close();
+    }
+
+    /** Returns null (the default) to have the connection handled by handleSocketStreams on a dedicated thread for its whole lifetime. */
+    protected ConnectionHandler createConnectionHandler(InetSocketAddress address, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    {
+        return null;
+    }
+
+    /** Called on the acceptor thread when a new connection is refused by the admission controller or the thread pool. The default simply closes the socket. */
+    protected void rejectConnection(Socket socket, int serverPort, boolean isSecure)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (Throwable e) {}
+    }
+
     protected void connectionTimeout(InetSocketAddress clientAddress, int serverPort, boolean isSecure, Throwable e){}
 
     protected void connectionError(InetSocketAddress clientAddress, int serverPort, boolean isSecure, Throwable e){}
 
     public Thread newThread(Runnable r) 
     {
-        long nc = 0;
-        synchronized (this)
-        {
-            nc = nameCounter++;
-        }
-        Thread result = new Thread(r, "Socket Handler Thread "+nc);
+        Thread result = new Thread(r, "Socket Handler Thread "+nameCounter.getAndIncrement());
         result.setPriority(Thread.NORM_PRIORITY);
         return result;
     }
 
+    /** Returns the executor running connection handlers, for protocols which handle work from one connection on several threads. */
+    protected ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
     protected ExecutorService createThreadPool()
     {
+        if (virtualThreads)
+        {
+            try
+            {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, createVirtualThreadFactory("Socket Handler Virtual Thread "));
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException("Virtual threads not supported by this JVM ("+System.getProperty("java.version")+")", e);
+            }
+        }
+
         //System.out.println("\n\n\nWARNING - DEBUG THREAD POOL SIZE = 1");
         //return Executors.newFixedThreadPool(1);
         BlockingQueue q = new ArrayBlockingQueue(1, true);
@@ -120,18 +289,24 @@ public abstract class Server implements ThreadFactory
     {
         private final int port;
         private final Socket socket;
+        private final SocketChannel channel;
         private final SocketAcceptor acceptor;
 
         private boolean isSecure;
         private InputStream input;
         private OutputStream output;
         private InetSocketAddress clientAddress;
+        private String applicationProtocol;
+        private long parkedAt;
+        private AdmissionController admission;
 
+        private volatile ConnectionHandler connection;
         private volatile Thread executingThread;
 
         SocketHandler(SocketAcceptor acceptor, Socket s, int port, boolean isSecure)
         {
             socket = s;
+            channel = s.getChannel();
             this.acceptor = acceptor;
             this.port = port;
             this.isSecure = isSecure;
@@ -139,9 +314,11 @@ public abstract class Server implements ThreadFactory
 
         void close()
         {
+            Thread t = executingThread;
             try
             {
-                executingThread.interrupt();
+                if (t != null)
+                    t.interrupt();
             }
             catch (Throwable e) {}
 
@@ -151,36 +328,108 @@ public abstract class Server implements ThreadFactory
             }
             catch (Throwable e) {}
 
+            try
+            {
+                if ((connection != null) && (t == null))
+                    connection.close();
+            }
+            catch (Throwable e) {}
+
             acceptor.socketHandlerClosed(this);
         }
 
+        boolean idleTimeoutExpired(long now)
+        {
+            try
+            {
+                int timeout = socket.getSoTimeout();
+                return (timeout > 0) && (now - parkedAt > timeout);
+            }
+            catch (Throwable e) 
+            {
+                return true;
+            }
+        }
+
+        void timedOut()
+        {
+            try
+            {
+                connectionTimeout(clientAddress, port, isSecure, new SocketTimeoutException("Idle connection timed out"));
+            }
+            catch (Throwable e) {}
+            close();
+        }
+
         public void run()
         {
             executingThread = Thread.currentThread();
-            InetSocketAddress clientAddress = null;
-            output = null;
-            input = null;
+            boolean parked = false;
 
             try
             {
-                try
+                if (connection == null)
                 {
-                    clientAddress = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
-                    isSecure = (socket instanceof SSLSocket);
-                    configureAcceptedSocket(socket);
+                    output = null;
+                    input = null;
+
+                    try
+                    {
+                        clientAddress = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
+                        isSecure = (socket instanceof SSLSocket);
+                        configureAcceptedSocket(socket);
+
+                        if (isSecure)
+                        {
+                            SSLSocket sslSocket = (SSLSocket) socket;
+                            String[] protocols = getApplicationProtocols(port);
+                            if (protocols != null)
+                            {
+                                SSLParameters params = sslSocket.getSSLParameters();
+                                params.setApplicationProtocols(protocols);
+                                sslSocket.setSSLParameters(params);
+                            }
+
+                            TLSConfiguration tlsConfig = acceptor.tlsConfig;
+                            if (tlsConfig != null)
+                                tlsConfig.handshake(sslSocket);
+                            else if (protocols != null)
+                                sslSocket.startHandshake();
+                            if (protocols != null)
+                                applicationProtocol = sslSocket.getApplicationProtocol();
+                        }
                 
-                    input = decorateSocketInputStream(socket.getInputStream());
-                    output = decorateSocketOutputStream(socket.getOutputStream());
-                }
-                catch (Throwable t)
-                { 
-                    errorOnSocketAccept(port, isSecure, t);
-                    return;
+                        input = decorateSocketInputStream(socket.getInputStream());
+                        if (channel != null)
+                            output = decorateSocketOutputStream(new ChannelOutputStream(socket.getOutputStream(), channel));
+                        else
+                            output = decorateSocketOutputStream(socket.getOutputStream());
+
+                        if (channel != null)
+                            connection = createConnectionHandler(clientAddress, port, isSecure, input, output);
+                    }
+                    catch (Throwable t)
+                    { 
+                        errorOnSocketAccept(port, isSecure, t);
+                        return;
+                    }
                 }
 
                 try
                 {
-                    handleSocketStreams(clientAddress, port, isSecure, input, output);
+                    if ((applicationProtocol != null) && (applicationProtocol.length() > 0) && !applicationProtocol.equals("http/1.1"))
+                        handleNegotiatedProtocol(applicationProtocol, clientAddress, port, isSecure, input, output);
+                    else if (connection == null)
+                        handleSocketStreams(clientAddress, port, isSecure, input, output);
+                    else
+                    {
+                        channel.configureBlocking(true);
+                        if (connection.process())
+                        {
+                            executingThread = null;
+                            parked = parkConnection(this);
+                        }
+                    }
                 }
                 catch (SocketTimeoutException e) 
                 {
@@ -193,7 +442,163 @@ public abstract class Server implements ThreadFactory
             }
             finally
             {
-                close();
+                if (!parked)
+                {
+                    executingThread = null;
+                    close();
+                }
+            }
+        }
+    }
+
+    private boolean parkConnection(SocketHandler handler)
+    {
+        try
+        {
+            Selector selector = null;
+            synchronized (toPark)
+            {
+                if (closed)
+                    return false;
+                if (idleSelector == null)
+                {
+                    idleSelector = Selector.open();
+                    Thread t = new Thread(new IdleConnectionSelector(idleSelector), "Idle Connection Selector");
+                    t.setDaemon(true);
+                    t.start();
+                }
+                selector = idleSelector;
+            }
+
+            handler.channel.configureBlocking(false);
+            handler.parkedAt = System.currentTimeMillis();
+            toPark.add(handler);
+            selector.wakeup();
+            return true;
+        }
+        catch (Throwable e)
+        {
+            return false;
+        }
+    }
+
+    class IdleConnectionSelector implements Runnable
+    {
+        private final Selector selector;
+
+        IdleConnectionSelector(Selector selector)
+        {
+            this.selector = selector;
+        }
+
+        private void dispatch(List ready)
+        {
+            for (int i=0; i<ready.size(); i++)
+            {
+                SocketHandler handler = (SocketHandler) ready.get(i);
+                try
+                {
+                    executor.execute(handler);
+                }
+                catch (Throwable e)
+                {
+                    try
+                    {
+                        errorOnSocketAccept(handler.port, handler.isSecure, e);
+                    }
+                    catch (Throwable tt) {}
+                    handler.close();
+                }
+            }
+        }
+
+        public void run()
+        {
+            long lastTimeoutCheck = System.currentTimeMillis();
+            try
+            {
+                while (!closed)
+                {
+                    selector.select(1000);
+
+                    while (true)
+                    {
+                        SocketHandler handler = (SocketHandler) toPark.poll();
+                        if (handler == null)
+                            break;
+
+                        try
+                        {
+                            handler.channel.register(selector, SelectionKey.OP_READ, handler);
+                        }
+                        catch (Throwable e)
+                        {
+                            handler.close();
+                        }
+                    }
+
+                    ArrayList ready = new ArrayList();
+                    Iterator itt = selector.selectedKeys().iterator();
+                    while (itt.hasNext())
+                    {
+                        SelectionKey key = (SelectionKey) itt.next();
+                        itt.remove();
+                        key.cancel();
+                        ready.add(key.attachment());
+                    }
+
+                    ArrayList expired = new ArrayList();
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= 1000)
+                    {
+                        lastTimeoutCheck = now;
+                        itt = selector.keys().iterator();
+                        while (itt.hasNext())
+                        {
+                            SelectionKey key = (SelectionKey) itt.next();
+                            SocketHandler handler = (SocketHandler) key.attachment();
+                            if (key.isValid() && handler.idleTimeoutExpired(now))
+                            {
+                                key.cancel();
+                                expired.add(handler);
+                            }
+                        }
+                    }
+
+                    if (ready.isEmpty() && expired.isEmpty())
+                        continue;
+
+                    //Flush the cancelled keys so the channels can be returned to blocking mode by the worker threads
+                    selector.selectNow();
+                    dispatch(ready);
+                    for (int i=0; i<expired.size(); i++)
+                        ((SocketHandler) expired.get(i)).timedOut();
+                }
+            }
+            catch (Throwable e) {}
+            finally
+            {
+                try
+                {
+                    Iterator itt = selector.keys().iterator();
+                    while (itt.hasNext())
+                        ((SocketHandler) ((SelectionKey) itt.next()).attachment()).close();
+                }
+                catch (Throwable e) {}
+
+                while (true)
+                {
+                    SocketHandler handler = (SocketHandler) toPark.poll();
+                    if (handler == null)
+                        break;
+                    handler.close();
+                }
+
+                try
+                {
+                    selector.close();
+                }
+                catch (Throwable e) {}
             }
         }
     }
@@ -214,6 +619,12 @@ public abstract class Server implements ThreadFactory
     }
 
     public void listenOn(int port, boolean isSecure, InetAddress bindAddress) throws IOException
+    {
+        listenOn(port, isSecure, bindAddress, null);
+    }
+
+    /** Listens on the port, using the given TLS configuration if it is secure (or the server TLS configuration if that is null). */
+    public void listenOn(int port, boolean isSecure, InetAddress bindAddress, TLSConfiguration tlsConfig) throws IOException
     {
         try
         {
@@ -224,9 +635,22 @@ public abstract class Server implements ThreadFactory
                 ServerSocket ssocket = null;
                 if (isSecure)
                 {
-                    ServerSocketFactory ssocketFactory = SSLServerSocketFactory.getDefault();
-                    ssocket = ssocketFactory.createServerSocket();
+                    if (tlsConfig == null)
+                        tlsConfig = tlsConfiguration;
+
+                    if (tlsConfig != null)
+                    {
+                        ssocket = tlsConfig.getServerSocketFactory().createServerSocket();
+                        tlsConfig.configureServerSocket((SSLServerSocket) ssocket);
+                    }
+                    else
+                    {
+                        ServerSocketFactory ssocketFactory = SSLServerSocketFactory.getDefault();
+                        ssocket = ssocketFactory.createServerSocket();
+                    }
                 }
+                else if (nioMode)
+                    ssocket = ServerSocketChannel.open().socket();
                 else
                     ssocket = new ServerSocket();
 
@@ -236,7 +660,7 @@ public abstract class Server implements ThreadFactory
                 ssocket.setPerformancePreferences(1, 1, 0);
                 ssocket.bind(new InetSocketAddress(bindAddress, port), SOCKET_BACKLOG);
         
-                SocketAcceptor sa = new SocketAcceptor(port, isSecure, ssocket);
+                SocketAcceptor sa = new SocketAcceptor(port, isSecure, ssocket, isSecure ? tlsConfig : null);
                 acceptorMap.put(Integer.valueOf(port), sa);
                 new Thread(sa).start();
             }
@@ -249,18 +673,40 @@ public abstract class Server implements ThreadFactory
     }
 
     public void stopListeningOn(int port)
+    {
+        stopListeningOn(port, true);
+    }
+
+    /** Closes the listening socket on the port, and optionally the connections accepted on it (which otherwise carry on until they close). */
+    public void stopListeningOn(int port, boolean closeConnections)
     {
         synchronized (acceptorMap)
         {
             try
             {
-                SocketAcceptor sa = (SocketAcceptor) acceptorMap.get(Integer.valueOf(port));
-                sa.close();
+                SocketAcceptor sa = (SocketAcceptor) acceptorMap.remove(Integer.valueOf(port));
+                sa.close(closeConnections);
             }
             catch (Exception e) {}
         }
     }
 
+    /**
+        Sets the TLS configuration which records the handshakes of connections accepted on a secure port, which carries on using the server
+        socket (and so the keys and session cache) it was opened with. Returns false if the port is not listening securely.
+    */
+    public boolean setTLSConfiguration(int port, TLSConfiguration tlsConfig)
+    {
+        synchronized (acceptorMap)
+        {
+            SocketAcceptor sa = (SocketAcceptor) acceptorMap.get(Integer.valueOf(port));
+            if ((sa == null) || !sa.isSecure || (tlsConfig == null))
+                return false;
+            sa.tlsConfig = tlsConfig;
+            return true;
+        }
+    }
+
     public InetSocketAddress[] getListeningAddresses()
     {
         synchronized (acceptorMap)
@@ -303,6 +749,12 @@ public abstract class Server implements ThreadFactory
         }
         catch (Throwable e) {}
 
+        synchronized (toPark)
+        {
+            if (idleSelector != null)
+                idleSelector.wakeup();
+        }
+
         synchronized (acceptorMap)
         {
             Iterator itt = acceptorMap.values().iterator();
@@ -323,14 +775,15 @@ public abstract class Server implements ThreadFactory
         private boolean isSecure;
         private ServerSocket ssocket;
         private HashSet acceptedSockets;
-
+        private volatile TLSConfiguration tlsConfig;
         private volatile boolean closed;
 
-        SocketAcceptor(int port, boolean isSecure, ServerSocket ssocket)
+        SocketAcceptor(int port, boolean isSecure, ServerSocket ssocket, TLSConfiguration tlsConfig)
         {
             this.port = port;
             this.isSecure = isSecure;
             this.ssocket = ssocket;
+            this.tlsConfig = tlsConfig;
             
             closed = false;
             acceptedSockets = new HashSet();
@@ -338,10 +791,14 @@ public abstract class Server implements ThreadFactory
 
         void socketHandlerClosed(SocketHandler handler)
         {
+            boolean removed = false;
             synchronized (acceptedSockets)
             {
-                acceptedSockets.remove(handler);
+                removed = acceptedSockets.remove(handler);
             }
+
+            if (removed && (handler.admission != null))
+                handler.admission.releaseConnection();
         }
         
         SocketAddress getListeningAddress()
@@ -350,6 +807,11 @@ public abstract class Server implements ThreadFactory
         }
         
         void close()
+        {
+            close(true);
+        }
+
+        void close(boolean closeConnections)
         {
             SocketHandler[] openHandlers = null;
             synchronized (acceptedSockets)
@@ -365,8 +827,9 @@ public abstract class Server implements ThreadFactory
             }
             catch (Throwable e) {}
 
-            for (int i=0; i<openHandlers.length; i++)
-                openHandlers[i].close();
+            if (closeConnections)
+                for (int i=0; i<openHandlers.length; i++)
+                    openHandlers[i].close();
         }
 
         public void run()
@@ -385,6 +848,14 @@ public abstract class Server implements ThreadFactory
                     Socket s = ssocket.accept();
                     SocketHandler sh = new SocketHandler(this, s, port, isSecure);
 
+                    AdmissionController ac = admission;
+                    if ((ac != null) && !ac.tryAcquireConnection())
+                    {
+                        rejectConnection(s, port, isSecure);
+                        continue;
+                    }
+                    sh.admission = ac;
+
                     synchronized (acceptedSockets)
                     {
                         if (closed)
@@ -394,12 +865,24 @@ public abstract class Server implements ThreadFactory
                                 s.close();
                             }
                             catch (Throwable e) {}
+                            if (ac != null)
+                                ac.releaseConnection();
                             return;
                         }
 
                         acceptedSockets.add(sh);
+                    }
+
+                    try
+                    {
                         executor.execute(sh);
                     }
+                    catch (RejectedExecutionException e)
+                    {
+                        socketHandlerClosed(sh);
+                        rejectConnection(s, port, isSecure);
+                        throw e;
+                    }
 
                     errorCounter = 0;
                 }
@@ -0,0 +1,189 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
+
+import jjsp.util.*;
+import jjsp.http.filters.*;
+
+/**
+   A load test which runs the same filter chain under each server threading mode (platform thread pool,
+   NIO parking and virtual threads where supported) and reports throughput, heap and platform thread usage
+   for a number of concurrent keep-alive connections.
+
+   Usage: -connections &lt;count&gt; -seconds &lt;duration per mode&gt; -thinkTime &lt;ms between requests per connection&gt; -port &lt;port&gt;
+
+   With -jsWork &lt;loop iterations&gt; the responses are generated by a pooled JSRequestFilter doing that much work per request, with
+   at most -jsInstances script instances (1 serialises the script, as a single shared engine would), to measure concurrent JS throughput.
+ */
+public class ServerLoadTest
+{
+    private final int port, connections, thinkTime;
+    private final long durationMillis;
+    private final HTTPRequestFilter filter;
+
+    private final AtomicLong requests, errors;
+    private volatile boolean running;
+
+    public ServerLoadTest(HTTPRequestFilter filter, int port, int connections, long durationMillis, int thinkTime)
+    {
+        this.filter = filter;
+        this.port = port;
+        this.connections = connections;
+        this.durationMillis = durationMillis;
+        this.thinkTime = thinkTime;
+
+        requests = new AtomicLong();
+        errors = new AtomicLong();
+    }
+
+    class Client implements Runnable
+    {
+        private final byte[] request = Utils.getAsciiBytes("GET /test HTTP/1.1\r\nHost: localhost\r\nUser-Agent: ServerLoadTest\r\n\r\n");
+
+        public void run()
+        {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+            {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(30000);
+
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                byte[] lineBuffer = new byte[HTTPRequestHeaders.DEFAULT_HEADER_LINE_LENGTH];
+
+                while (running)
+                {
+                    out.write(request);
+                    out.flush();
+
+                    long contentLength = -1;
+                    while (true)
+                    {
+                        int len = HTTPRequestHeaders.readLine(in, lineBuffer);
+                        if (len <= 2)
+                            break;
+                        String line = HTTPRequestHeaders.getCRLFTerminatedLineAsString(lineBuffer, len);
+                        if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                            contentLength = Long.parseLong(line.substring(15).trim());
+                    }
+
+                    for (long i=0; i<contentLength; i++)
+                        if (in.read() < 0)
+                            throw new EOFException();
+                    requests.incrementAndGet();
+
+                    if (thinkTime > 0)
+                        Thread.sleep(thinkTime);
+                }
+            }
+            catch (Throwable e)
+            {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    public String run(String modeName, boolean nioMode, boolean virtualThreads) throws Exception
+    {
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount();
+
+        HTTPServer server = new HTTPServer(filter, null);
+        server.setNIOMode(nioMode);
+        server.setVirtualThreads(virtualThreads);
+        server.listenOn(port, false, InetAddress.getLoopbackAddress());
+
+        requests.set(0);
+        errors.set(0);
+        running = true;
+
+        ThreadFactory clientThreads = Server.virtualThreadsSupported() ? Server.createVirtualThreadFactory("Load Test Client ") : Executors.defaultThreadFactory();
+        Thread[] clients = new Thread[connections];
+        for (int i=0; i<clients.length; i++)
+        {
+            clients[i] = clientThreads.newThread(new Client());
+            clients[i].start();
+        }
+
+        long start = System.currentTimeMillis();
+        long peakHeap = 0;
+        int peakThreads = 0;
+        while (System.currentTimeMillis() - start < durationMillis)
+        {
+            Thread.sleep(250);
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed() - heapBefore);
+            peakThreads = Math.max(peakThreads, threads.getThreadCount() - threadsBefore);
+        }
+
+        running = false;
+        long elapsed = System.currentTimeMillis() - start;
+        long completed = requests.get();
+        for (int i=0; i<clients.length; i++)
+            clients[i].join(10000);
+        server.close();
+
+        return String.format("%-10s %10d requests %10.0f req/s %8d errors %8d KB peak heap %6d peak platform threads", modeName, completed, completed*1000.0/elapsed, errors.get(), peakHeap/1024, peakThreads);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        int port = Args.getInt("port", 18080);
+        int connections = Args.getInt("connections", 1000);
+        int seconds = Args.getInt("seconds", 10);
+        int thinkTime = Args.getInt("thinkTime", 10);
+        int bodySize = Args.getInt("bodySize", 1024);
+
+        int jsWork = Args.getInt("jsWork", 0);
+        int jsInstances = Args.getInt("jsInstances", JSRequestFilter.DEFAULT_MAX_INSTANCES);
+
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        HTTPRequestFilter filter = new StaticDataFilter("LoadTestData", "/test", body, 0, "text/plain", null);
+        if (jsWork > 0)
+        {
+            String js = "var body = new java.lang.String(new Array("+(bodySize+1)+").join('x'));\n"+
+                "function loadTest(request, response, state) { var x = 0; for (var i=0; i<"+jsWork+"; i++) x += Math.sqrt(i); response.sendHTML(body); return true; }";
+            filter = JSRequestFilter.createJSFilter("loadTest", js, jsInstances);
+        }
+
+        ServerLoadTest test = new ServerLoadTest(filter, port, connections, seconds*1000L, thinkTime);
+        System.out.println("Load test with "+connections+" keep-alive connections, "+thinkTime+"ms think time, "+bodySize+" byte responses for "+seconds+"s per mode");
+        if (jsWork > 0)
+            System.out.println("Generated by JS with "+jsWork+" loop iterations per request and up to "+jsInstances+" script instances");
+
+        System.out.println(test.run("platform", false, false));
+        System.out.println(test.run("nio", true, false));
+        if (Server.virtualThreadsSupported())
+            System.out.println(test.run("virtual", false, true));
+        else
+            System.out.println("Virtual threads not supported by this JVM ("+System.getProperty("java.version")+") - skipped");
+
+        System.exit(0);
+    }
+}
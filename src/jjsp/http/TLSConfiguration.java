@@ -0,0 +1,348 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+
+/**
+   The TLS settings for secure server ports: key store, protocols, cipher suites and the server session cache, which lets returning
+   clients resume a previous session (by session ID, ticket or TLS 1.3 pre-shared key) rather than repeat the full handshake.
+
+   Handshakes are performed eagerly on the connection thread and counted as full, resumed or failed, with the time spent in each,
+   so that the cost of TLS and the effectiveness of the session cache can be monitored.
+   The SSLContext is created on first use, after which the configuration can no longer be changed.
+ */
+public class TLSConfiguration
+{
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20000;
+    public static final int DEFAULT_SESSION_TIMEOUT = 24*60*60; //In Seconds
+
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private String keyStorePath, keyStorePassword, keyPassword, keyStoreType;
+    private KeyStore keyStore;
+    private String[] protocols, cipherSuites;
+    private int sessionCacheSize, sessionTimeout;
+    private Boolean sessionTickets;
+
+    private SSLContext context;
+    private long keyStoreModified;
+
+    private final AtomicLong fullHandshakes, resumedHandshakes, failedHandshakes, fullHandshakeNanos, resumedHandshakeNanos;
+
+    public TLSConfiguration()
+    {
+        keyStorePath = System.getProperty("javax.net.ssl.keyStore");
+        keyStorePassword = System.getProperty("javax.net.ssl.keyStorePassword");
+        keyStoreType = System.getProperty("javax.net.ssl.keyStoreType", KeyStore.getDefaultType());
+        keyPassword = null;
+        keyStore = null;
+        protocols = null;
+        cipherSuites = null;
+        sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+        sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+        sessionTickets = null;
+        context = null;
+        keyStoreModified = 0;
+
+        fullHandshakes = new AtomicLong();
+        resumedHandshakes = new AtomicLong();
+        failedHandshakes = new AtomicLong();
+        fullHandshakeNanos = new AtomicLong();
+        resumedHandshakeNanos = new AtomicLong();
+    }
+
+    public TLSConfiguration(String keyStorePath, String keyStorePassword)
+    {
+        this();
+        setKeyStore(keyStorePath, keyStorePassword);
+    }
+
+    private void checkNotInitialised()
+    {
+        if (context != null)
+            throw new IllegalStateException("TLS configuration already in use");
+    }
+
+    /** Sets the key store file (JKS or PKCS12, detected by the JVM) holding the server certificate and private key. The default is the javax.net.ssl.keyStore system property. */
+    public synchronized void setKeyStore(String path, String password)
+    {
+        checkNotInitialised();
+        keyStorePath = path;
+        keyStorePassword = password;
+        keyStore = null;
+    }
+
+    /** Uses an already loaded key store, with the given password for its private keys. */
+    public synchronized void setKeyStore(KeyStore keyStore, String keyPassword)
+    {
+        checkNotInitialised();
+        this.keyStore = keyStore;
+        this.keyPassword = keyPassword;
+        keyStorePath = null;
+    }
+
+    public synchronized void setKeyStoreType(String type)
+    {
+        checkNotInitialised();
+        keyStoreType = type;
+    }
+
+    /** Sets the password of the private key, if it differs from the key store password. */
+    public synchronized void setKeyPassword(String password)
+    {
+        checkNotInitialised();
+        keyPassword = password;
+    }
+
+    /** Restricts the enabled protocols (for example "TLSv1.3", "TLSv1.2"), or null for the JVM defaults. */
+    public synchronized void setProtocols(String[] protocols)
+    {
+        checkNotInitialised();
+        this.protocols = (protocols == null) ? null : protocols.clone();
+    }
+
+    public synchronized String[] getProtocols()
+    {
+        return (protocols == null) ? null : protocols.clone();
+    }
+
+    /** Restricts the enabled cipher suites, in order of preference, or null for the JVM defaults. */
+    public synchronized void setCipherSuites(String[] suites)
+    {
+        checkNotInitialised();
+        cipherSuites = (suites == null) ? null : suites.clone();
+    }
+
+    public synchronized String[] getCipherSuites()
+    {
+        return (cipherSuites == null) ? null : cipherSuites.clone();
+    }
+
+    /** Sets the maximum number of sessions held for resumption; zero means no limit. */
+    public synchronized void setSessionCacheSize(int size)
+    {
+        checkNotInitialised();
+        sessionCacheSize = Math.max(0, size);
+    }
+
+    public synchronized int getSessionCacheSize()
+    {
+        return sessionCacheSize;
+    }
+
+    /** Sets how long, in seconds, a session may be resumed after it was created; zero means no limit. */
+    public synchronized void setSessionTimeout(int seconds)
+    {
+        checkNotInitialised();
+        sessionTimeout = Math.max(0, seconds);
+    }
+
+    public synchronized int getSessionTimeout()
+    {
+        return sessionTimeout;
+    }
+
+    /**
+        Sets whether stateless session tickets are issued, so that sessions can be resumed without being held in the server cache.
+        The JVM reads this setting (the jdk.tls.server.enableSessionTicketExtension property) once, so it only takes effect if set before the first TLS connection in the process.
+    */
+    public synchronized void setSessionTickets(boolean value)
+    {
+        checkNotInitialised();
+        sessionTickets = Boolean.valueOf(value);
+    }
+
+    public synchronized SSLContext getSSLContext() throws IOException
+    {
+        if (context != null)
+            return context;
+
+        try
+        {
+            if (sessionTickets != null)
+                System.setProperty(SESSION_TICKETS_PROPERTY, sessionTickets.toString());
+
+            KeyStore ks = keyStore;
+            String password = keyPassword;
+            if (ks == null)
+            {
+                if (keyStorePath == null)
+                    throw new IOException("No TLS key store configured");
+
+                char[] storePassword = (keyStorePassword == null) ? null : keyStorePassword.toCharArray();
+                keyStoreModified = new File(keyStorePath).lastModified();
+                ks = KeyStore.getInstance(keyStoreType);
+                try (InputStream in = new FileInputStream(keyStorePath))
+                {
+                    ks.load(in, storePassword);
+                }
+                if (password == null)
+                    password = keyStorePassword;
+            }
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, (password == null) ? null : password.toCharArray());
+
+            SSLContext result = SSLContext.getInstance("TLS");
+            result.init(kmf.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = result.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+
+            context = result;
+            return context;
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Failed to initialise TLS: "+e, e);
+        }
+    }
+
+    private synchronized Object[] getSettings()
+    {
+        List protocolList = (protocols == null) ? null : Arrays.asList(protocols);
+        List suiteList = (cipherSuites == null) ? null : Arrays.asList(cipherSuites);
+        return new Object[]{keyStorePath, keyStorePassword, keyPassword, keyStoreType, keyStore, protocolList, suiteList, Integer.valueOf(sessionCacheSize), Integer.valueOf(sessionTimeout), sessionTickets};
+    }
+
+    /** Returns true if the key store file has been modified since it was loaded into the SSLContext. */
+    public synchronized boolean keyStoreChanged()
+    {
+        return (context != null) && (keyStorePath != null) && (new File(keyStorePath).lastModified() != keyStoreModified);
+    }
+
+    /** 
+        Returns true if the other configuration has the same key store, protocols, cipher suites and session settings, and neither key store file
+        has changed since it was loaded, so that a server socket created from one can be kept in place of the other.
+    */
+    public boolean hasSameSettings(TLSConfiguration other)
+    {
+        if (other == this)
+            return true;
+        if (other == null)
+            return false;
+        return Arrays.equals(getSettings(), other.getSettings()) && !keyStoreChanged() && !other.keyStoreChanged();
+    }
+
+    public SSLServerSocketFactory getServerSocketFactory() throws IOException
+    {
+        return getSSLContext().getServerSocketFactory();
+    }
+
+    /** Applies the protocol and cipher suite restrictions to a newly created server socket. */
+    public synchronized void configureServerSocket(SSLServerSocket ssocket) throws IOException
+    {
+        try
+        {
+            if (protocols != null)
+                ssocket.setEnabledProtocols(protocols);
+            if (cipherSuites != null)
+            {
+                SSLParameters params = ssocket.getSSLParameters();
+                params.setCipherSuites(cipherSuites);
+                params.setUseCipherSuitesOrder(true);
+                ssocket.setSSLParameters(params);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Invalid TLS configuration: "+e.getMessage(), e);
+        }
+    }
+
+    /** Performs the handshake on an accepted socket, recording whether it resumed an earlier session and how long it took. */
+    public void handshake(SSLSocket socket) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try
+        {
+            socket.startHandshake();
+        }
+        catch (IOException e)
+        {
+            failedHandshakes.incrementAndGet();
+            throw e;
+        }
+
+        long elapsed = System.nanoTime() - startNanos;
+        if (socket.getSession().getCreationTime() < start) //A resumed session keeps the creation time of the handshake which established it
+        {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(elapsed);
+        }
+        else
+        {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeNanos.addAndGet(elapsed);
+        }
+    }
+
+    public long getFullHandshakes()
+    {
+        return fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes()
+    {
+        return resumedHandshakes.get();
+    }
+
+    public long getFailedHandshakes()
+    {
+        return failedHandshakes.get();
+    }
+
+    /** Returns the fraction of successful handshakes which resumed a session. */
+    public double getResumptionRate()
+    {
+        long resumed = resumedHandshakes.get();
+        long total = resumed + fullHandshakes.get();
+        return (total == 0) ? 0 : ((double) resumed)/total;
+    }
+
+    /** Returns the total time, in milliseconds, spent in full handshakes. */
+    public long getFullHandshakeTime()
+    {
+        return fullHandshakeNanos.get()/1000000;
+    }
+
+    /** Returns the total time, in milliseconds, spent in resumed handshakes. */
+    public long getResumedHandshakeTime()
+    {
+        return resumedHandshakeNanos.get()/1000000;
+    }
+
+    public String toString()
+    {
+        long full = getFullHandshakes(), resumed = getResumedHandshakes();
+        String fullAvg = (full == 0) ? "-" : String.format("%.2f", fullHandshakeNanos.get()/1e6/full);
+        String resumedAvg = (resumed == 0) ? "-" : String.format("%.2f", resumedHandshakeNanos.get()/1e6/resumed);
+        return "TLSConfiguration[handshakes full "+full+" (avg "+fullAvg+"ms), resumed "+resumed+" (avg "+resumedAvg+"ms), failed "+getFailedHandshakes()+", session cache "+sessionCacheSize+" timeout "+sessionTimeout+"s]";
+    }
+}
@@ -72,7 +72,7 @@ public class ContentTypeFilter extends AbstractRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(filterName, chain, state);
         String path = request.getHeaders().getPath(); 
 
         try
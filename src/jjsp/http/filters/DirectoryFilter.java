@@ -21,6 +21,7 @@ import java.io.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import jjsp.http.*;
 import jjsp.util.*;
@@ -29,15 +30,22 @@ public class DirectoryFilter extends AbstractRequestFilter
 {
     public static final int CACHE_SIZE_LIMIT = 8*1024;
     public static final int CACHEABLE_DATA_LIMIT = 8*1024*1024;
+    public static final long DEFAULT_CACHE_BYTES = 128L*1024*1024;
+    public static final long STALE_CHECK_INTERVAL = 1000;
+    public static final int DATA_SOURCE_OVERHEAD = 256;
+    public static final int COPY_BUFFER_SIZE = 32*1024;
+    public static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final ConcurrentLinkedQueue bufferPool = new ConcurrentLinkedQueue();
+    private static final Semaphore pooledBuffers = new Semaphore(MAX_POOLED_BUFFERS);
 
     protected File rootDirectory;
     protected boolean useCache;
-    protected LinkedHashMap cache;
+    protected LRUCache cache;
     protected int cacheTime;
     protected String pathPrefix;
-    
-    private volatile int cacheSize = 0;
-    private volatile long lastFlush = 0;
+
+    private final ChangeListener changeListener = new ChangeListener();
 
     public DirectoryFilter(File directory, HTTPRequestFilter filterChain) throws IOException
     {
@@ -56,7 +64,7 @@ public class DirectoryFilter extends AbstractRequestFilter
         rootDirectory = directory;
         cacheTime = 3600;
         useCache = false;
-        cache = new LinkedHashMap(1024, 0.7f, true);
+        setCacheLimit(DEFAULT_CACHE_BYTES);
         setPathPrefix(pathPrefix);
     }
 
@@ -70,9 +78,59 @@ public class DirectoryFilter extends AbstractRequestFilter
             pathPrefix = prefix;
     }
 
+    /** When caching file content the filter also watches the directory tree (see FileWatcher) and drops cache entries as soon as their files change. */
     public void setUseCache(boolean value)
     {
+        if (value != useCache)
+            cache.invalidateAll();
         useCache = value;
+
+        try
+        {
+            if (useCache)
+                FileWatcher.getShared().watch(rootDirectory, changeListener);
+            else
+                FileWatcher.getShared().unwatch(rootDirectory, changeListener);
+        }
+        catch (IOException e) 
+        {
+            System.out.println("WARNING: Unable to watch "+rootDirectory+" for changes - cached content will be revalidated every "+STALE_CHECK_INTERVAL+"ms  "+e);
+        }
+    }
+
+    class ChangeListener implements FileWatcher.Listener
+    {
+        public void fileChanged(File root, File changed)
+        {
+            if (changed.getName().endsWith(".gz")) // A precompressed variant of a file may have been created or changed
+                fileChanged(root, new File(changed.getPath().substring(0, changed.getPath().length()-3)));
+
+            java.nio.file.Path changedPath = changed.toPath().toAbsolutePath().normalize();
+            cache.invalidateIf((key) -> new File(rootDirectory, (String) key).toPath().toAbsolutePath().normalize().startsWith(changedPath));
+        }
+
+        public void changesLost(File root)
+        {
+            cache.invalidateAll();
+        }
+    }
+
+    protected void closeFilter() throws Exception 
+    {
+        if (useCache)
+            FileWatcher.getShared().unwatch(rootDirectory, changeListener);
+    }
+
+    /** Replaces the data source cache with an empty one holding at most CACHE_SIZE_LIMIT entries and the given total number of bytes of file content. */
+    public void setCacheLimit(long maxBytes)
+    {
+        cache = new LRUCache(CACHE_SIZE_LIMIT, maxBytes, (ds) -> ((DataSource) ds).memorySize());
+        cache.setRemovalListener((path, ds) -> ((DataSource) ds).dispose());
+    }
+
+    public LRUCache getCache()
+    {
+        return cache;
     }
 
     /** Controls the value of the "Cache" header in the HTTP response. The client will cache the response for this many seconds, or if cacheTimeSeconds is -1 then clients will not cache at all. By default the cache time is 3600 seconds (1 hour)*/
@@ -83,6 +141,8 @@ public class DirectoryFilter extends AbstractRequestFilter
 
     public static abstract class DataSource
     {
+        private volatile long validatedAt = System.currentTimeMillis();
+
         public abstract long length();
 
         public abstract String getETag();
@@ -103,6 +163,39 @@ public class DirectoryFilter extends AbstractRequestFilter
 
         public abstract void streamTo(long startPos, long endPos, OutputStream out) throws IOException;
 
+        /** The approximate heap used by this source, used to bound the cache. */
+        public long memorySize()
+        {
+            return DATA_SOURCE_OVERHEAD;
+        }
+
+        /** Returns true if the underlying content has changed since this source was created, checking at most once every STALE_CHECK_INTERVAL ms. */
+        public boolean isStale()
+        {
+            long now = System.currentTimeMillis();
+            if (now - validatedAt < STALE_CHECK_INTERVAL)
+                return false;
+            validatedAt = now;
+            return contentChanged();
+        }
+
+        protected boolean contentChanged()
+        {
+            return false;
+        }
+
+        /** Returns a source for this content in the given content coding (gzip or deflate), or null if there is none. */
+        public DataSource getEncodedVariant(String encoding)
+        {
+            return null;
+        }
+
+        /** True if this source has encoded variants, so that responses vary on Accept-Encoding. */
+        public boolean hasEncodedVariants()
+        {
+            return false;
+        }
+
         public void dispose() {}
     }
 
@@ -113,10 +206,22 @@ public class DirectoryFilter extends AbstractRequestFilter
         long created;
 
         public ByteArrayDataSource(byte[] data)
+        {
+            this(data, System.currentTimeMillis()/1000*1000, null);
+        }
+
+        protected ByteArrayDataSource(byte[] data, long created, String eTag)
         {
             this.data = data;
-            created = System.currentTimeMillis()/1000*1000;
-            eTag = "ET"+created;
+            this.created = created;
+            if (eTag == null)
+                eTag = "ET"+created;
+            this.eTag = eTag;
+        }
+
+        public long memorySize()
+        {
+            return DATA_SOURCE_OVERHEAD + data.length;
         }
 
         public long length()
@@ -141,13 +246,105 @@ public class DirectoryFilter extends AbstractRequestFilter
         }
     }
 
-    public class FileSource extends DataSource
+    /** 
+        The content of a file held in memory, which becomes stale when the file is modified or removed. 
+        Compressible files also hold gzip and deflate variants, compressed once when the file is loaded.
+    */
+    public static class CachedFileSource extends ByteArrayDataSource
     {
         final File f;
+        final ByteArrayDataSource gzip, deflate;
+
+        public CachedFileSource(File f) throws IOException
+        {
+            this(f, f.lastModified(), ContentVariants.isCompressible(HTTPHeaders.guessMIMEType(f.getName())));
+        }
+
+        private CachedFileSource(File f, long lastModified, boolean compressible) throws IOException
+        {
+            super(Utils.load(f), lastModified, "LF"+lastModified);
+            this.f = f;
+
+            ContentVariants variants = new ContentVariants(data);
+            if (compressible && (variants.getEncoded(ContentVariants.GZIP) != null))
+            {
+                gzip = new ByteArrayDataSource(variants.getEncoded(ContentVariants.GZIP), lastModified, eTag+"-gzip");
+                deflate = new ByteArrayDataSource(variants.getEncoded(ContentVariants.DEFLATE), lastModified, eTag+"-deflate");
+            }
+            else
+                gzip = deflate = null;
+        }
+
+        protected boolean contentChanged()
+        {
+            return (f.lastModified() != created) || (f.length() != data.length);
+        }
+
+        public DataSource getEncodedVariant(String encoding)
+        {
+            if (ContentVariants.GZIP.equals(encoding))
+                return gzip;
+            if (ContentVariants.DEFLATE.equals(encoding))
+                return deflate;
+            return null;
+        }
+
+        public boolean hasEncodedVariants()
+        {
+            return gzip != null;
+        }
+
+        public long memorySize()
+        {
+            long result = super.memorySize();
+            if (gzip != null)
+                result += gzip.data.length + deflate.data.length;
+            return result;
+        }
+    }
+
+    /** 
+        A file streamed from disk. A sibling file with a .gz suffix, no older than the file itself, is served as its gzip variant.
+        The content is treated as changed when either file is modified, removed or (for the .gz file) created.
+    */
+    public class FileSource extends DataSource
+    {
+        final File f, gzFile;
+        final FileSource gzip;
+        final long lastModified, gzLastModified;
 
         public FileSource(File f) throws IOException
         {
             this.f = f;
+            lastModified = f.lastModified();
+
+            gzFile = new File(f.getPath()+".gz");
+            gzLastModified = gzFile.isFile() ? gzFile.lastModified() : 0;
+            if ((gzLastModified > 0) && (gzLastModified >= lastModified) && ContentVariants.isCompressible(HTTPHeaders.guessMIMEType(f.getName())))
+                gzip = new EncodedFileSource(gzFile, ContentVariants.GZIP);
+            else
+                gzip = null;
+        }
+
+        FileSource(File f, FileSource gzip)
+        {
+            this.f = f;
+            this.gzip = gzip;
+            lastModified = f.lastModified();
+            gzFile = null;
+            gzLastModified = 0;
+        }
+
+        public DataSource getEncodedVariant(String encoding)
+        {
+            if (ContentVariants.GZIP.equals(encoding))
+                return gzip;
+            return null;
+        }
+
+        public boolean hasEncodedVariants()
+        {
+            return gzip != null;
         }
 
         public long getLastModified()
@@ -165,16 +362,30 @@ public class DirectoryFilter extends AbstractRequestFilter
             return f.length();
         }
 
+        protected boolean contentChanged()
+        {
+            if (!f.isFile() || (f.lastModified() != lastModified))
+                return true;
+            if (gzFile == null)
+                return false;
+
+            long gzNow = gzFile.isFile() ? gzFile.lastModified() : 0;
+            return gzNow != gzLastModified;
+        }
+
         public void streamTo(long startPos, long endPos, OutputStream out) throws IOException
         {
             checkBounds(startPos, endPos);
             
             RandomAccessFile raf = null;
+            byte[] buffer = null;
             try
             {
                 raf = new RandomAccessFile(f, "r");
+                if ((out instanceof HTTPOutputStream) && ((HTTPOutputStream) out).transferFrom(raf.getChannel(), startPos, endPos - startPos))
+                    return;
             
-                byte[] buffer = new byte[32*1024];
+                buffer = takeBuffer();
                 raf.seek(startPos);
                 
                 while (true)
@@ -189,6 +400,7 @@ public class DirectoryFilter extends AbstractRequestFilter
             }
             finally
             {
+                returnBuffer(buffer);
                 try
                 {
                     raf.close();
@@ -198,6 +410,38 @@ public class DirectoryFilter extends AbstractRequestFilter
         }
     }
 
+    class EncodedFileSource extends FileSource
+    {
+        final String encoding;
+
+        EncodedFileSource(File f, String encoding)
+        {
+            super(f, null);
+            this.encoding = encoding;
+        }
+
+        public String getETag()
+        {
+            return super.getETag()+"-"+encoding;
+        }
+    }
+
+    /** Copy buffers are pooled rather than allocated per request, for responses which cannot be sent with HTTPOutputStream.transferFrom (TLS, chunked or wrapped output streams). */
+    protected static byte[] takeBuffer()
+    {
+        byte[] buffer = (byte[]) bufferPool.poll();
+        if (buffer == null)
+            return new byte[COPY_BUFFER_SIZE];
+        pooledBuffers.release();
+        return buffer;
+    }
+
+    protected static void returnBuffer(byte[] buffer)
+    {
+        if ((buffer != null) && pooledBuffers.tryAcquire())
+            bufferPool.offer(buffer);
+    }
+
     protected boolean accessPermitted(File f)
     {
         boolean isChild = false;
@@ -207,39 +451,38 @@ public class DirectoryFilter extends AbstractRequestFilter
         return false;
     }
 
+    /** Returns the (possibly cached) data source for the path, or null if there is no such file. Concurrent requests for an uncached file share a single load. */
     protected DataSource getDataSource(String path) throws IOException
     {
-        synchronized (cache)
+        try
         {
-            DataSource ds = (DataSource) cache.get(path);
-            if (ds != null)
-                return ds;
-
-            File f = new File(rootDirectory, path);
-            if (!f.exists() || !f.isFile() || !accessPermitted(f))
-                return null;
-
-            if (!useCache || (f.length() > CACHEABLE_DATA_LIMIT))
-                ds = new FileSource(f);
-            else
-                ds = new ByteArrayDataSource(Utils.load(f));
-
-            if (cache.size() > CACHE_SIZE_LIMIT)
+            DataSource ds = (DataSource) cache.get(path, (key) -> loadDataSource((String) key));
+            if ((ds != null) && ds.isStale())
             {
-                Iterator itt = cache.keySet().iterator();
-                itt.next();
-                for (int i=0; itt.hasNext() && (i<100); i++)
-                {
-                    DataSource dss = (DataSource) itt.next();
-                    dss.dispose();
-                    itt.remove();
-                }
-                lastFlush = 0;
+                cache.invalidate(path, ds);
+                ds = (DataSource) cache.get(path, (key) -> loadDataSource((String) key));
             }
-
-            cache.put(path, ds);             
             return ds;
         }
+        catch (IOException|RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    protected DataSource loadDataSource(String path) throws IOException
+    {
+        File f = new File(rootDirectory, path);
+        if (!f.exists() || !f.isFile() || !accessPermitted(f))
+            return null;
+
+        if (!useCache || (f.length() > CACHEABLE_DATA_LIMIT))
+            return new FileSource(f);
+        return new CachedFileSource(f);
     }
 
     public static String formatLength(long length)
@@ -372,6 +615,24 @@ public class DirectoryFilter extends AbstractRequestFilter
         return bout.toByteArray();
     }
 
+    /** Returns the variant of the source to send for the request's Accept-Encoding, setting the Content-Encoding and Vary headers. Range requests are always served from the identity content. */
+    protected DataSource selectEncodedVariant(DataSource ds, HTTPRequestHeaders reqHeaders, HTTPResponseHeaders respHeaders)
+    {
+        if (!ds.hasEncodedVariants())
+            return ds;
+        respHeaders.addVary(HTTPHeaders.ACCEPT_ENCODING);
+        if (reqHeaders.requestsPartialContent())
+            return ds;
+
+        String encoding = reqHeaders.selectContentEncoding();
+        DataSource variant = (encoding == null) ? null : ds.getEncodedVariant(encoding);
+        if (variant == null)
+            return ds;
+
+        respHeaders.setContentEncoding(encoding);
+        return variant;
+    }
+
     protected String handleHeadRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
     {
         HTTPRequestHeaders reqHeaders = request.getHeaders();
@@ -385,6 +646,7 @@ public class DirectoryFilter extends AbstractRequestFilter
         DataSource ds = getDataSource(pathString);
         if (ds != null)
         {
+            ds = selectEncodedVariant(ds, reqHeaders, respHeaders);
             long modified = ds.getLastModified();
             long ifModifiedSince = reqHeaders.getIfModifiedSinceTime();
             long[] limits = reqHeaders.extractByteRanges();
@@ -445,6 +707,7 @@ public class DirectoryFilter extends AbstractRequestFilter
 
         if (ds != null)
         {
+            ds = selectEncodedVariant(ds, reqHeaders, respHeaders);
             long modified = ds.getLastModified();
             long ifModifiedSince = reqHeaders.getIfModifiedSinceTime();
             long[] limits = reqHeaders.extractByteRanges();
@@ -62,7 +62,7 @@ public class ErrorFilter extends AbstractRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(filterName, chain, state);
 
         try
         {
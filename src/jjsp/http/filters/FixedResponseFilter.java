@@ -21,6 +21,7 @@ import java.io.*;
 import java.util.*;
 import java.util.function.*;
 
+import jjsp.util.*;
 import jjsp.http.*;
 
 import static jjsp.http.HTTPResponseHeaders.*;
@@ -30,6 +31,8 @@ public class FixedResponseFilter extends AbstractRequestFilter
     protected String contentType;
     protected Function<HTTPResponseHeaders, String> configurator;
 
+    private volatile Object[] lastEncoded;
+
     public FixedResponseFilter(String name, HTTPRequestFilter chain, Function<HTTPResponseHeaders, String> configurator)
     {
         super(name, chain);
@@ -60,10 +63,22 @@ public class FixedResponseFilter extends AbstractRequestFilter
             response.sendHeaders();
         }
         else
-            response.sendContent(htmlContents);
+            response.sendContent(encodeContent(htmlContents));
 
         return true;
     }
+
+    /** Returns the ASCII bytes of the content, reusing the previous encoding when the configurator returns the same content again. */
+    protected byte[] encodeContent(String content)
+    {
+        Object[] cached = lastEncoded;
+        if ((cached != null) && (cached[0] == content))
+            return (byte[]) cached[1];
+
+        byte[] bytes = Utils.getAsciiBytes(content);
+        lastEncoded = new Object[]{content, bytes};
+        return bytes;
+    }
     
     public static FixedResponseFilter createPageNotFoundFilter(String name)
     {
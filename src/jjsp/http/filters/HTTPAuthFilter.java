@@ -121,7 +121,7 @@ public class HTTPAuthFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
 
         try
         {
@@ -49,7 +49,7 @@ public class HTTPMethodFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
         HTTPRequestHeaders reqHeaders = request.getHeaders();
 
         if (reqHeaders.isGet())
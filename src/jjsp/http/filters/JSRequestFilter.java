@@ -19,26 +19,127 @@ package jjsp.http.filters;
 
 import java.io.*;
 import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.script.*;
 
+import org.openjdk.nashorn.api.scripting.*;
+
 import jjsp.http.*;
 import jjsp.util.*;
 
+/**
+   Calls a named Javascript function to handle each request.
+
+   Given a script engine, the function is invoked on it directly, so concurrent requests share (and must not mutate) its global scope.
+   Given a compiled script, the filter instead keeps a pool of instances, each being the script evaluated into its own global scope,
+   and each request takes an instance for itself, so that requests run the function concurrently without any locking in the script.
+   Top level script variables are therefore per instance, not shared between requests. Instances are created as they are needed,
+   up to the maximum, beyond which requests wait for one to be returned.
+ */
 public class JSRequestFilter extends AbstractRequestFilter
 {
+    public static final int DEFAULT_MAX_INSTANCES = Math.max(4, 2*Runtime.getRuntime().availableProcessors());
+
+    private static final ScriptEngineManager engineManager = new ScriptEngineManager();
+    private static final LRUCache compiledScripts = new LRUCache(128, Long.MAX_VALUE, (value) -> 0);
+    private static ScriptEngine compiler;
+
     private Invocable invocable;
 
+    private final CompiledScript script;
+    private final ArrayDeque idle;
+    private final Semaphore permits;
+    private final int maxInstances;
+    private final AtomicLong instancesCreated;
+
     public JSRequestFilter(String jsFunctionName, ScriptEngine engine, HTTPRequestFilter filterChain) throws Exception
     {
         super(jsFunctionName, filterChain);  
         this.invocable = (Invocable) engine;
+
+        script = null;
+        idle = null;
+        permits = null;
+        maxInstances = 1;
+        instancesCreated = new AtomicLong();
+    }
+
+    public JSRequestFilter(String jsFunctionName, CompiledScript script, int maxInstances, HTTPRequestFilter filterChain) throws Exception
+    {
+        super(jsFunctionName, filterChain);
+        this.script = script;
+        this.maxInstances = Math.max(1, maxInstances);
+        invocable = null;
+
+        idle = new ArrayDeque();
+        permits = new Semaphore(this.maxInstances);
+        instancesCreated = new AtomicLong();
+
+        idle.addFirst(createInstance()); // Fail now if the script does not evaluate or define the function
+    }
+
+    private JSObject createInstance() throws Exception
+    {
+        ScriptEngine engine = script.getEngine();
+        ScriptContext context = new SimpleScriptContext();
+        context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+        script.eval(context);
+
+        Object fn = context.getAttribute(getName(), ScriptContext.ENGINE_SCOPE);
+        if (!(fn instanceof JSObject) || !((JSObject) fn).isFunction())
+            throw new IllegalStateException("JS function '"+getName()+"' not defined by script");
+
+        instancesCreated.incrementAndGet();
+        return (JSObject) fn;
+    }
+
+    private JSObject acquire() throws Exception
+    {
+        permits.acquire();
+        try
+        {
+            synchronized (idle)
+            {
+                JSObject fn = (JSObject) idle.pollFirst();
+                if (fn != null)
+                    return fn;
+            }
+            return createInstance();
+        }
+        catch (Throwable e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(JSObject fn)
+    {
+        synchronized (idle)
+        {
+            idle.addFirst(fn);
+        }
+        permits.release();
     }
 
     protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
     {
         try 
         {
-            return ((Boolean) invocable.invokeFunction(getName(), request, response, state)).booleanValue();
+            if (script == null)
+                return ((Boolean) invocable.invokeFunction(getName(), request, response, state)).booleanValue();
+
+            JSObject fn = acquire();
+            try
+            {
+                return ((Boolean) fn.call(null, request, response, state)).booleanValue();
+            }
+            finally
+            {
+                release(fn);
+            }
         } 
         catch (Throwable e) 
         {
@@ -46,11 +147,53 @@ public class JSRequestFilter extends AbstractRequestFilter
         }
     }
 
+    public int getMaxInstances()
+    {
+        return maxInstances;
+    }
+
+    /** Returns the number of script instances (global scopes) created so far. */
+    public long getInstancesCreated()
+    {
+        return instancesCreated.get();
+    }
+
+    public int getIdleInstances()
+    {
+        if (idle == null)
+            return 0;
+        synchronized (idle)
+        {
+            return idle.size();
+        }
+    }
+
+    /** Compiles the source, or returns the script already compiled from the same source, so that filters created from it share compiled code. */
+    public static CompiledScript compile(String jsSource) throws Exception
+    {
+        return (CompiledScript) compiledScripts.get(jsSource, (key) -> 
+        {
+            synchronized (engineManager)
+            {
+                if (compiler == null)
+                    compiler = engineManager.getEngineByName("nashorn");
+                return ((Compilable) compiler).compile((String) key);
+            }
+        });
+    }
+
+    public static LRUCache getCompiledScriptCache()
+    {
+        return compiledScripts;
+    }
+
     public static JSRequestFilter createJSFilter(String jsFunctionName, String jsSource) throws Exception
     {
-        ScriptEngineManager manager = new ScriptEngineManager();
-        ScriptEngine engine = manager.getEngineByName("nashorn");
-        engine.eval(jsSource);
-        return new JSRequestFilter(jsFunctionName, engine, null);
+        return createJSFilter(jsFunctionName, jsSource, DEFAULT_MAX_INSTANCES);
+    }
+
+    public static JSRequestFilter createJSFilter(String jsFunctionName, String jsSource, int maxInstances) throws Exception
+    {
+        return new JSRequestFilter(jsFunctionName, compile(jsSource), maxInstances, null);
     }
 }
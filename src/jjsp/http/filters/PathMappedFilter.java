@@ -23,10 +23,15 @@ import java.util.*;
 
 import jjsp.http.*;
 
+/**
+   Dispatches requests to the filter registered on the longest matching path prefix (or, if not leadingMatchOnKeys, on the exact path).
+   Paths are matched case-insensitively and may contain {name} parameter segments, whose values are set as path parameters on the request headers.
+   Registrations compile a new PathRouter which replaces the old one atomically, so requests are routed without locking.
+ */
 public class PathMappedFilter extends AbstractRequestFilter
 {
-    private String[] pathList;
-    private String defaultMimeType;
+    private volatile PathRouter router;
+    private volatile String defaultMimeType;
 
     private final boolean leadingMatchOnKeys;
     private final HashMap<String, HTTPRequestFilter> filterIndex;
@@ -52,7 +57,7 @@ public class PathMappedFilter extends AbstractRequestFilter
         this.leadingMatchOnKeys = leadingMatchOnKeys;
         
         filterIndex = new HashMap();
-        pathList = new String[0];
+        router = new PathRouter(filterIndex);
         defaultMimeType = null;
 
         if (initialFilters != null)
@@ -90,61 +95,42 @@ public class PathMappedFilter extends AbstractRequestFilter
     {
         if (!path.startsWith("/"))
             path = "/"+path;
-        path = path.toLowerCase();
+        path = PathRouter.normalise(path);
 
         if (!overwriteIfPresent && (filterIndex.get(path) != null))
             throw new IllegalStateException("Filter already registered on path "+path);
             
+        HashMap updated = new HashMap(filterIndex);
+        updated.put(path, filter);
+        router = new PathRouter(updated);
         filterIndex.put(path, filter);
-        pathList = new String[filterIndex.size()];
-        filterIndex.keySet().toArray(pathList);
-        Arrays.sort(pathList);
     }
 
     protected synchronized void closeFilter() throws Exception
     {
-        for (int i=0; i<pathList.length; i++)
-            ((HTTPRequestFilter) filterIndex.get(pathList[i])).close();
+        Iterator itt = filterIndex.values().iterator();
+        while (itt.hasNext())
+            ((HTTPRequestFilter) itt.next()).close();
     }
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
-        String url = request.getHeaders().getPath(); 
+        HTTPFilterChain myChain = HTTPFilterChain.link(filterName, chain, state);
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        String url = reqHeaders.getPath(); 
 
         try
         {
-            url = url.toLowerCase();
-
-            if (leadingMatchOnKeys)
-            {
-                for (int i=pathList.length-1; i>=0; i--)
-                {
-                    if (url.startsWith(pathList[i]))
-                    {
-                        myChain.report = pathList[i];
-                        if (defaultMimeType != null)
-                            response.getHeaders().setContentType(defaultMimeType);
-                    
-                        HTTPRequestFilter filter = (HTTPRequestFilter) filterIndex.get(pathList[i]);
-                        return filter.filterRequest(myChain, request, response, state);
-                    }
-                }
-            }
-            else
+            PathRouter r = router;
+            PathRouter.Route route = r.lookup(url, leadingMatchOnKeys, r.hasParameters() ? reqHeaders.getPathParameters() : null);
+            if (route != null)
             {
-                for (int i=pathList.length-1; i>=0; i--)
-                {
-                    if (url.equals(pathList[i]))
-                    {
-                        myChain.report = pathList[i];
-                        if (defaultMimeType != null)
-                            response.getHeaders().setContentType(defaultMimeType);
+                myChain.report = route.pattern;
+                if (defaultMimeType != null)
+                    response.getHeaders().setContentType(defaultMimeType);
                     
-                        HTTPRequestFilter filter = (HTTPRequestFilter) filterIndex.get(pathList[i]);
-                        return filter.filterRequest(myChain, request, response, state);
-                    }
-                }
+                HTTPRequestFilter filter = (HTTPRequestFilter) route.value;
+                return filter.filterRequest(myChain, request, response, state);
             }
 
             if (filterChain != null)
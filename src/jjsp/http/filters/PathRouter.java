@@ -0,0 +1,266 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+
+package jjsp.http.filters;
+
+import java.util.*;
+
+/**
+   An immutable radix trie mapping path patterns to values, compiled once and then safe to read from any number of threads without locking.
+   To change the mapping, compile a new router and swap it in.
+
+   Matching is case-insensitive: literal pattern characters are lowercased when compiled, and path characters as they are compared, so a lookup
+   allocates nothing unless the matched pattern captures parameters. A pattern segment written as {name} matches any non-empty run of characters
+   up to the next '/', and literal characters take precedence over parameters. Lookups either require the whole path to match a pattern,
+   or find the longest pattern which is a prefix of the path.
+ */
+public class PathRouter
+{
+    public static class Route
+    {
+        public final String pattern;
+        public final Object value;
+
+        Route(String pattern, Object value)
+        {
+            this.pattern = pattern;
+            this.value = value;
+        }
+
+        public String toString()
+        {
+            return pattern;
+        }
+    }
+
+    static class Node
+    {
+        final char[] label;
+        final char[] firstChars;
+        final Node[] children;
+        final String[] paramNames;
+        final Node[] paramNodes;
+        final Route route;
+
+        Node(char[] label, char[] firstChars, Node[] children, String[] paramNames, Node[] paramNodes, Route route)
+        {
+            this.label = label;
+            this.firstChars = firstChars;
+            this.children = children;
+            this.paramNames = paramNames;
+            this.paramNodes = paramNodes;
+            this.route = route;
+        }
+
+        Node child(char ch)
+        {
+            int lo = 0, hi = firstChars.length - 1;
+            while (lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                char c = firstChars[mid];
+                if (c < ch)
+                    lo = mid + 1;
+                else if (c > ch)
+                    hi = mid - 1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+    }
+
+    static class Builder
+    {
+        final TreeMap children = new TreeMap();
+        final TreeMap params = new TreeMap();
+        Route route;
+
+        Node compile(StringBuilder label)
+        {
+            //Merge chains of single child nodes into one edge label
+            Builder b = this;
+            while ((b.route == null) && b.params.isEmpty() && (b.children.size() == 1))
+            {
+                Map.Entry e = b.children.firstEntry();
+                label.append(((Character) e.getKey()).charValue());
+                b = (Builder) e.getValue();
+            }
+
+            char[] firstChars = new char[b.children.size()];
+            Node[] childNodes = new Node[firstChars.length];
+            Iterator itt = b.children.entrySet().iterator();
+            for (int i=0; itt.hasNext(); i++)
+            {
+                Map.Entry e = (Map.Entry) itt.next();
+                firstChars[i] = ((Character) e.getKey()).charValue();
+                childNodes[i] = ((Builder) e.getValue()).compile(new StringBuilder().append(firstChars[i]));
+            }
+
+            String[] paramNames = new String[b.params.size()];
+            Node[] paramNodes = new Node[paramNames.length];
+            itt = b.params.entrySet().iterator();
+            for (int i=0; itt.hasNext(); i++)
+            {
+                Map.Entry e = (Map.Entry) itt.next();
+                paramNames[i] = (String) e.getKey();
+                paramNodes[i] = ((Builder) e.getValue()).compile(new StringBuilder());
+            }
+
+            return new Node(label.toString().toCharArray(), firstChars, childNodes, paramNames, paramNodes, b.route);
+        }
+    }
+
+    private final Node root;
+    private final boolean hasParameters;
+    private final int size;
+
+    /** Compiles the patterns (the keys of the map, each starting with '/') to the corresponding values. */
+    public PathRouter(Map patterns)
+    {
+        Builder top = new Builder();
+        boolean params = false;
+
+        Iterator itt = patterns.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            String pattern = (String) e.getKey();
+
+            Builder b = top;
+            for (int i=0; i<pattern.length(); i++)
+            {
+                char ch = pattern.charAt(i);
+                if (ch == '{')
+                {
+                    int end = pattern.indexOf('}', i);
+                    if (end <= i+1)
+                        throw new IllegalArgumentException("Invalid path parameter in "+pattern);
+                    String name = pattern.substring(i+1, end);
+
+                    Builder next = (Builder) b.params.get(name);
+                    if (next == null)
+                        b.params.put(name, next = new Builder());
+                    b = next;
+                    i = end;
+                    params = true;
+                }
+                else
+                {
+                    Character key = Character.valueOf(Character.toLowerCase(ch));
+                    Builder next = (Builder) b.children.get(key);
+                    if (next == null)
+                        b.children.put(key, next = new Builder());
+                    b = next;
+                }
+            }
+            b.route = new Route(pattern, e.getValue());
+        }
+
+        root = top.compile(new StringBuilder());
+        hasParameters = params;
+        size = patterns.size();
+    }
+
+    /** Returns the pattern in the form the router matches it: literal characters lowercased, parameter names unchanged. */
+    public static String normalise(String pattern)
+    {
+        StringBuilder sb = new StringBuilder(pattern.length());
+        boolean inParam = false;
+        for (int i=0; i<pattern.length(); i++)
+        {
+            char ch = pattern.charAt(i);
+            if (ch == '{')
+                inParam = true;
+            else if (ch == '}')
+                inParam = false;
+            sb.append(inParam ? ch : Character.toLowerCase(ch));
+        }
+        return sb.toString();
+    }
+
+    public boolean hasParameters()
+    {
+        return hasParameters;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+        Finds the route for the path, matching the whole path or (if leadingMatch) the longest pattern which is a prefix of it.
+        Returns null if no pattern matches. Parameters captured by the matched pattern are put in the parameters map, if it is not null.
+    */
+    public Route lookup(String path, boolean leadingMatch, Map parameters)
+    {
+        return match(root, path, 0, leadingMatch, parameters);
+    }
+
+    private static Route match(Node node, String path, int pos, boolean leadingMatch, Map parameters)
+    {
+        int len = path.length();
+        char[] label = node.label;
+        if (len - pos < label.length)
+            return null;
+        for (int i=0; i<label.length; i++)
+        {
+            if (Character.toLowerCase(path.charAt(pos+i)) != label[i])
+                return null;
+        }
+        pos += label.length;
+
+        if (pos == len)
+            return node.route;
+
+        if (node.firstChars.length > 0)
+        {
+            Node child = node.child(Character.toLowerCase(path.charAt(pos)));
+            if (child != null)
+            {
+                Route r = match(child, path, pos, leadingMatch, parameters);
+                if (r != null)
+                    return r;
+            }
+        }
+
+        if (node.paramNodes.length > 0)
+        {
+            int end = pos;
+            while ((end < len) && (path.charAt(end) != '/'))
+                end++;
+
+            if (end > pos)
+            {
+                for (int i=0; i<node.paramNodes.length; i++)
+                {
+                    Route r = match(node.paramNodes[i], path, end, leadingMatch, parameters);
+                    if (r != null)
+                    {
+                        if (parameters != null)
+                            parameters.put(node.paramNames[i], path.substring(pos, end));
+                        return r;
+                    }
+                }
+            }
+        }
+
+        return leadingMatch ? node.route : null;
+    }
+}
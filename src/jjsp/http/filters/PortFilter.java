@@ -66,7 +66,7 @@ public class PortFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
 
         int incomingPort = request.getServerPort();
         HTTPRequestFilter filter = registeredFilters[incomingPort];
@@ -41,7 +41,7 @@ public class PredicateFilter extends AbstractRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(filterName, chain, state);
         try
         {
             if (predicate.test(request, response, state, myChain))
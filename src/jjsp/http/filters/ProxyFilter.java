@@ -3,158 +3,618 @@ package jjsp.http.filters;
 import jjsp.http.*;
 
 import java.io.*;
-import java.net.HttpCookie;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
 
-public class ProxyFilter extends AbstractRequestFilter {
+/**
+   Forwards requests to upstream HTTP servers over pooled keep-alive connections (see UpstreamPool), streaming request and response bodies
+   in both directions, so that large uploads and downloads start immediately and use a fixed amount of memory.
+   Only when an htmlEditor is given is a text/html response read whole, so that it can be edited before it is sent.
+ */
+public class ProxyFilter extends AbstractRequestFilter
+{
+    private static final Set IDEMPOTENT_METHODS = new HashSet(Arrays.asList(new String[]{"GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"}));
+    private static final Set HOP_BY_HOP_HEADERS = new HashSet(Arrays.asList(new String[]{"connection", "keep-alive", "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "trailers", "transfer-encoding", "upgrade", "content-length", "host", "expect"}));
+
     // getFullForwardPath: a lambda to create a complete url to be forwarded, from the requested proxy path
     // htmlEditor: if not null, this lambda will edit all 'text/html' content before it's returned by the proxy
     private Function getFullForwardPath, htmlEditor;
 
-    public ProxyFilter(String name, Function getFullForwardPath, Function htmlEditor, HTTPRequestFilter filterChain) {
+    private final ConcurrentHashMap pools;
+    private final UpstreamGroup group;
+    private volatile int connectTimeout, readTimeout, maxIdle;
+
+    public ProxyFilter(String name, Function getFullForwardPath, Function htmlEditor, HTTPRequestFilter filterChain)
+    {
         super(name, filterChain);
         this.getFullForwardPath = getFullForwardPath;
         this.htmlEditor = htmlEditor;
+
+        group = null;
+        pools = new ConcurrentHashMap();
+        connectTimeout = UpstreamPool.DEFAULT_CONNECT_TIMEOUT;
+        readTimeout = UpstreamPool.DEFAULT_READ_TIMEOUT;
+        maxIdle = UpstreamPool.DEFAULT_MAX_IDLE;
     }
 
-    public ProxyFilter(String name, String host, HTTPRequestFilter filterChain) {
+    public ProxyFilter(String name, String host, HTTPRequestFilter filterChain)
+    {
+        this(name, (path) -> host + path, null, filterChain);
+    }
+
+    /** Balances requests across the members of the group, retrying on another member when a connection cannot be made. */
+    public ProxyFilter(String name, UpstreamGroup group, Function htmlEditor, HTTPRequestFilter filterChain)
+    {
         super(name, filterChain);
-        this.getFullForwardPath = (path) -> host + path;
-        this.htmlEditor = null;
+        this.group = group;
+        this.htmlEditor = htmlEditor;
+        getFullForwardPath = null;
+
+        pools = new ConcurrentHashMap();
+        connectTimeout = UpstreamPool.DEFAULT_CONNECT_TIMEOUT;
+        readTimeout = UpstreamPool.DEFAULT_READ_TIMEOUT;
+        maxIdle = UpstreamPool.DEFAULT_MAX_IDLE;
+
+        UpstreamPool[] members = group.getPools();
+        for (int i=0; i<members.length; i++)
+            pools.put(members[i].getKey(), members[i]);
     }
 
-    @Override
-    protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException {
-        HTTPRequestHeaders headers = request.getHeaders();
-        String path = headers.getRequestURL();
-        if (!path.startsWith("/"))
-            path = "/"+path;
+    public ProxyFilter(String name, UpstreamGroup group, HTTPRequestFilter filterChain)
+    {
+        this(name, group, null, filterChain);
+    }
 
-        if (!headers.isGet() && !headers.isHead() && !headers.isPost())
-            return false;
-        boolean isPost = headers.isPost();
+    public UpstreamGroup getUpstreamGroup()
+    {
+        return group;
+    }
 
-        String urlString = (String) getFullForwardPath.apply(path);
-        if ( urlString == null ) // if no forward path is found, return false to continue with the filter chain
-            return false;
+    /** Sets the upstream connect timeout in milliseconds. */
+    public void setConnectTimeout(int ms)
+    {
+        connectTimeout = ms;
+        Iterator itt = pools.values().iterator();
+        while (itt.hasNext())
+            ((UpstreamPool) itt.next()).setConnectTimeout(ms);
+    }
 
-        URL url = new URL(urlString);
-        HttpURLConnection proxy = (HttpURLConnection) url.openConnection();
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /** Sets how long (in milliseconds) to wait for the upstream response, or for each read of its body. */
+    public void setReadTimeout(int ms)
+    {
+        readTimeout = ms;
+        Iterator itt = pools.values().iterator();
+        while (itt.hasNext())
+            ((UpstreamPool) itt.next()).setReadTimeout(ms);
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /** Sets the number of idle keep-alive connections kept for each upstream. */
+    public void setMaxIdleConnections(int max)
+    {
+        maxIdle = max;
+        Iterator itt = pools.values().iterator();
+        while (itt.hasNext())
+            ((UpstreamPool) itt.next()).setMaxIdle(max);
+    }
+
+    public int getMaxIdleConnections()
+    {
+        return maxIdle;
+    }
+
+    public UpstreamPool getUpstreamPool(URL url)
+    {
+        String key = UpstreamPool.getKey(url);
+        UpstreamPool pool = (UpstreamPool) pools.get(key);
+        if (pool != null)
+            return pool;
+
+        pool = new UpstreamPool(url.getProtocol(), url.getHost(), url.getPort());
+        pool.setConnectTimeout(connectTimeout);
+        pool.setReadTimeout(readTimeout);
+        pool.setMaxIdle(maxIdle);
+
+        UpstreamPool existing = (UpstreamPool) pools.putIfAbsent(key, pool);
+        return (existing != null) ? existing : pool;
+    }
+
+    public UpstreamPool[] getUpstreamPools()
+    {
+        UpstreamPool[] result = new UpstreamPool[0];
+        return (UpstreamPool[]) pools.values().toArray(result);
+    }
+
+    private static void addConnectionTokens(String value, Set result)
+    {
+        if (value == null)
+            return;
+        String[] tokens = value.split(",");
+        for (int i=0; i<tokens.length; i++)
+            result.add(tokens[i].trim().toLowerCase());
+    }
+
+    private byte[] encodeRequestHead(HTTPRequestHeaders headers, String method, URL url, UpstreamPool pool, boolean identityEncoding, long contentLength, boolean hasBody)
+    {
+        Set skip = new HashSet(HOP_BY_HOP_HEADERS);
+        addConnectionTokens(headers.getHeader(HTTPHeaders.CONNECTION, null), skip);
+        if (identityEncoding)
+            skip.add("accept-encoding");
+
+        String target = url.getFile();
+        if ((target == null) || (target.length() == 0))
+            target = "/";
+
+        StringBuilder buf = new StringBuilder(512);
+        buf.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        buf.append("Host: ").append(pool.getHostHeader()).append("\r\n");
 
         String[] keys = headers.getHeaderKeys();
         for (int i=0; i<keys.length; i++)
         {
-            String value = headers.getHeader(keys[i]);
-            proxy.setRequestProperty(keys[i], value);
+            if (skip.contains(keys[i].toLowerCase()))
+                continue;
+            buf.append(keys[i]).append(": ").append(headers.getHeader(keys[i])).append("\r\n");
         }
 
-        proxy.setUseCaches(false);
-        if (isPost)
+        if (hasBody)
         {
-            proxy.setDoOutput(true);
-            byte[] raw = request.readRawContent();
+            if (contentLength >= 0)
+                buf.append("Content-Length: ").append(contentLength).append("\r\n");
+            else
+                buf.append("Transfer-Encoding: chunked\r\n");
+        }
+        buf.append("\r\n");
 
-            OutputStream postOut = proxy.getOutputStream();
-            postOut.write(raw);
-            postOut.flush();
-            postOut.close();
+        return buf.toString().getBytes(HTTPUtils.ASCII);
+    }
+
+    private static void sendRequestBody(HTTPInputStream request, OutputStream out, long contentLength) throws IOException
+    {
+        byte[] buffer = new byte[UpstreamPool.BUFFER_SIZE];
+        if (contentLength >= 0)
+        {
+            while (true)
+            {
+                int r = request.read(buffer);
+                if (r < 0)
+                    break;
+                out.write(buffer, 0, r);
+            }
+            return;
         }
 
-        try {
-            proxy.connect();
+        byte[] crlf = {'\r', '\n'};
+        while (true)
+        {
+            int r = request.read(buffer);
+            if (r < 0)
+                break;
+            if (r == 0)
+                continue;
+            out.write(Integer.toHexString(r).getBytes(HTTPUtils.ASCII));
+            out.write(crlf);
+            out.write(buffer, 0, r);
+            out.write(crlf);
         }
-        catch ( Exception ex ) {
-            throw new IOException("Failed to forward traffic to " + urlString, ex);
+        out.write(new byte[]{'0', '\r', '\n', '\r', '\n'});
+    }
+
+    static class UpstreamResponse
+    {
+        String version, message;
+        int status;
+        ArrayList keys = new ArrayList(), values = new ArrayList();
+
+        String getHeader(String key)
+        {
+            for (int i=0; i<keys.size(); i++)
+                if (key.equalsIgnoreCase((String) keys.get(i)))
+                    return (String) values.get(i);
+            return null;
         }
+    }
 
-        int respCode = proxy.getResponseCode();
-        String msg = proxy.getResponseMessage();
-        boolean isChunked = false;
+    private static String readLine(InputStream in, byte[] lineBuffer) throws IOException
+    {
+        int len = HTTPRequestHeaders.readLine(in, lineBuffer);
+        if (len < 0)
+            throw new IOException("Upstream header line too long");
+        return HTTPRequestHeaders.getCRLFTerminatedLineAsString(lineBuffer, len);
+    }
 
-        HTTPResponseHeaders respHeaders = response.getHeaders();
-        for (int i=0; true; i++)
+    private static UpstreamResponse readResponseHead(InputStream in) throws IOException
+    {
+        byte[] lineBuffer = new byte[HTTPRequestHeaders.DEFAULT_HEADER_LINE_LENGTH];
+        while (true)
         {
-            String key = proxy.getHeaderFieldKey(i);
-            if (key == null)
+            UpstreamResponse result = new UpstreamResponse();
+            String statusLine = readLine(in, lineBuffer);
+            int s1 = statusLine.indexOf(' ');
+            if ((s1 < 0) || !statusLine.startsWith("HTTP/"))
+                throw new IOException("Invalid upstream status line: "+statusLine);
+            int s2 = statusLine.indexOf(' ', s1+1);
+            if (s2 < 0)
+                s2 = statusLine.length();
+
+            result.version = statusLine.substring(0, s1);
+            try
             {
-                if (i == 0)
-                    continue;
-                else
-                    break;
+                result.status = Integer.parseInt(statusLine.substring(s1+1, s2).trim());
             }
-
-            String value = proxy.getHeaderField(i);
-            if (key.equalsIgnoreCase("set-cookie"))
+            catch (NumberFormatException e)
             {
-                HttpCookie setCookie = HTTPResponseHeaders.parseSetCookie(value);
-                respHeaders.setCookie(setCookie);
+                throw new IOException("Invalid upstream status line: "+statusLine);
             }
-            else
-                respHeaders.setHeader(key, value);
+            result.message = (s2 < statusLine.length()) ? statusLine.substring(s2+1).trim() : "";
 
-            if ( key.equalsIgnoreCase("transfer-encoding") ) {
-                if ( value.equalsIgnoreCase("chunked") )
-                    isChunked = true;
+            for (int i=0; true; i++)
+            {
+                if (i >= HTTPHeaders.MAX_HEADERS)
+                    throw new IOException("Too many upstream headers");
+                String line = readLine(in, lineBuffer);
+                if (line.length() == 0)
+                    break;
+                int colon = line.indexOf(':');
+                if (colon <= 0)
+                    continue;
+                result.keys.add(line.substring(0, colon).trim());
+                result.values.add(line.substring(colon+1).trim());
             }
+
+            if ((result.status >= 100) && (result.status < 200) && (result.status != 101))
+                continue; // Interim responses (e.g. 100 Continue) are not forwarded
+            return result;
         }
+    }
 
-        InputStream dataStream = null;
-        try
+    /** The body of an upstream response, delimited by its length, chunking or the end of the connection. */
+    static class UpstreamBody extends InputStream
+    {
+        private final UpstreamPool pool;
+        private final InputStream in;
+        private final boolean chunked, untilClose;
+        private final byte[] lineBuffer;
+        private long remaining;
+        private boolean eof;
+
+        UpstreamBody(UpstreamPool pool, InputStream in, long length, boolean chunked)
         {
-            try {
-                dataStream = proxy.getInputStream();
+            this.pool = pool;
+            this.in = in;
+            this.chunked = chunked;
+            untilClose = !chunked && (length < 0);
+            remaining = chunked ? 0 : length;
+            lineBuffer = chunked ? new byte[1024] : null;
+            eof = !chunked && (length == 0);
+        }
+
+        /** Returns true if the whole body has been read and the connection is positioned at the start of the next response. */
+        boolean isComplete()
+        {
+            return eof && !untilClose;
+        }
+
+        private boolean nextChunk() throws IOException
+        {
+            if (remaining == -1) // CRLF after the previous chunk's data
+                readLine(in, lineBuffer);
+
+            String line = readLine(in, lineBuffer);
+            int semi = line.indexOf(';');
+            if (semi >= 0)
+                line = line.substring(0, semi);
+            try
+            {
+                remaining = Long.parseLong(line.trim(), 16);
             }
-            catch ( IOException ex ) {
-                // HttpURLConnection.getInputStream will throw a FileNotFoundException if the response if not 200
-                // use the error stream to read any useful returned content (e.g. 404 page or 500 stack track) and forward to the client
-                dataStream = proxy.getErrorStream();
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Invalid upstream chunk size");
             }
 
-            respHeaders.configure(respCode, msg);
-            if ( dataStream == null ) {// send headers only if there is no content
-                response.sendHeaders();
+            if (remaining > 0)
                 return true;
+
+            while (readLine(in, lineBuffer).length() > 0); // Trailers
+            eof = true;
+            return false;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            return (r <= 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (eof)
+                return -1;
+            if (len == 0)
+                return 0;
+
+            try
+            {
+                return readContent(b, off, len);
             }
+            catch (IOException e)
+            {
+                pool.recordFailure();
+                throw e;
+            }
+        }
 
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            int nRead;
-            while ( ( nRead = dataStream.read(buffer, 0, buffer.length) ) != -1 )
-                bout.write(buffer, 0, nRead);
-            bout.flush();
+        private int readContent(byte[] b, int off, int len) throws IOException
+        {
+            if (untilClose)
+            {
+                int r = in.read(b, off, len);
+                if (r < 0)
+                    eof = true;
+                return r;
+            }
 
-            byte[] data = bout.toByteArray();
-            String contentType = proxy.getContentType();
-            if ( htmlEditor != null && contentType.toLowerCase().contains("text/html") )
-                data = editHTML(data);
+            if (chunked && (remaining <= 0) && !nextChunk())
+                return -1;
 
-            if ( data.length > 0 ) {
-                response.prepareToSendContent(data.length, isChunked);
-                response.write(data);
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r < 0)
+                throw new EOFException("Upstream closed before end of content");
+            remaining -= r;
+            if (remaining == 0)
+            {
+                if (chunked)
+                    remaining = -1;
+                else
+                    eof = true;
             }
-            else
-                response.sendHeaders();
+            return r;
         }
-        finally
+
+        public int available() throws IOException
+        {
+            if (eof)
+                return 0;
+            int a = in.available();
+            return untilClose ? a : (int) Math.min(a, Math.max(0, remaining));
+        }
+    }
+
+    private byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buffer = new byte[UpstreamPool.BUFFER_SIZE];
+        while (true)
+        {
+            int r = in.read(buffer);
+            if (r < 0)
+                break;
+            bout.write(buffer, 0, r);
+        }
+        return bout.toByteArray();
+    }
+
+    /** Thrown when no connection can be made to an upstream, before any of the request has been sent, so that it may be tried elsewhere. */
+    static class UpstreamUnavailableException extends IOException
+    {
+        UpstreamUnavailableException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    @Override
+    protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
+    {
+        HTTPRequestHeaders headers = request.getHeaders();
+        String path = headers.getRawURL();
+        if (!path.startsWith("/"))
+            path = "/"+path;
+
+        if (!headers.isGet() && !headers.isHead() && !headers.isPost())
+            return false;
+
+        if (group == null)
+        {
+            String urlString = (String) getFullForwardPath.apply(path);
+            if (urlString == null) // if no forward path is found, return false to continue with the filter chain
+                return false;
+
+            URL url = new URL(urlString);
+            return forward(request, response, getUpstreamPool(url), url);
+        }
+
+        HashSet tried = new HashSet();
+        int retries = group.getRetries();
+        while (true)
         {
+            UpstreamPool pool = group.select(path, tried);
+            if (pool == null)
+                throw new IOException("No upstream available for "+path);
+            tried.add(pool);
+
             try
             {
-                response.close();
-                if ( dataStream != null )
-                    dataStream.close();
+                return forward(request, response, pool, group.getURL(pool, path));
+            }
+            catch (UpstreamUnavailableException e)
+            {
+                if ((tried.size() > retries) || (tried.size() >= group.size()))
+                    throw e;
+            }
+        }
+    }
+
+    private boolean forward(HTTPInputStream request, HTTPOutputStream response, UpstreamPool pool, URL url) throws IOException
+    {
+        HTTPRequestHeaders headers = request.getHeaders();
+        String urlString = url.toString();
+
+        boolean hasBody = request.contentAvailable();
+        long contentLength = headers.getContentLength();
+        byte[] head = encodeRequestHead(headers, headers.getHTTPMethod(), url, pool, htmlEditor != null, contentLength, hasBody);
+        //Only these may be sent again if a reused connection fails, as the upstream may have acted on the first attempt
+        boolean idempotent = IDEMPOTENT_METHODS.contains(headers.getHTTPMethod());
+
+        UpstreamPool.Connection conn = null;
+        UpstreamResponse upstream = null;
+        boolean bodySent = false;
+        for (int attempt=0; upstream == null; attempt++)
+        {
+            try
+            {
+                conn = (attempt == 0) ? pool.acquire() : pool.acquireNew();
+                if ((hasBody || !idempotent) && pool.isStale(conn))
+                {
+                    pool.release(conn, false);
+                    conn = pool.acquireNew();
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UpstreamUnavailableException("Failed to forward traffic to " + urlString, e);
+            }
+
+            try
+            {
+                conn.output.write(head);
+                if (hasBody)
+                {
+                    bodySent = true;
+                    sendRequestBody(request, conn.output, contentLength);
+                }
+                conn.output.flush();
+                upstream = readResponseHead(conn.input);
+                pool.recordSuccess();
+            }
+            catch (IOException e)
+            {
+                pool.release(conn, false);
+                if ((attempt == 0) && idempotent && conn.isReused() && !bodySent) // The upstream closed the idle connection; try once more on a new one
+                    continue;
+                pool.recordFailure();
+                throw new IOException("Failed to forward traffic to " + urlString, e);
             }
-            catch (Exception e) {}
         }
 
-        return true;
+        boolean reusable = false;
+        try
+        {
+            int status = upstream.status;
+            boolean noBody = headers.isHead() || (status == HTTPResponseHeaders.HTTP_NO_CONTENT) || (status == HTTPResponseHeaders.HTTP_NOT_MODIFIED) || (status < 200);
+
+            long length = -1;
+            String lengthValue = upstream.getHeader(HTTPHeaders.CONTENT_LENGTH);
+            if (lengthValue != null)
+            {
+                try
+                {
+                    length = Long.parseLong(lengthValue.trim());
+                }
+                catch (NumberFormatException e) {}
+            }
+            String te = upstream.getHeader(HTTPHeaders.TRANSFER_ENCODING);
+            boolean chunked = (te != null) && te.toLowerCase().contains("chunked");
+
+            String connection = upstream.getHeader(HTTPHeaders.CONNECTION);
+            Set skip = new HashSet(HOP_BY_HOP_HEADERS);
+            addConnectionTokens(connection, skip);
+            boolean upstreamClose = skip.contains("close") || (upstream.version.equals("HTTP/1.0") && !skip.contains("keep-alive"));
+
+            HTTPResponseHeaders respHeaders = response.getHeaders();
+            respHeaders.configure(status, upstream.message);
+            String contentType = null;
+            String contentEncoding = null;
+            for (int i=0; i<upstream.keys.size(); i++)
+            {
+                String key = (String) upstream.keys.get(i);
+                String value = (String) upstream.values.get(i);
+                String lower = key.toLowerCase();
+                if (skip.contains(lower))
+                    continue;
+
+                if (lower.equals("set-cookie"))
+                    respHeaders.setCookie(HTTPResponseHeaders.parseSetCookie(value));
+                else
+                    respHeaders.setHeader(key, value);
+
+                if (lower.equals("content-type"))
+                    contentType = value;
+                else if (lower.equals("content-encoding"))
+                    contentEncoding = value;
+            }
+
+            if (noBody)
+            {
+                if (headers.isHead() && (length >= 0))
+                {
+                    response.prepareToSendContent(length, false);
+                    response.close();
+                }
+                else
+                    response.sendHeaders();
+                reusable = !upstreamClose;
+                return true;
+            }
+
+            UpstreamBody body = new UpstreamBody(pool, conn.input, chunked ? -1 : length, chunked);
+            boolean identity = (contentEncoding == null) || contentEncoding.equalsIgnoreCase("identity");
+            if ((htmlEditor != null) && identity && (contentType != null) && contentType.toLowerCase().contains("text/html"))
+            {
+                byte[] data = editHTML(readFully(body));
+                response.sendContent(data);
+            }
+            else
+            {
+                response.prepareToSendContent(chunked ? -1 : length, chunked || (length < 0));
+                byte[] buffer = new byte[UpstreamPool.BUFFER_SIZE];
+                while (true)
+                {
+                    int r = body.read(buffer);
+                    if (r < 0)
+                        break;
+                    response.write(buffer, 0, r);
+                    if (body.available() == 0) // Send what we have while waiting for more from the upstream
+                        response.flush();
+                }
+                response.close();
+            }
+
+            reusable = body.isComplete() && !upstreamClose;
+            return true;
+        }
+        finally
+        {
+            pool.release(conn, reusable);
+        }
     }
 
-    private byte[] editHTML(byte[] data) {
+    private byte[] editHTML(byte[] data)
+    {
         String html = new String(data);
         html = (String) htmlEditor.apply(html);
         return html.getBytes();
     }
 
+    protected void closeFilter() throws Exception
+    {
+        if (group != null)
+            group.close();
+        Iterator itt = pools.values().iterator();
+        while (itt.hasNext())
+            ((UpstreamPool) itt.next()).close();
+    }
 }
@@ -0,0 +1,703 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http.filters;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.http.*;
+import jjsp.util.*;
+
+/**
+   Holds the responses of the wrapped filter (typically a JSRequestFilter or HTTPRequestHandlerAdapter generating pages from script) in memory
+   and replays them, so that the script only runs when a page is first requested or has expired.
+
+   GET responses are captured whole (status, headers and body) and keyed on the path, query, negotiated content encoding, the values of the
+   key headers (Host by default) and the values of any request headers the path's responses Vary on. HEAD requests are answered from the same
+   entries. An entry is fresh for the cache time, and for a further stale time is still served while the first GET request to find it stale
+   triggers its regeneration on a background thread (with a copy of that request's headers). Concurrent misses for one key wait for a single
+   regeneration. Every entry has an ETag (the generated one, or an MD5 of the body) and If-None-Match requests for it get a 304.
+
+   Only responses with a cacheable status, no Set-Cookie header, no "Vary: *", no private or no-store Cache-Control directive and a body no
+   larger than the entry size limit are kept. Responses marked no-cache are regenerated for every request which does not share their generation,
+   and those marked must-revalidate are not served stale. Other methods, and requests with a Range header, or a Cookie or Authorization header
+   which is not a key header, pass straight through. Memory is bounded by an LRUCache limit on both entries and total bytes.
+
+   Responses which set no Cache-Control header of their own are cached, and sent with the server's default one (which prevents clients caching them)
+   unless a client cache time is set.
+ */
+public class ResponseCacheFilter implements HTTPRequestFilter
+{
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_BYTES = 64*1024*1024;
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024*1024;
+
+    public static final String HIT = "HIT";
+    public static final String STALE = "STALE";
+    public static final String MISS = "MISS";
+    public static final String NOT_MODIFIED = "NOT-MODIFIED";
+    public static final String BYPASS = "BYPASS";
+
+    private static final String[] UNCACHED_HEADERS = {"Date", "Connection", "Content-Length", "Transfer-Encoding", "Set-Cookie", "Age"};
+    private static final String[] NO_VARY = new String[0];
+    private static final String UNSET_CACHE_CONTROL = "x-response-cache-unset";
+
+    private static final ExecutorService REFRESHER = Executors.newCachedThreadPool((r) ->
+    {
+        Thread t = new Thread(r, "Response Cache Refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static class CachedResponse
+    {
+        final int status;
+        final String message;
+        final String[] keys, values;
+        final HttpCookie[] cookies;
+        final byte[] body;
+        final String eTag;
+        final long created, expires, staleUntil;
+        final boolean cacheable, revalidate;
+        final AtomicBoolean refreshing;
+
+        CachedResponse(int status, String message, String[] keys, String[] values, HttpCookie[] cookies, byte[] body, String eTag, long created, long expires, long staleUntil, boolean cacheable, boolean revalidate)
+        {
+            this.status = status;
+            this.message = message;
+            this.keys = keys;
+            this.values = values;
+            this.cookies = cookies;
+            this.body = body;
+            this.eTag = eTag;
+            this.created = created;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+            this.cacheable = cacheable;
+            this.revalidate = revalidate;
+            refreshing = new AtomicBoolean(false);
+        }
+
+        long memorySize()
+        {
+            long result = 128 + body.length;
+            for (int i=0; i<keys.length; i++)
+                result += 2*(keys[i].length() + values[i].length()) + 32;
+            return result;
+        }
+    }
+
+    private final String name;
+    private final HTTPRequestFilter wrapped;
+    private final LRUCache cache, varied;
+    private final AtomicLong hits, staleHits, misses, notModified, bypassed, refreshFailures;
+
+    private volatile int cacheTime, staleTime, clientCacheTime, maxEntrySize;
+    private volatile String[] keyHeaders;
+    private volatile boolean closed;
+
+    public ResponseCacheFilter(String name, int cacheTimeSeconds, HTTPRequestFilter wrapped)
+    {
+        this(name, cacheTimeSeconds, 0, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, wrapped);
+    }
+
+    public ResponseCacheFilter(String name, int cacheTimeSeconds, int staleTimeSeconds, HTTPRequestFilter wrapped)
+    {
+        this(name, cacheTimeSeconds, staleTimeSeconds, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, wrapped);
+    }
+
+    public ResponseCacheFilter(String name, int cacheTimeSeconds, int staleTimeSeconds, int maxEntries, long maxBytes, HTTPRequestFilter wrapped)
+    {
+        if ((name == null) || (name.trim().length() == 0))
+            throw new IllegalStateException("Invalid/empty filter name");
+        if (wrapped == null)
+            throw new NullPointerException("No filter to cache for "+name);
+
+        this.name = name;
+        this.wrapped = wrapped;
+        cacheTime = Math.max(0, cacheTimeSeconds);
+        staleTime = Math.max(0, staleTimeSeconds);
+        clientCacheTime = -1;
+        maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+        keyHeaders = new String[]{HTTPHeaders.HOST};
+
+        cache = new LRUCache(maxEntries, maxBytes, (r) -> ((CachedResponse) r).memorySize());
+        varied = new LRUCache(maxEntries, Long.MAX_VALUE, (v) -> 64);
+        hits = new AtomicLong();
+        staleHits = new AtomicLong();
+        misses = new AtomicLong();
+        notModified = new AtomicLong();
+        bypassed = new AtomicLong();
+        refreshFailures = new AtomicLong();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public HTTPRequestFilter getWrappedFilter()
+    {
+        return wrapped;
+    }
+
+    public LRUCache getCache()
+    {
+        return cache;
+    }
+
+    public void setCacheTimeSeconds(int seconds)
+    {
+        cacheTime = Math.max(0, seconds);
+    }
+
+    public int getCacheTimeSeconds()
+    {
+        return cacheTime;
+    }
+
+    /** Sets how long after expiry an entry may still be served while it is regenerated. */
+    public void setStaleTimeSeconds(int seconds)
+    {
+        staleTime = Math.max(0, seconds);
+    }
+
+    public int getStaleTimeSeconds()
+    {
+        return staleTime;
+    }
+
+    /**
+        Sets the Cache-Control max-age sent to clients with cached responses, replacing whatever the wrapped filter set. Zero sends "no-cache", so clients
+        revalidate every time with If-None-Match. The default (-1) keeps the generated Cache-Control header.
+    */
+    public void setClientCacheTimeSeconds(int seconds)
+    {
+        clientCacheTime = seconds;
+    }
+
+    public int getClientCacheTimeSeconds()
+    {
+        return clientCacheTime;
+    }
+
+    /** Responses with larger bodies are sent but not cached. */
+    public void setMaxEntrySize(int bytes)
+    {
+        maxEntrySize = bytes;
+    }
+
+    public int getMaxEntrySize()
+    {
+        return maxEntrySize;
+    }
+
+    /**
+        Sets the request headers whose values, as well as the path, query and content encoding, select the cached response. Requests with a Cookie
+        or Authorization header are only cached if that header is one of these.
+    */
+    public void setKeyHeaders(String[] headerNames)
+    {
+        keyHeaders = (headerNames == null) ? new String[0] : headerNames.clone();
+    }
+
+    public String[] getKeyHeaders()
+    {
+        return keyHeaders.clone();
+    }
+
+    /** Removes all cached responses for the path, returning the number removed. */
+    public int invalidate(String path)
+    {
+        String prefix = path+"?";
+        return cache.invalidateIf((key) -> ((String) key).startsWith(prefix));
+    }
+
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    private static boolean contains(String[] names, String name)
+    {
+        for (int i=0; i<names.length; i++)
+            if (names[i].equalsIgnoreCase(name))
+                return true;
+        return false;
+    }
+
+    protected boolean isCacheableRequest(HTTPRequestHeaders reqHeaders)
+    {
+        if (!reqHeaders.isGet() && !reqHeaders.isHead())
+            return false;
+        if (reqHeaders.requestsPartialContent())
+            return false;
+
+        //Responses to these are usually personal, so only shared between requests which agree on them
+        String[] names = keyHeaders;
+        if (reqHeaders.hasHeader(HTTPHeaders.AUTHORIZATION) && !contains(names, HTTPHeaders.AUTHORIZATION))
+            return false;
+        return !reqHeaders.hasHeader(HTTPHeaders.COOKIE) || contains(names, HTTPHeaders.COOKIE);
+    }
+
+    protected boolean isCacheableStatus(int status)
+    {
+        switch (status)
+        {
+        case HTTPResponseHeaders.HTTP_OK:
+        case 203:
+        case HTTPResponseHeaders.HTTP_NO_CONTENT:
+        case HTTPResponseHeaders.HTTP_MOVED_PERMANENTLY:
+        case HTTPResponseHeaders.HTTP_PERMANENT_REDIRECT:
+        case HTTPResponseHeaders.HTTP_NOT_FOUND:
+        case 410:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** Returns the request headers (other than the key headers and Accept-Encoding) which responses for the path were last seen to Vary on. */
+    protected String[] getVaryHeaders(HTTPRequestHeaders reqHeaders)
+    {
+        String[] result = (String[]) varied.get(reqHeaders.getPath());
+        return (result == null) ? NO_VARY : result;
+    }
+
+    /** Returns the lower case, sorted names in the response's Vary header which are not already part of the key, or null for "Vary: *". */
+    protected String[] parseVary(HTTPResponseHeaders hdrs)
+    {
+        String vary = hdrs.getHeader("Vary", null);
+        if (vary == null)
+            return NO_VARY;
+
+        TreeSet names = new TreeSet();
+        String[] parts = vary.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String part = parts[i].trim().toLowerCase();
+            if (part.equals("*"))
+                return null;
+            if ((part.length() > 0) && !part.equalsIgnoreCase(HTTPHeaders.ACCEPT_ENCODING) && !contains(keyHeaders, part))
+                names.add(part);
+        }
+
+        String[] result = new String[names.size()];
+        return (String[]) names.toArray(result);
+    }
+
+    private static Set getDirectives(String cacheControl)
+    {
+        HashSet result = new HashSet();
+        if (cacheControl == null)
+            return result;
+
+        String[] parts = cacheControl.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String part = parts[i].trim().toLowerCase();
+            int eq = part.indexOf('=');
+            result.add((eq < 0) ? part : part.substring(0, eq).trim());
+        }
+        return result;
+    }
+
+    protected String createKey(HTTPRequestHeaders reqHeaders, String[] vary)
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append(reqHeaders.getPath()).append('?');
+        String query = reqHeaders.getQueryString();
+        if (query != null)
+            buf.append(query);
+        buf.append('\n').append(reqHeaders.selectContentEncoding());
+
+        String[] names = keyHeaders;
+        for (int i=0; i<names.length; i++)
+            buf.append('\n').append(reqHeaders.getHeader(names[i], ""));
+        for (int i=0; i<vary.length; i++)
+            buf.append('\n').append(vary[i]).append(':').append(reqHeaders.getHeader(vary[i], ""));
+        return buf.toString();
+    }
+
+    private static int headerEnd(byte[] raw)
+    {
+        for (int i=3; i<raw.length; i++)
+        {
+            if ((raw[i] == '\n') && (raw[i-1] == '\r') && (raw[i-2] == '\n') && (raw[i-3] == '\r'))
+                return i+1;
+        }
+        return raw.length;
+    }
+
+    /**
+        Runs the wrapped filter with the response captured in memory rather than sent, returning null if it sent nothing. The resulting chain is put in result[0].
+        The response is only cacheable if it Varies on the same request headers as were used to key it; if not, they are recorded for the path's next request.
+    */
+    protected CachedResponse generate(HTTPFilterChain chain, HTTPInputStream request, int compressionLevel, String[] vary, ConnectionState state, HTTPFilterChain[] result) throws IOException
+    {
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        String ifNoneMatch = reqHeaders.getHeader(HTTPHeaders.IF_NONE_MATCH, null);
+        String ifModifiedSince = reqHeaders.getHeader(HTTPHeaders.IF_MODIFIED_SINCE, null);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        HTTPOutputStream capture = new HTTPOutputStream(request.getServerPort(), request.isSecure(), request.getClientAddress(), bout);
+        capture.setToLegacyHTTP(); //So that streamed content is captured as is rather than chunked
+        capture.setCompressionLevel(compressionLevel);
+        capture.setCompressionFlushSize(0);
+
+        long created = System.currentTimeMillis();
+        try
+        {
+            //The entry must hold the full response, whatever this client already has
+            reqHeaders.deleteHeader(HTTPHeaders.IF_NONE_MATCH);
+            reqHeaders.deleteHeader(HTTPHeaders.IF_MODIFIED_SINCE);
+            //Otherwise the server's default (no-store) would be indistinguishable from a page's own
+            capture.getHeaders().setHeader(HTTPHeaders.CACHE_CONTROL, UNSET_CACHE_CONTROL);
+
+            result[0] = wrapped.filterRequest(chain, request, capture, state);
+            capture.close();
+        }
+        finally
+        {
+            capture.dispose();
+            reqHeaders.setHeader(HTTPHeaders.IF_NONE_MATCH, ifNoneMatch);
+            reqHeaders.setHeader(HTTPHeaders.IF_MODIFIED_SINCE, ifModifiedSince);
+        }
+
+        if (!capture.outputSent())
+            return null;
+
+        byte[] raw = bout.toByteArray();
+        int bodyStart = headerEnd(raw);
+        byte[] body = Arrays.copyOfRange(raw, bodyStart, raw.length);
+
+        HTTPResponseHeaders hdrs = capture.getHeaders();
+        String mainLine = hdrs.getMainLine();
+        int s1 = mainLine.indexOf(' ');
+        int s2 = mainLine.indexOf(' ', s1+1);
+        if (s2 < 0)
+            s2 = mainLine.length();
+        int status = Integer.parseInt(mainLine.substring(s1+1, s2).trim());
+        String message = (s2 < mainLine.length()) ? mainLine.substring(s2+1).trim() : "";
+
+        HttpCookie[] cookies = hdrs.getCookies();
+        String cacheControl = hdrs.getHeader(HTTPHeaders.CACHE_CONTROL, null);
+        Set directives = getDirectives(UNSET_CACHE_CONTROL.equals(cacheControl) ? null : cacheControl);
+        if (UNSET_CACHE_CONTROL.equals(cacheControl))
+            hdrs.configureToPreventCaching();
+        boolean cacheable = (result[0].getPrimaryError() == null) && isCacheableStatus(status) && (cookies.length == 0) && (body.length <= maxEntrySize);
+        cacheable &= !directives.contains("private") && !directives.contains("no-store");
+
+        String[] responseVary = parseVary(hdrs);
+        if (responseVary == null)
+            cacheable = false;
+        else if (!Arrays.equals(responseVary, vary))
+        {
+            if (responseVary.length == 0)
+                varied.invalidate(reqHeaders.getPath());
+            else
+                varied.put(reqHeaders.getPath(), responseVary);
+            cacheable = false;
+        }
+
+        ArrayList keys = new ArrayList(), values = new ArrayList();
+        String[] names = hdrs.getHeaderKeys();
+        for (int i=0; i<names.length; i++)
+        {
+            boolean keep = true;
+            for (int j=0; j<UNCACHED_HEADERS.length; j++)
+                keep &= !UNCACHED_HEADERS[j].equalsIgnoreCase(names[i]);
+            if (!keep)
+                continue;
+            keys.add(names[i]);
+            values.add(hdrs.getHeader(names[i], ""));
+        }
+
+        String eTag = hdrs.getHeader("ETag", null);
+        if (eTag == null)
+        {
+            eTag = HTTPUtils.getUtils().createETag(body);
+            keys.add("ETag");
+            values.add(eTag);
+        }
+
+        //A no-cache entry must be regenerated before it is reused, and a must-revalidate one must not be served stale
+        boolean revalidate = directives.contains("no-cache");
+        long expires = revalidate ? created : created + 1000L*cacheTime;
+        long staleUntil = (revalidate || directives.contains("must-revalidate") || directives.contains("proxy-revalidate")) ? expires : expires + 1000L*staleTime;
+
+        String[] k = new String[keys.size()], v = new String[values.size()];
+        keys.toArray(k);
+        values.toArray(v);
+        return new CachedResponse(status, message, k, v, cookies, body, eTag, created, expires, staleUntil, cacheable, revalidate);
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String eTag)
+    {
+        if (ifNoneMatch == null)
+            return false;
+        if (ifNoneMatch.trim().equals("*"))
+            return true;
+
+        String bare = eTag;
+        if (bare.startsWith("W/"))
+            bare = bare.substring(2);
+        if (bare.startsWith("\"") && bare.endsWith("\"") && (bare.length() > 1))
+            bare = bare.substring(1, bare.length()-1);
+
+        String[] tags = ifNoneMatch.split(",");
+        for (int i=0; i<tags.length; i++)
+        {
+            String tag = tags[i].trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.startsWith("\"") && tag.endsWith("\"") && (tag.length() > 1))
+                tag = tag.substring(1, tag.length()-1);
+            if (tag.equals(bare))
+                return true;
+        }
+        return false;
+    }
+
+    /** Sends the cached response, or a 304 if the client already has it. Returns true if a 304 was sent. */
+    protected boolean send(CachedResponse cached, HTTPInputStream request, HTTPOutputStream response) throws IOException
+    {
+        HTTPResponseHeaders hdrs = response.getHeaders();
+        boolean unchanged = (cached.status == HTTPResponseHeaders.HTTP_OK) && matchesETag(request.getHeaders().getHeader(HTTPHeaders.IF_NONE_MATCH, null), cached.eTag);
+
+        if (unchanged)
+            hdrs.configureAsNotModified();
+        else
+            hdrs.configure(cached.status, cached.message);
+
+        for (int i=0; i<cached.keys.length; i++)
+            hdrs.setHeader(cached.keys[i], cached.values[i]);
+        for (int i=0; i<cached.cookies.length; i++)
+            hdrs.setCookie(cached.cookies[i]);
+        hdrs.setHeader("Age", String.valueOf(Math.max(0, (System.currentTimeMillis() - cached.created)/1000)));
+
+        int clientTime = clientCacheTime;
+        if ((clientTime >= 0) && cached.cacheable && !cached.revalidate)
+        {
+            hdrs.deleteHeader("Expires");
+            hdrs.deleteHeader("Pragma");
+            hdrs.setHeader("Cache-Control", (clientTime > 0) ? "public, max-age="+clientTime : "no-cache");
+        }
+
+        if (unchanged)
+            response.sendHeaders();
+        else
+            response.sendContent(cached.body);
+        return unchanged;
+    }
+
+    private void sendAndReport(CachedResponse cached, String report, HTTPFilterChain myChain, HTTPInputStream request, HTTPOutputStream response) throws IOException
+    {
+        if (send(cached, request, response))
+        {
+            notModified.incrementAndGet();
+            myChain.report = report+" "+NOT_MODIFIED;
+        }
+        else
+            myChain.report = report;
+    }
+
+    /** Copies the headers of a bodiless request, so that it can be regenerated after the connection has moved on to its next request. */
+    private static HTTPInputStream copyRequest(HTTPInputStream request) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        request.getHeaders().print(new PrintStream(bout, false, "ISO-8859-1"));
+
+        HTTPInputStream result = new HTTPInputStream(request.getServerPort(), request.isSecure(), request.getClientAddress(), new ByteArrayInputStream(bout.toByteArray()));
+        if (!result.readHeaders())
+            throw new IOException("Unable to copy request headers for "+request.getHeaders().getPath());
+        return result;
+    }
+
+    /** Regenerates a stale entry on a background thread, so that neither this request nor the next one on its connection waits for the page to be generated. */
+    private void refresh(String key, CachedResponse stale, String[] vary, HTTPInputStream request, HTTPOutputStream response)
+    {
+        try
+        {
+            HTTPInputStream copy = copyRequest(request);
+            int compressionLevel = response.getCompressionLevel();
+            REFRESHER.execute(() ->
+            {
+                ConnectionState state = new ConnectionState();
+                try
+                {
+                    HTTPFilterChain[] generated = new HTTPFilterChain[1];
+                    CachedResponse fresh = generate(new HTTPFilterChain(name), copy, compressionLevel, vary, state, generated);
+                    if ((fresh != null) && fresh.cacheable && !closed)
+                        cache.put(key, fresh);
+                    else
+                    {
+                        if ((fresh == null) || (generated[0].getPrimaryError() != null))
+                            refreshFailures.incrementAndGet();
+                        stale.refreshing.set(false);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    refreshFailures.incrementAndGet();
+                    stale.refreshing.set(false);
+                }
+                finally
+                {
+                    try
+                    {
+                        state.close();
+                    }
+                    catch (Exception e) {}
+                }
+            });
+        }
+        catch (Throwable t)
+        {
+            refreshFailures.incrementAndGet();
+            stale.refreshing.set(false);
+        }
+    }
+
+    public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
+    {
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        if (!isCacheableRequest(reqHeaders))
+        {
+            bypassed.incrementAndGet();
+            myChain.report = BYPASS;
+            return wrapped.filterRequest(myChain, request, response, state);
+        }
+
+        try
+        {
+            String[] vary = getVaryHeaders(reqHeaders);
+            String key = createKey(reqHeaders, vary);
+            CachedResponse cached = (CachedResponse) cache.get(key);
+            long now = System.currentTimeMillis();
+            if ((cached != null) && (now >= cached.staleUntil))
+            {
+                cache.invalidate(key, cached);
+                cached = null;
+            }
+
+            if (cached != null)
+            {
+                if (now < cached.expires)
+                {
+                    hits.incrementAndGet();
+                    sendAndReport(cached, HIT, myChain, request, response);
+                }
+                else
+                {
+                    staleHits.incrementAndGet();
+                    sendAndReport(cached, STALE, myChain, request, response);
+                    if (reqHeaders.isGet() && cached.refreshing.compareAndSet(false, true))
+                        refresh(key, cached, vary, request, response);
+                }
+                return myChain;
+            }
+
+            if (reqHeaders.isHead())
+            {
+                bypassed.incrementAndGet();
+                myChain.report = BYPASS;
+                return wrapped.filterRequest(myChain, request, response, state);
+            }
+
+            HTTPFilterChain[] generated = new HTTPFilterChain[1];
+            myChain.report = MISS;
+            cached = (CachedResponse) cache.get(key, (k) -> generate(myChain, request, response.getCompressionLevel(), vary, state, generated));
+
+            if (generated[0] != null) //This request ran the wrapped filter
+            {
+                misses.incrementAndGet();
+                if ((cached != null) && !cached.cacheable)
+                    cache.invalidate(key, cached);
+                if ((cached == null) || (generated[0].getPrimaryError() != null))
+                    return generated[0];
+
+                send(cached, request, response);
+                return generated[0];
+            }
+
+            if ((cached == null) || !cached.cacheable)
+            {
+                bypassed.incrementAndGet();
+                myChain.report = BYPASS;
+                return wrapped.filterRequest(myChain, request, response, state);
+            }
+
+            hits.incrementAndGet();
+            sendAndReport(cached, HIT, myChain, request, response);
+        }
+        catch (Throwable t)
+        {
+            myChain.error = t;
+        }
+        return myChain;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getStaleHits()
+    {
+        return staleHits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getNotModified()
+    {
+        return notModified.get();
+    }
+
+    public long getBypassed()
+    {
+        return bypassed.get();
+    }
+
+    /** Returns the number of background regenerations of stale entries which failed, leaving the stale entry to be served until it is refreshed or expires. */
+    public long getRefreshFailures()
+    {
+        return refreshFailures.get();
+    }
+
+    public void close()
+    {
+        closed = true;
+        cache.invalidateAll();
+        varied.invalidateAll();
+        wrapped.close();
+    }
+
+    public String toString()
+    {
+        return "ResponseCacheFilter["+name+" hits "+getHits()+", stale "+getStaleHits()+", misses "+getMisses()+", not modified "+getNotModified()+", bypassed "+getBypassed()+", refresh failures "+getRefreshFailures()+", "+cache.size()+" entries "+cache.getTotalBytes()+" bytes]";
+    }
+}
@@ -48,7 +48,7 @@ public class ResponseHeadersFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
         HTTPRequestHeaders reqHeaders = request.getHeaders();
         HTTPResponseHeaders respHeaders = response.getHeaders();
 
@@ -59,7 +59,7 @@ public class SSLRedirectFilter implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
 
         response.getHeaders().setHeader("Strict-Transport-Security", "max-age=3600; includeSubDomains");
         if (!request.isSecure())
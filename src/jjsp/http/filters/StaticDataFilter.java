@@ -27,6 +27,9 @@ public class StaticDataFilter extends AbstractRequestFilter
     protected int cacheTime;
     protected long lastModifiedTime;
     protected String eTag, contentType, urlPath, contentEncoding;
+    protected ContentVariants variants;
+    protected boolean useCompression, negotiateEncoding;
+    protected String gzipETag, deflateETag;
 
     public StaticDataFilter(String name, String urlPath, String fixedResponse, HTTPRequestFilter chain)
     {
@@ -51,7 +54,11 @@ public class StaticDataFilter extends AbstractRequestFilter
         if (rawData == null)
             throw new NullPointerException("FixedResponseData for filter "+name+" is null");
         eTag = HTTPUtils.getUtils().createETag(rawData);
+        gzipETag = eTag+"-gzip";
+        deflateETag = eTag+"-deflate";
         lastModifiedTime = System.currentTimeMillis()/1000*1000;
+        variants = new ContentVariants(rawData);
+        useCompression = true;
 
         if (contentType == null)
             this.contentType = "text/html; charset=utf-8";
@@ -63,6 +70,26 @@ public class StaticDataFilter extends AbstractRequestFilter
         
         this.cacheTime = cacheTime;
         this.urlPath = urlPath;
+        updateNegotiation();
+    }
+
+    private void updateNegotiation()
+    {
+        negotiateEncoding = useCompression && (contentEncoding == null) && ContentVariants.isCompressible(contentType);
+    }
+
+    /** When enabled (the default) compressible content is sent gzip or deflate encoded to clients which accept it, compressed once on first use. */
+    public void setUseCompression(boolean value)
+    {
+        useCompression = value;
+        updateNegotiation();
+    }
+
+    /** Compresses the content now rather than on the first request which accepts it. */
+    public void precompress()
+    {
+        if (negotiateEncoding)
+            variants.precompress();
     }
 
     public String getFixedURLPath()
@@ -70,9 +97,11 @@ public class StaticDataFilter extends AbstractRequestFilter
         return urlPath;
     }
 
+    /** Declares that the raw data is already encoded (e.g. gzip), which disables content negotiation. */
     public void setContentEncoding(String enc)
     {
         contentEncoding = enc;
+        updateNegotiation();
     }
 
     public void setLastModificationTime(long ms)
@@ -98,6 +127,7 @@ public class StaticDataFilter extends AbstractRequestFilter
     public void setContentType(String type)
     {
         contentType = type;
+        updateNegotiation();
     }
 
     public byte[] getRawBytes()
@@ -105,14 +135,37 @@ public class StaticDataFilter extends AbstractRequestFilter
         return rawData;
     }
 
+    /** Returns the content coding (gzip or deflate) to send for this request, or null to send the raw data. Range requests are always served from the raw data. */
+    protected String selectContentEncoding(HTTPInputStream req)
+    {
+        if (!negotiateEncoding || req.getHeaders().requestsPartialContent())
+            return null;
+
+        String encoding = req.getHeaders().selectContentEncoding();
+        if ((encoding == null) || (variants.getEncoded(encoding) == null))
+            return null;
+        return encoding;
+    }
+
     protected void configureResponseHeaders(HTTPInputStream req, HTTPOutputStream resp)
+    {
+        configureResponseHeaders(req, resp, null);
+    }
+
+    protected void configureResponseHeaders(HTTPInputStream req, HTTPOutputStream resp, String selectedEncoding)
     {
         resp.getHeaders().configureAsOK();
         if (req.getHeaders().requestsPartialContent())
             resp.getHeaders().configureAsPartialContent();
+
+        String tag = eTag;
+        if (ContentVariants.GZIP.equals(selectedEncoding))
+            tag = gzipETag;
+        else if (ContentVariants.DEFLATE.equals(selectedEncoding))
+            tag = deflateETag;
         
         if (cacheTime > 0)
-            resp.getHeaders().configureCacheControl(eTag, lastModifiedTime, cacheTime);
+            resp.getHeaders().configureCacheControl(tag, lastModifiedTime, cacheTime);
         else
         {
             resp.getHeaders().configureToPreventCaching();
@@ -123,6 +176,10 @@ public class StaticDataFilter extends AbstractRequestFilter
             resp.getHeaders().setContentType(contentType);
         if (contentEncoding != null)
             resp.getHeaders().setContentEncoding(contentEncoding);
+        else if (selectedEncoding != null)
+            resp.getHeaders().setContentEncoding(selectedEncoding);
+        if (negotiateEncoding)
+            resp.getHeaders().addVary(HTTPHeaders.ACCEPT_ENCODING);
     }
     
     protected boolean checkNotModified(HTTPInputStream req, HTTPOutputStream resp)
@@ -144,29 +201,32 @@ public class StaticDataFilter extends AbstractRequestFilter
                 return false;
         }
 
+        String encoding = selectContentEncoding(request);
+        byte[] data = (encoding == null) ? rawData : variants.getEncoded(encoding);
+
         if (checkNotModified(request, response))
         {
-            configureResponseHeaders(request, response);
+            configureResponseHeaders(request, response, encoding);
             
             response.getHeaders().configureAsNotModified();
-            response.getHeaders().setContentLength(rawData.length);
+            response.getHeaders().setContentLength(data.length);
             response.sendHeaders();
         }
         else
         {
-            configureResponseHeaders(request, response);
+            configureResponseHeaders(request, response, encoding);
 
             long start = 0;
-            long end = rawData.length-1;        
+            long end = data.length-1;        
             long[] limits = request.getHeaders().extractByteRanges();
             if (limits != null)
             {
                 start = limits[0];
                 end = limits[1];
                 if (end < 0)
-                    end = rawData.length-1;
+                    end = data.length-1;
                 else
-                    end = Math.min(rawData.length-1, end);
+                    end = Math.min(data.length-1, end);
             }
 
             if (request.getHeaders().isHead())
@@ -175,7 +235,7 @@ public class StaticDataFilter extends AbstractRequestFilter
                 response.sendHeaders();
             }
             else
-                response.sendContent(rawData, (int) start, (int) (end-start+1));
+                response.sendContent(data, (int) start, (int) (end-start+1));
         }
 
         return true;
@@ -0,0 +1,422 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http.filters;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   A set of equivalent upstream servers for ProxyFilter to balance requests across, each with its own UpstreamPool of connections.
+
+   Members are chosen round-robin, by fewest outstanding requests, or by consistent hashing of the request path (so that each path
+   keeps going to the same member while the membership is unchanged). A member is passively taken out of rotation after a run of
+   failures, for the fail timeout, after which one request is let through to try it again. Active health checks, if enabled,
+   also poll a path on each member from a daemon thread and take members which do not answer with a 2xx or 3xx out of rotation.
+   If no member is healthy, requests are still tried against all of them rather than failing without trying.
+ */
+public class UpstreamGroup implements Runnable
+{
+    public enum Balancing {ROUND_ROBIN, LEAST_OUTSTANDING, CONSISTENT_HASH};
+
+    public static final int DEFAULT_MAX_FAILS = 3;
+    public static final int DEFAULT_FAIL_TIMEOUT = 10000;
+    public static final int DEFAULT_RETRIES = 2;
+    public static final int VIRTUAL_NODES = 128;
+
+    class Member
+    {
+        final UpstreamPool pool;
+        final String pathPrefix;
+        volatile boolean activeHealthy;
+        volatile long nextTrial;
+
+        Member(URL base)
+        {
+            pool = new UpstreamPool(base.getProtocol(), base.getHost(), base.getPort());
+            String path = base.getPath();
+            while (path.endsWith("/"))
+                path = path.substring(0, path.length()-1);
+            pathPrefix = path;
+            activeHealthy = true;
+            nextTrial = 0;
+        }
+
+        /** Returns true if the member is in rotation, or is due a trial request, without taking that trial. */
+        boolean isAvailable(long now)
+        {
+            if (!activeHealthy)
+                return false;
+            if (pool.getConsecutiveFailures() < maxFails)
+                return true;
+            return (now - pool.getLastFailureTime() >= failTimeout) && (now >= nextTrial);
+        }
+
+        /** Called for the member actually chosen: returns false if it is only available for a trial request and another request has already taken it. */
+        boolean claim(long now)
+        {
+            if (pool.getConsecutiveFailures() < maxFails)
+                return true;
+
+            synchronized (this) //Let a single request through to see if the member has recovered
+            {
+                if (now < nextTrial)
+                    return false;
+                nextTrial = now + failTimeout;
+                return true;
+            }
+        }
+
+        boolean take(long now, boolean healthyOnly)
+        {
+            return !healthyOnly || (isAvailable(now) && claim(now));
+        }
+    }
+
+    private final Member[] members;
+    private final Balancing balancing;
+    private final AtomicInteger next;
+    private final long[] ringHashes;
+    private final int[] ringMembers;
+
+    private volatile int maxFails, failTimeout, retries;
+    private volatile String healthCheckPath;
+    private volatile int healthCheckInterval;
+    private volatile Thread healthChecker;
+
+    public UpstreamGroup(String[] baseURLs, Balancing balancing) throws MalformedURLException
+    {
+        if ((baseURLs == null) || (baseURLs.length == 0))
+            throw new IllegalArgumentException("No upstream servers given");
+
+        members = new Member[baseURLs.length];
+        for (int i=0; i<members.length; i++)
+            members[i] = new Member(new URL(baseURLs[i]));
+
+        this.balancing = (balancing == null) ? Balancing.ROUND_ROBIN : balancing;
+        next = new AtomicInteger();
+        maxFails = DEFAULT_MAX_FAILS;
+        failTimeout = DEFAULT_FAIL_TIMEOUT;
+        retries = DEFAULT_RETRIES;
+        healthCheckPath = null;
+        healthCheckInterval = 0;
+        healthChecker = null;
+
+        ringHashes = new long[members.length*VIRTUAL_NODES];
+        ringMembers = new int[ringHashes.length];
+        if (this.balancing == Balancing.CONSISTENT_HASH)
+            buildRing();
+    }
+
+    public UpstreamGroup(String[] baseURLs, String balancing) throws MalformedURLException
+    {
+        this(baseURLs, (balancing == null) ? null : Balancing.valueOf(balancing.trim().toUpperCase().replace('-', '_')));
+    }
+
+    private static long hash(String s)
+    {
+        long h = 0xcbf29ce484222325L; //FNV-1a, then mixed so that similar keys spread around the ring
+        for (int i=0; i<s.length(); i++)
+        {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private void buildRing()
+    {
+        long[][] points = new long[ringHashes.length][];
+        for (int i=0, p=0; i<members.length; i++)
+            for (int v=0; v<VIRTUAL_NODES; v++, p++)
+                points[p] = new long[]{hash(members[i].pool.getKey()+"#"+v), i};
+
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        for (int p=0; p<points.length; p++)
+        {
+            ringHashes[p] = points[p][0];
+            ringMembers[p] = (int) points[p][1];
+        }
+    }
+
+    public Balancing getBalancing()
+    {
+        return balancing;
+    }
+
+    /** Sets the number of consecutive failures after which a member is taken out of rotation. */
+    public void setMaxFails(int count)
+    {
+        maxFails = Math.max(1, count);
+    }
+
+    public int getMaxFails()
+    {
+        return maxFails;
+    }
+
+    /** Sets how long (in milliseconds) a failing member is left out of rotation before it is tried again. */
+    public void setFailTimeout(int ms)
+    {
+        failTimeout = ms;
+    }
+
+    public int getFailTimeout()
+    {
+        return failTimeout;
+    }
+
+    /** Sets how many other members a request is tried on when a connection to the chosen member cannot be made. */
+    public void setRetries(int count)
+    {
+        retries = Math.max(0, count);
+    }
+
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    public int size()
+    {
+        return members.length;
+    }
+
+    public UpstreamPool[] getPools()
+    {
+        UpstreamPool[] result = new UpstreamPool[members.length];
+        for (int i=0; i<members.length; i++)
+            result[i] = members[i].pool;
+        return result;
+    }
+
+    public boolean isAvailable(UpstreamPool pool)
+    {
+        Member m = findMember(pool);
+        return (m != null) && m.isAvailable(System.currentTimeMillis());
+    }
+
+    private Member findMember(UpstreamPool pool)
+    {
+        for (int i=0; i<members.length; i++)
+            if (members[i].pool == pool)
+                return members[i];
+        return null;
+    }
+
+    /** Returns the URL on the member for the request path (which includes any query). */
+    public URL getURL(UpstreamPool pool, String path) throws MalformedURLException
+    {
+        Member m = findMember(pool);
+        String prefix = (m == null) ? "" : m.pathPrefix;
+        return new URL(pool.getScheme(), pool.getHost(), pool.getPort(), prefix+path);
+    }
+
+    private boolean excluded(int index, Set tried)
+    {
+        return (tried != null) && tried.contains(members[index].pool);
+    }
+
+    /** Chooses the member for the request path, excluding those already tried, or returns null if every member has been tried. */
+    public UpstreamPool select(String path, Set tried)
+    {
+        long now = System.currentTimeMillis();
+        int chosen = choose(path, tried, now, true);
+        if (chosen < 0)
+            chosen = choose(path, tried, now, false);
+        return (chosen < 0) ? null : members[chosen].pool;
+    }
+
+    private int choose(String path, Set tried, long now, boolean healthyOnly)
+    {
+        int n = members.length;
+        switch (balancing)
+        {
+        case CONSISTENT_HASH:
+        {
+            int q = path.indexOf('?');
+            long h = hash((q < 0) ? path : path.substring(0, q));
+            int pos = Arrays.binarySearch(ringHashes, h);
+            if (pos < 0)
+                pos = -pos-1;
+            for (int i=0; i<ringHashes.length; i++)
+            {
+                int index = ringMembers[(pos+i) % ringHashes.length];
+                if (!excluded(index, tried) && members[index].take(now, healthyOnly))
+                    return index;
+            }
+            return -1;
+        }
+        case LEAST_OUTSTANDING:
+        {
+            //Only the least loaded member takes its trial slot; if another request took it first, choose again without it
+            int start = (next.getAndIncrement() & 0x7FFFFFFF) % n;
+            boolean[] lost = new boolean[n];
+            while (true)
+            {
+                int best = -1;
+                for (int i=0; i<n; i++)
+                {
+                    int index = (start+i) % n;
+                    if (excluded(index, tried) || lost[index])
+                        continue;
+                    if ((best >= 0) && (members[index].pool.getOutstanding() >= members[best].pool.getOutstanding()))
+                        continue;
+                    if (!healthyOnly || members[index].isAvailable(now))
+                        best = index;
+                }
+
+                if ((best < 0) || members[best].take(now, healthyOnly))
+                    return best;
+                lost[best] = true;
+            }
+        }
+        default:
+        {
+            int start = (next.getAndIncrement() & 0x7FFFFFFF) % n;
+            for (int i=0; i<n; i++)
+            {
+                int index = (start+i) % n;
+                if (!excluded(index, tried) && members[index].take(now, healthyOnly))
+                    return index;
+            }
+            return -1;
+        }
+        }
+    }
+
+    /**
+        Starts polling the path on every member with a GET, every interval milliseconds, from a daemon thread. Members which fail to answer,
+        or answer with anything other than a 2xx or 3xx status, are out of rotation until they next answer successfully. A null path or
+        non-positive interval stops the checks.
+    */
+    public synchronized void setHealthCheck(String path, int intervalMs)
+    {
+        healthCheckPath = path;
+        healthCheckInterval = intervalMs;
+
+        Thread current = healthChecker;
+        if ((path == null) || (intervalMs <= 0))
+        {
+            healthChecker = null;
+            if (current != null)
+                current.interrupt();
+            for (int i=0; i<members.length; i++)
+                members[i].activeHealthy = true;
+        }
+        else if (current == null)
+        {
+            Thread t = new Thread(this, "Upstream Health Check");
+            t.setDaemon(true);
+            healthChecker = t;
+            t.start();
+        }
+    }
+
+    public String getHealthCheckPath()
+    {
+        return healthCheckPath;
+    }
+
+    public int getHealthCheckInterval()
+    {
+        return healthCheckInterval;
+    }
+
+    /** Runs one active health check of the member, returning true if it is healthy. */
+    public boolean checkHealth(UpstreamPool pool)
+    {
+        Member m = findMember(pool);
+        String path = healthCheckPath;
+        if ((m == null) || (path == null))
+            return false;
+
+        boolean healthy = false;
+        HttpURLConnection conn = null;
+        try
+        {
+            conn = (HttpURLConnection) getURL(pool, path).openConnection();
+            conn.setConnectTimeout(pool.getConnectTimeout());
+            conn.setReadTimeout(pool.getReadTimeout());
+            conn.setUseCaches(false);
+            conn.setInstanceFollowRedirects(false);
+            int code = conn.getResponseCode();
+            healthy = (code >= 200) && (code < 400);
+
+            InputStream in = (code < 400) ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null)
+            {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0);
+                in.close();
+            }
+        }
+        catch (Exception e) {}
+        finally
+        {
+            if ((conn != null) && !healthy)
+                conn.disconnect();
+        }
+
+        m.activeHealthy = healthy;
+        if (healthy)
+            pool.recordSuccess();
+        return healthy;
+    }
+
+    public void run()
+    {
+        while (healthChecker == Thread.currentThread())
+        {
+            for (int i=0; (i<members.length) && (healthChecker == Thread.currentThread()); i++)
+                checkHealth(members[i].pool);
+
+            try
+            {
+                Thread.sleep(Math.max(100, healthCheckInterval));
+            }
+            catch (InterruptedException e) {}
+        }
+    }
+
+    /** Stops any health checks and closes the idle connections to every member. */
+    public void close()
+    {
+        setHealthCheck(null, 0);
+        for (int i=0; i<members.length; i++)
+            members[i].pool.close();
+    }
+
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer("UpstreamGroup["+balancing);
+        long now = System.currentTimeMillis();
+        for (int i=0; i<members.length; i++)
+        {
+            Member m = members[i];
+            boolean up = m.activeHealthy && ((m.pool.getConsecutiveFailures() < maxFails) || (now - m.pool.getLastFailureTime() >= failTimeout));
+            buf.append(", "+m.pool.getKey()+(up ? " up" : " down")+" outstanding "+m.pool.getOutstanding()+" requests "+m.pool.getRequests());
+        }
+        buf.append("]");
+        return buf.toString();
+    }
+}
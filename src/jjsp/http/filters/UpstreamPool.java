@@ -0,0 +1,413 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http.filters;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+
+/**
+   The keep-alive connections to one upstream server (scheme, host and port) used by ProxyFilter.
+
+   Connections are taken with acquire() and handed back with release(); only connections whose last response was read completely
+   and which the upstream did not ask to close should be released as reusable. Idle connections are kept (most recently used first)
+   up to the idle limit, and are closed rather than reused once they have been idle for longer than the idle timeout.
+ */
+public class UpstreamPool
+{
+    public static final int DEFAULT_MAX_IDLE = 32;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+    public static final int BUFFER_SIZE = 16*1024;
+
+    public class Connection
+    {
+        public final Socket socket;
+        public final InputStream input;
+        public final OutputStream output;
+
+        private long lastUsed;
+        private boolean reused;
+
+        Connection(Socket socket) throws IOException
+        {
+            this.socket = socket;
+            input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            lastUsed = System.currentTimeMillis();
+            reused = false;
+        }
+
+        /** Returns true if this connection has already carried an earlier request, and so may have been closed by the upstream while idle. */
+        public boolean isReused()
+        {
+            return reused;
+        }
+
+        public UpstreamPool getPool()
+        {
+            return UpstreamPool.this;
+        }
+
+        void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (Exception e) {}
+        }
+    }
+
+    private final String scheme, host, hostHeader;
+    private final int port;
+    private final boolean isSecure;
+    private final ArrayDeque idle;
+    private final AtomicInteger outstanding, consecutiveFailures;
+    private final AtomicLong requests, opened, reusedCount, failures;
+    private volatile long lastFailure;
+
+    private volatile int maxIdle, idleTimeout, connectTimeout, readTimeout;
+
+    public UpstreamPool(String scheme, String host, int port)
+    {
+        this.scheme = scheme.toLowerCase();
+        this.host = host;
+        isSecure = this.scheme.equals("https");
+        if (port <= 0)
+            port = isSecure ? 443 : 80;
+        this.port = port;
+        hostHeader = (port == (isSecure ? 443 : 80)) ? host : host+":"+port;
+
+        idle = new ArrayDeque();
+        outstanding = new AtomicInteger();
+        consecutiveFailures = new AtomicInteger();
+        lastFailure = 0;
+        requests = new AtomicLong();
+        opened = new AtomicLong();
+        reusedCount = new AtomicLong();
+        failures = new AtomicLong();
+
+        maxIdle = DEFAULT_MAX_IDLE;
+        idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        readTimeout = DEFAULT_READ_TIMEOUT;
+    }
+
+    /** Returns the scheme://host:port key identifying the upstream of a URL. */
+    public static String getKey(URL url)
+    {
+        int port = url.getPort();
+        if (port <= 0)
+            port = url.getDefaultPort();
+        return url.getProtocol().toLowerCase()+"://"+url.getHost().toLowerCase()+":"+port;
+    }
+
+    public String getKey()
+    {
+        return scheme+"://"+host.toLowerCase()+":"+port;
+    }
+
+    public String getScheme()
+    {
+        return scheme;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    /** Returns the value for the Host header of requests to this upstream. */
+    public String getHostHeader()
+    {
+        return hostHeader;
+    }
+
+    public boolean isSecure()
+    {
+        return isSecure;
+    }
+
+    public void setMaxIdle(int max)
+    {
+        maxIdle = Math.max(0, max);
+    }
+
+    public int getMaxIdle()
+    {
+        return maxIdle;
+    }
+
+    /** Sets how long (in milliseconds) an idle connection may be kept for reuse. */
+    public void setIdleTimeout(int ms)
+    {
+        idleTimeout = ms;
+    }
+
+    public int getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public void setConnectTimeout(int ms)
+    {
+        connectTimeout = ms;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /** Sets the socket read timeout (in milliseconds) while waiting for the upstream. */
+    public void setReadTimeout(int ms)
+    {
+        readTimeout = ms;
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /** Returns an idle connection if there is one, else opens a new one. */
+    public Connection acquire() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        while (true)
+        {
+            Connection conn = null;
+            synchronized (idle)
+            {
+                conn = (Connection) idle.pollFirst();
+            }
+            if (conn == null)
+                break;
+
+            if ((now - conn.lastUsed > idleTimeout) || conn.socket.isClosed() || conn.socket.isInputShutdown())
+            {
+                conn.close();
+                continue;
+            }
+
+            conn.reused = true;
+            conn.socket.setSoTimeout(readTimeout);
+            reusedCount.incrementAndGet();
+            requests.incrementAndGet();
+            outstanding.incrementAndGet();
+            return conn;
+        }
+
+        return acquireNew();
+    }
+
+    /** Opens a new connection, bypassing the idle ones (as when a reused connection turns out to have been closed by the upstream). */
+    public Connection acquireNew() throws IOException
+    {
+        Connection conn = connect();
+        requests.incrementAndGet();
+        outstanding.incrementAndGet();
+        return conn;
+    }
+
+    /** 
+        Returns true if the upstream has closed a reused connection (or sent something unsolicited on it), waiting at most a millisecond to find out.
+        Used before sending a request body, which cannot be resent on another connection once it has been read from the client.
+    */
+    public boolean isStale(Connection conn)
+    {
+        if (!conn.reused)
+            return false;
+
+        try
+        {
+            conn.socket.setSoTimeout(1);
+            conn.input.mark(1);
+            conn.input.read();
+            conn.input.reset();
+            return true;
+        }
+        catch (SocketTimeoutException e)
+        {
+            return false;
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+        finally
+        {
+            try
+            {
+                conn.socket.setSoTimeout(readTimeout);
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    private Connection connect() throws IOException
+    {
+        Socket socket = isSecure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            if (socket instanceof SSLSocket)
+            {
+                SSLSocket ssl = (SSLSocket) socket;
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                if (!isIPLiteral(host)) //SNI only carries DNS names
+                    params.setServerNames(Collections.singletonList(new SNIHostName(host)));
+                ssl.setSSLParameters(params);
+                ssl.startHandshake();
+            }
+
+            opened.incrementAndGet();
+            return new Connection(socket);
+        }
+        catch (IOException|RuntimeException e)
+        {
+            recordFailure();
+            try
+            {
+                socket.close();
+            }
+            catch (Exception ee) {}
+
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException("Failed to connect to "+host+":"+port, e);
+        }
+    }
+
+    private static boolean isIPLiteral(String host)
+    {
+        if ((host.indexOf(':') >= 0) || host.startsWith("["))
+            return true;
+        return host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    /** Returns the connection to the pool if reusable, otherwise closes it. Every acquired connection must be released exactly once. */
+    public void release(Connection conn, boolean reusable)
+    {
+        outstanding.decrementAndGet();
+        if (reusable)
+        {
+            conn.lastUsed = System.currentTimeMillis();
+            synchronized (idle)
+            {
+                if (idle.size() < maxIdle)
+                {
+                    idle.addFirst(conn);
+                    return;
+                }
+            }
+        }
+        conn.close();
+    }
+
+    /** Records a failed exchange (other than a failure to connect, which is counted when connecting). */
+    public void recordFailure()
+    {
+        failures.incrementAndGet();
+        consecutiveFailures.incrementAndGet();
+        lastFailure = System.currentTimeMillis();
+    }
+
+    /** Records that the upstream responded, ending any run of failures. */
+    public void recordSuccess()
+    {
+        if (consecutiveFailures.get() != 0)
+            consecutiveFailures.set(0);
+    }
+
+    /** Returns the number of failures since the upstream last responded. */
+    public int getConsecutiveFailures()
+    {
+        return consecutiveFailures.get();
+    }
+
+    public long getLastFailureTime()
+    {
+        return lastFailure;
+    }
+
+    /** Closes all idle connections. */
+    public void close()
+    {
+        ArrayList toClose = new ArrayList();
+        synchronized (idle)
+        {
+            toClose.addAll(idle);
+            idle.clear();
+        }
+        for (int i=0; i<toClose.size(); i++)
+            ((Connection) toClose.get(i)).close();
+    }
+
+    public int getIdleCount()
+    {
+        synchronized (idle)
+        {
+            return idle.size();
+        }
+    }
+
+    /** Returns the number of requests currently using a connection to this upstream. */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getConnectionsOpened()
+    {
+        return opened.get();
+    }
+
+    public long getConnectionsReused()
+    {
+        return reusedCount.get();
+    }
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    public String toString()
+    {
+        return "UpstreamPool["+getKey()+" requests "+getRequests()+", opened "+getConnectionsOpened()+", reused "+getConnectionsReused()+", outstanding "+getOutstanding()+", idle "+getIdleCount()+", failures "+getFailures()+"]";
+    }
+}
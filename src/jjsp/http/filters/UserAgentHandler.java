@@ -54,7 +54,7 @@ public class UserAgentHandler implements HTTPRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
+        HTTPFilterChain myChain = HTTPFilterChain.link(name, chain, state);
         HTTPRequestHeaders reqHeaders = request.getHeaders();
 
         String userAgent = request.getHeaders().getHeader("User-Agent");
@@ -0,0 +1,256 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.util;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+   A change feed for directory trees, built on a single WatchService and daemon thread shared by every watched root (see getShared).
+   Directories are registered recursively, including those created after watching starts.
+
+   Listeners are held weakly, so a listener (and whatever it refers to) which is otherwise unreachable stops being notified,
+   and its root is dropped, without needing to call unwatch. Listeners are called on the watcher thread and should return quickly.
+ */
+public class FileWatcher implements Runnable
+{
+    public interface Listener
+    {
+        /** Called for each file or directory under the root which has been created, modified or deleted. */
+        public void fileChanged(File root, File changed);
+
+        /** Called when change events have been lost, after which anything under the root may have changed. */
+        public void changesLost(File root);
+    }
+
+    class WatchedRoot
+    {
+        final File root;
+        final Path path;
+        final WeakReference listener;
+
+        WatchedRoot(File root, Listener listener)
+        {
+            this.root = root;
+            path = root.toPath().toAbsolutePath().normalize();
+            this.listener = new WeakReference(listener);
+        }
+    }
+
+    private static FileWatcher shared = null;
+
+    private final WatchService service;
+    private final HashMap directories;
+    private final ArrayList roots;
+
+    public FileWatcher() throws IOException
+    {
+        service = FileSystems.getDefault().newWatchService();
+        directories = new HashMap();
+        roots = new ArrayList();
+
+        Thread t = new Thread(this, "File Watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static synchronized FileWatcher getShared() throws IOException
+    {
+        if (shared == null)
+            shared = new FileWatcher();
+        return shared;
+    }
+
+    /** Starts delivering changes under the root directory to the listener. */
+    public void watch(File root, Listener listener) throws IOException
+    {
+        if (!root.isDirectory())
+            throw new IOException(root+" is not a directory");
+
+        WatchedRoot watched = new WatchedRoot(root, listener);
+        synchronized (this)
+        {
+            roots.add(watched);
+        }
+        register(watched.path);
+    }
+
+    public synchronized void unwatch(File root, Listener listener)
+    {
+        Path path = root.toPath().toAbsolutePath().normalize();
+        for (int i=roots.size()-1; i>=0; i--)
+        {
+            WatchedRoot watched = (WatchedRoot) roots.get(i);
+            Object l = watched.listener.get();
+            if (watched.path.equals(path) && ((l == listener) || (l == null)))
+                roots.remove(i);
+        }
+        cancelUnwatchedDirectories();
+    }
+
+    private void register(Path dir) throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException
+            {
+                synchronized (FileWatcher.this) //Registering an already watched directory returns its existing key
+                {
+                    directories.put(d.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private synchronized boolean isWatched(Path path)
+    {
+        for (int i=0; i<roots.size(); i++)
+            if (path.startsWith(((WatchedRoot) roots.get(i)).path))
+                return true;
+        return false;
+    }
+
+    private synchronized void cancelUnwatchedDirectories()
+    {
+        Iterator itt = directories.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) itt.next();
+            if (!isWatched((Path) entry.getValue()))
+            {
+                ((WatchKey) entry.getKey()).cancel();
+                itt.remove();
+            }
+        }
+    }
+
+    private void notifyListeners(Path changed, boolean lost)
+    {
+        ArrayList toNotify = new ArrayList();
+        synchronized (this)
+        {
+            boolean collected = false;
+            for (int i=roots.size()-1; i>=0; i--)
+            {
+                WatchedRoot watched = (WatchedRoot) roots.get(i);
+                if (watched.listener.get() == null)
+                {
+                    roots.remove(i);
+                    collected = true;
+                }
+                else if (changed.startsWith(watched.path))
+                    toNotify.add(watched);
+            }
+
+            if (collected)
+                cancelUnwatchedDirectories();
+        }
+
+        for (int i=0; i<toNotify.size(); i++)
+        {
+            WatchedRoot watched = (WatchedRoot) toNotify.get(i);
+            Listener listener = (Listener) watched.listener.get();
+            if (listener == null)
+                continue;
+
+            try
+            {
+                if (lost)
+                    listener.changesLost(watched.root);
+                else
+                    listener.fileChanged(watched.root, changed.toFile());
+            }
+            catch (Throwable t)
+            {
+                System.out.println("WARNING: File change listener failed for "+changed+"  "+t);
+            }
+        }
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                WatchKey key = service.take();
+                Path dir;
+                synchronized (this)
+                {
+                    dir = (Path) directories.get(key);
+                }
+
+                if (dir != null)
+                {
+                    List events = key.pollEvents();
+                    for (int i=0; i<events.size(); i++)
+                    {
+                        WatchEvent event = (WatchEvent) events.get(i);
+                        if (event.kind() == OVERFLOW)
+                        {
+                            notifyListeners(dir, true);
+                            continue;
+                        }
+
+                        Path changed = dir.resolve((Path) event.context());
+                        if ((event.kind() == ENTRY_CREATE) && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS))
+                        {
+                            try
+                            {
+                                register(changed);
+                            }
+                            catch (IOException e) {}
+                        }
+                        notifyListeners(changed, false);
+                    }
+                }
+
+                if (!key.reset())
+                {
+                    synchronized (this)
+                    {
+                        directories.remove(key);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (ClosedWatchServiceException e)
+            {
+                return;
+            }
+            catch (Throwable t)
+            {
+                System.out.println("WARNING: File watcher error "+t);
+            }
+        }
+    }
+}
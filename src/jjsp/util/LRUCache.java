@@ -0,0 +1,351 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+   A concurrent cache bounded by both entry count and total size in bytes (as measured by the weigher), which evicts least recently used entries.
+
+   Lookups do not lock. Concurrent misses for the same key share a single call to the loader, which runs outside any lock.
+   When a limit is exceeded the least recently used entries are evicted in a batch until the cache is back under 90% of its limits.
+ */
+public class LRUCache
+{
+    public interface Loader
+    {
+        public Object load(Object key) throws Exception;
+    }
+
+    class Entry
+    {
+        final Object key;
+        final FutureTask task;
+
+        volatile Object value;
+        volatile long lastUsed;
+        long size;
+        boolean removed;
+
+        Entry(Object key, Loader loader)
+        {
+            this.key = key;
+            task = new FutureTask(() -> loader.load(key));
+            size = -1;
+            removed = false;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ToLongFunction weigher;
+    private final ConcurrentHashMap map;
+    private final AtomicLong totalBytes, hits, misses, evictions, invalidations;
+    private final Object evictionLock;
+
+    private volatile BiConsumer removalListener;
+
+    public LRUCache(int maxEntries, long maxBytes, ToLongFunction weigher)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+
+        map = new ConcurrentHashMap();
+        totalBytes = new AtomicLong();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        invalidations = new AtomicLong();
+        evictionLock = new Object();
+        removalListener = null;
+    }
+
+    /** The listener is called with the key and value of every loaded entry which is evicted or invalidated. */
+    public void setRemovalListener(BiConsumer listener)
+    {
+        removalListener = listener;
+    }
+
+    /** Returns the cached value, or null if there is none (or it is still loading). */
+    public Object get(Object key)
+    {
+        Entry entry = (Entry) map.get(key);
+        if ((entry == null) || (entry.value == null))
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        entry.lastUsed = System.nanoTime();
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+        Returns the cached value, calling the loader to create it on a miss. Threads which miss on a key that is already being loaded wait for that load.
+        Null values are returned but not cached, as are values larger than the byte limit. Exceptions thrown by the loader are passed to every waiting caller.
+    */
+    public Object get(Object key, Loader loader) throws Exception
+    {
+        Entry entry = (Entry) map.get(key);
+        if ((entry != null) && (entry.value != null))
+        {
+            entry.lastUsed = System.nanoTime();
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        if (entry == null)
+        {
+            Entry created = new Entry(key, loader);
+            entry = (Entry) map.putIfAbsent(key, created);
+            if (entry == null)
+            {
+                misses.incrementAndGet();
+                return load(created);
+            }
+        }
+
+        hits.incrementAndGet();
+        return await(entry);
+    }
+
+    private Object await(Entry entry) throws Exception
+    {
+        try
+        {
+            return entry.task.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    private Object load(Entry entry) throws Exception
+    {
+        entry.task.run();
+
+        Object value = null;
+        try
+        {
+            value = await(entry);
+        }
+        finally
+        {
+            if (value == null)
+                map.remove(entry.key, entry);
+        }
+
+        if (value == null)
+            return null;
+
+        long size = Math.max(0, weigher.applyAsLong(value));
+        if ((maxBytes > 0) && (size > maxBytes))
+        {
+            map.remove(entry.key, entry);
+            return value;
+        }
+
+        synchronized (entry)
+        {
+            if (entry.removed)
+                return value;
+            entry.size = size;
+            entry.lastUsed = System.nanoTime();
+            entry.value = value;
+            totalBytes.addAndGet(size);
+        }
+
+        if (overLimit(1.0))
+            evict();
+        return value;
+    }
+
+    /** Adds (or replaces) a value directly. */
+    public void put(Object key, Object value)
+    {
+        Entry entry = new Entry(key, (k) -> value);
+        Entry previous = (Entry) map.put(key, entry);
+        if (previous != null)
+            removed(previous, false);
+
+        try
+        {
+            load(entry);
+        }
+        catch (Exception e) {}
+    }
+
+    private boolean overLimit(double fraction)
+    {
+        if ((maxEntries > 0) && (map.size() > maxEntries*fraction))
+            return true;
+        if ((maxBytes > 0) && (totalBytes.get() > maxBytes*fraction))
+            return true;
+        return false;
+    }
+
+    private void evict()
+    {
+        synchronized (evictionLock)
+        {
+            if (!overLimit(1.0))
+                return;
+
+            ArrayList ll = new ArrayList(map.values());
+            Collections.sort(ll, (a, b) -> Long.compare(((Entry) a).lastUsed, ((Entry) b).lastUsed));
+
+            for (int i=0; (i<ll.size()) && overLimit(0.9); i++)
+            {
+                Entry entry = (Entry) ll.get(i);
+                if (entry.value == null)
+                    continue;
+                if (map.remove(entry.key, entry))
+                    removed(entry, true);
+            }
+        }
+    }
+
+    private void removed(Entry entry, boolean evicted)
+    {
+        synchronized (entry)
+        {
+            if (entry.removed)
+                return;
+            entry.removed = true;
+            if (entry.size > 0)
+                totalBytes.addAndGet(-entry.size);
+        }
+
+        if (entry.value == null)
+            return;
+        if (evicted)
+            evictions.incrementAndGet();
+        else
+            invalidations.incrementAndGet();
+
+        BiConsumer listener = removalListener;
+        if (listener != null)
+        {
+            try
+            {
+                listener.accept(entry.key, entry.value);
+            }
+            catch (Throwable t) {}
+        }
+    }
+
+    /** Removes the entry for the key, if any. Loads in progress complete for their waiting callers but the result is not retained. */
+    public boolean invalidate(Object key)
+    {
+        Entry entry = (Entry) map.remove(key);
+        if (entry == null)
+            return false;
+        removed(entry, false);
+        return true;
+    }
+
+    /** Removes the entry for the key only if it currently holds the given value. */
+    public boolean invalidate(Object key, Object value)
+    {
+        Entry entry = (Entry) map.get(key);
+        if ((entry == null) || (entry.value != value))
+            return false;
+        if (!map.remove(key, entry))
+            return false;
+        removed(entry, false);
+        return true;
+    }
+
+    /** Removes every entry whose key matches the predicate, returning the number removed. */
+    public int invalidateIf(Predicate keyTest)
+    {
+        int count = 0;
+        Iterator itt = map.values().iterator();
+        while (itt.hasNext())
+        {
+            Entry entry = (Entry) itt.next();
+            if (keyTest.test(entry.key) && map.remove(entry.key, entry))
+            {
+                removed(entry, false);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void invalidateAll()
+    {
+        invalidateIf((key) -> true);
+    }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes.get();
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    public String toString()
+    {
+        return "LRUCache["+size()+"/"+maxEntries+" entries, "+getTotalBytes()+"/"+maxBytes+" bytes, hits "+getHits()+", misses "+getMisses()+", evictions "+getEvictions()+", invalidations "+getInvalidations()+"]";
+    }
+}
@@ -0,0 +1,113 @@
+/*
+JJSP - Java and Javascript Server Pages
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+for more details.
+
+You should have received a copy of the GNU General Public License along with
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+   A bounded queue which any number of threads add to without locking, and a single consumer drains.
+
+   When the queue is full new items are dropped rather than blocking the producer, and counted, so that the consumer can report the loss.
+ */
+public class OutputRing
+{
+    public static final int DEFAULT_CAPACITY = 64*1024;
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue queue;
+    private final AtomicInteger size;
+    private final AtomicLong added, dropped;
+
+    public OutputRing()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OutputRing(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+        queue = new ConcurrentLinkedQueue();
+        size = new AtomicInteger();
+        added = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /** Adds the item, returning false (and counting it as dropped) if the ring is full. */
+    public boolean offer(Object item)
+    {
+        if (size.incrementAndGet() > capacity)
+        {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(item);
+        added.incrementAndGet();
+        return true;
+    }
+
+    /** Passes every item in the ring to the consumer, in the order they were added, and returns how many there were. */
+    public int drain(Consumer consumer)
+    {
+        int count = 0;
+        while (true)
+        {
+            Object item = queue.poll();
+            if (item == null)
+                return count;
+
+            size.decrementAndGet();
+            consumer.accept(item);
+            count++;
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return queue.isEmpty();
+    }
+
+    public int size()
+    {
+        return Math.max(0, Math.min(capacity, size.get()));
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getAdded()
+    {
+        return added.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public String toString()
+    {
+        return "OutputRing["+size()+"/"+capacity+", added "+added.get()+", dropped "+dropped.get()+"]";
+    }
+}